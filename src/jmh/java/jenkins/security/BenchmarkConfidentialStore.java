@@ -0,0 +1,32 @@
+package jenkins.security;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Lets {@link hudson.util.Secret}, and so the plugin's Server configuration,
+ * work without a running Jenkins by giving every thread a confidential
+ * store in a temporary directory.
+ */
+public final class BenchmarkConfidentialStore {
+
+	private BenchmarkConfidentialStore(){}
+
+	public static synchronized void install() throws IOException, InterruptedException {
+		if(ConfidentialStore.TEST!=null)
+			return;
+
+		File dir = File.createTempFile("vsphere-benchmark", "secrets");
+		if(!dir.delete() || !dir.mkdirs())
+			throw new IOException("Could not create "+dir);
+		dir.deleteOnExit();
+
+		final ConfidentialStore store = new DefaultConfidentialStore(dir);
+		ConfidentialStore.TEST = new ThreadLocal<ConfidentialStore>(){
+			@Override
+			protected ConfidentialStore initialValue(){
+				return store;
+			}
+		};
+	}
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.vsphere.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.regex.Pattern;
+
+import jenkins.security.BenchmarkConfidentialStore;
+
+import org.jenkinsci.plugins.vsphere.Server;
+import org.jenkinsci.plugins.vsphere.fake.FakeVCenter;
+import org.jenkinsci.plugins.vsphere.tools.VSphere;
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.jenkinsci.plugins.vsphere.tools.VSphereSessionPool;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * A populated {@link FakeVCenter} and a connected {@link VSphere}, shared by
+ * all benchmark threads of a trial.  The inventory index has finished its
+ * bulk load before the first measurement.
+ */
+@State(Scope.Benchmark)
+public class FakeVCenterState {
+
+	public static final String TEMPLATE = "benchmark-template";
+
+	/** Number of VMs in the inventory */
+	@Param({"1000", "10000", "50000"})
+	public int vms;
+
+	/** Simulated network round trip added to every SOAP call */
+	@Param({"0"})
+	public int latencyMillis;
+
+	/** Time every vCenter task takes */
+	@Param({"0"})
+	public int taskMillis;
+
+	FakeVCenter vcenter;
+	Server server;
+	VSphere vsphere;
+	private PrintStream out;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		BenchmarkConfidentialStore.install();
+
+		vcenter = new FakeVCenter(latencyMillis, taskMillis);
+		vcenter.populate(vms);
+		vcenter.addTemplate(TEMPLATE, vcenter.getAnyHost());
+		vcenter.start();
+
+		//VSphere reports its progress on System.out, which is not what is measured
+		out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}));
+
+		server = new Server(vcenter.getUrl(), "benchmark", "benchmark", "fake-"+vms);
+		vsphere = VSphere.connect(server);
+		//Blocks until the inventory index is loaded
+		vsphere.getVmNames(Pattern.compile(Pattern.quote(TEMPLATE)), true);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop(){
+		VSphereSessionPool.get().drain();
+		vcenter.stop();
+		System.setOut(out);
+	}
+
+	ServiceInstance getServiceInstance() throws VSphereException {
+		return VSphereSessionPool.get().getServiceInstance(server);
+	}
+}
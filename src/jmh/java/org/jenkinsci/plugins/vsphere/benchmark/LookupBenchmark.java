@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.vsphere.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.jenkinsci.plugins.vsphere.tools.VSphereInventory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Name lookups, the first step of every VSphere operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+
+	private static final Pattern SOME_VMS = Pattern.compile("vm-0000.*");
+
+	@Benchmark
+	public VirtualMachine getVm(FakeVCenterState state, Names names) throws VSphereException {
+		return state.vsphere.getVm(names.existingVm(state));
+	}
+
+	@Benchmark
+	@Threads(16)
+	public VirtualMachine getVmConcurrently(FakeVCenterState state, Names names) throws VSphereException {
+		return state.vsphere.getVm(names.existingVm(state));
+	}
+
+	@Benchmark
+	public List<String> getVmNames(FakeVCenterState state) throws VSphereException {
+		return state.vsphere.getVmNames(SOME_VMS, false);
+	}
+
+	/**
+	 * The inventory walk lookups used before the inventory index, as a
+	 * baseline.
+	 */
+	@Benchmark
+	public ManagedEntity inventoryNavigator(FakeVCenterState state, Names names) throws Exception {
+		return new InventoryNavigator(state.getServiceInstance().getRootFolder())
+				.searchManagedEntity(VSphereInventory.VIRTUAL_MACHINE, names.existingVm(state));
+	}
+}
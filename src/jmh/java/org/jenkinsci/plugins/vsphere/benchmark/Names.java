@@ -0,0 +1,30 @@
+package org.jenkinsci.plugins.vsphere.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenkinsci.plugins.vsphere.fake.FakeVCenter;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread source of existing VM names to look up and of unique names
+ * for new clones.
+ */
+@State(Scope.Thread)
+public class Names {
+
+	private static final AtomicInteger threads = new AtomicInteger();
+
+	private final Random random = new Random();
+	private final int thread = threads.incrementAndGet();
+	private int clones;
+
+	String existingVm(FakeVCenterState state){
+		return FakeVCenter.vmName(random.nextInt(state.vms));
+	}
+
+	String newClone(){
+		return "clone-"+thread+"-"+(clones++);
+	}
+}
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.vsphere.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * End to end latency of the clone and destroy orchestration, including
+ * placement, task tracking and inventory updates.  Each invocation works
+ * on its own VM, created or removed around it outside the measurement.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OperationBenchmark {
+
+	@State(Scope.Thread)
+	public static class Clone {
+		String name;
+
+		@Setup(Level.Invocation)
+		public void name(Names names){
+			name = names.newClone();
+		}
+
+		@TearDown(Level.Invocation)
+		public void destroy(FakeVCenterState state) throws VSphereException {
+			state.vsphere.destroyVm(name, false);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ExistingClone {
+		String name;
+
+		@Setup(Level.Invocation)
+		public void create(FakeVCenterState state, Names names) throws VSphereException {
+			name = names.newClone();
+			state.vsphere.shallowCloneVm(name, FakeVCenterState.TEMPLATE, true);
+		}
+	}
+
+	@Benchmark
+	public VirtualMachine shallowCloneVm(FakeVCenterState state, Clone clone) throws VSphereException {
+		return state.vsphere.shallowCloneVm(clone.name, FakeVCenterState.TEMPLATE, false);
+	}
+
+	/**
+	 * Destroys a powered on VM, so the power off is included.
+	 */
+	@Benchmark
+	public void destroyVm(FakeVCenterState state, ExistingClone clone) throws VSphereException {
+		state.vsphere.destroyVm(clone.name, true);
+	}
+}
@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.vsphere.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Build-like VM lifecycles from many threads against one server: clone and
+ * power on, wait for the IP, destroy.  Shows how the shared session, task
+ * monitor, inventory and placement hold up under concurrency.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThroughputBenchmark {
+
+	private static final int IP_TIMEOUT_SECONDS = 10;
+
+	@Benchmark
+	@Threads(16)
+	public String vmLifecycle(FakeVCenterState state, Names names) throws VSphereException {
+		String name = names.newClone();
+		VirtualMachine vm = state.vsphere.shallowCloneVm(name, FakeVCenterState.TEMPLATE, true);
+		String ip = state.vsphere.getIp(vm, IP_TIMEOUT_SECONDS);
+		state.vsphere.destroyVm(name, true);
+		return ip;
+	}
+}
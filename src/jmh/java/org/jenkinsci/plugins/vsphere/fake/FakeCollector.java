@@ -0,0 +1,199 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A PropertyCollector of a {@link FakeVCenter} with its filters.  Each
+ * filter remembers which objects it has reported and at what version, and
+ * collects the keys of objects that changed since, so WaitForUpdatesEx only
+ * touches what changed.
+ */
+final class FakeCollector {
+
+	private final String id;
+	private final List<Filter> filters = new ArrayList<Filter>();
+	private boolean cancelled;
+	private boolean destroyed;
+	private long version;
+
+	FakeCollector(String id){
+		this.id = id;
+	}
+
+	String getId(){
+		return id;
+	}
+
+	synchronized void addFilter(String filterId, FakeSelection selection, Collection<FakeObject> objects){
+		Filter filter = new Filter(filterId, selection);
+		for(FakeObject object : objects){
+			if(selection.covers(object))
+				filter.dirty.add(object.getKey());
+		}
+		filters.add(filter);
+		notifyAll();
+	}
+
+	synchronized boolean removeFilter(String filterId){
+		for(Iterator<Filter> it = filters.iterator(); it.hasNext();){
+			if(it.next().id.equals(filterId)){
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	synchronized void changed(FakeObject object){
+		boolean any = false;
+		for(Filter filter : filters){
+			if(filter.selection.covers(object))
+				any |= filter.dirty.add(object.getKey());
+		}
+		if(any)
+			notifyAll();
+	}
+
+	synchronized void removed(String key){
+		boolean any = false;
+		for(Filter filter : filters){
+			if(filter.sent.containsKey(key))
+				any |= filter.dirty.add(key);
+		}
+		if(any)
+			notifyAll();
+	}
+
+	synchronized void cancel(){
+		cancelled = true;
+		notifyAll();
+	}
+
+	synchronized void destroy(){
+		destroyed = true;
+		filters.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @param maxWaitMillis - how long to wait for a change, negative to wait
+	 * until one happens
+	 * @param maxObjectUpdates - most object updates to return, 0 for no limit
+	 * @return - the UpdateSet as a returnval element, or null if nothing
+	 * changed in time
+	 */
+	synchronized String waitForUpdates(FakeVCenter vcenter, long maxWaitMillis, int maxObjectUpdates)
+			throws FakeFault, InterruptedException {
+		long deadline = (maxWaitMillis<0) ? Long.MAX_VALUE : System.currentTimeMillis()+maxWaitMillis;
+		while(true){
+			if(destroyed)
+				throw new FakeFault("ManagedObjectNotFound", "Property collector "+id+" was destroyed");
+			if(cancelled){
+				cancelled = false;
+				throw new FakeFault("RequestCanceled", "WaitForUpdatesEx was canceled");
+			}
+
+			String updates = collect(vcenter, (maxObjectUpdates<=0) ? Integer.MAX_VALUE : maxObjectUpdates);
+			if(updates!=null)
+				return updates;
+
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining<=0)
+				return null;
+			wait(remaining);
+		}
+	}
+
+	private String collect(FakeVCenter vcenter, int maxObjectUpdates){
+		StringBuilder filterSets = new StringBuilder();
+		int budget = maxObjectUpdates;
+		boolean truncated = false;
+
+		for(Filter filter : filters){
+			StringBuilder objectSets = new StringBuilder();
+			for(Iterator<String> it = filter.dirty.iterator(); it.hasNext();){
+				if(budget==0){
+					truncated = true;
+					break;
+				}
+				String key = it.next();
+				it.remove();
+				String update = filter.update(key, vcenter.getObject(key));
+				if(update!=null){
+					objectSets.append(update);
+					budget--;
+				}
+			}
+			if(objectSets.length()>0)
+				filterSets.append("<filterSet>").append(FakeValue.mor("PropertyFilter", filter.id).toXml("filter"))
+						.append(objectSets).append("</filterSet>");
+		}
+
+		if(filterSets.length()==0)
+			return null;
+		version++;
+		return "<returnval><version>"+version+"</version>"+filterSets+"<truncated>"+truncated+"</truncated></returnval>";
+	}
+
+	private static final class Filter {
+		private final String id;
+		private final FakeSelection selection;
+		private final Set<String> dirty = new LinkedHashSet<String>();
+		private final Map<String, Long> sent = new HashMap<String, Long>();
+
+		private Filter(String id, FakeSelection selection){
+			this.id = id;
+			this.selection = selection;
+		}
+
+		/**
+		 * @return - the ObjectUpdate for the object, or null if none of the
+		 * selected paths changed since it was last reported
+		 */
+		private String update(String key, FakeObject object){
+			Long reported = sent.get(key);
+			if(object==null){
+				if(reported==null)
+					return null;
+				sent.remove(key);
+				return "<objectSet><kind>leave</kind>"+Soap.morXml("obj", key)+"</objectSet>";
+			}
+
+			List<String> paths = selection.getPaths(object);
+			if(paths==null)
+				return null;
+
+			StringBuilder changes = new StringBuilder();
+			synchronized(object){
+				for(String path : paths){
+					FakeValue value = object.get(path);
+					if(reported==null){
+						if(value!=null)
+							changes.append(change(path, "assign", value));
+					}
+					else if(object.getVersion(path) > reported){
+						changes.append((value==null) ? change(path, "remove", null) : change(path, "assign", value));
+					}
+				}
+				sent.put(key, object.getVersion());
+			}
+
+			if(reported!=null && changes.length()==0)
+				return null;
+			return "<objectSet><kind>"+((reported==null) ? "enter" : "modify")+"</kind>"
+					+ Soap.morXml("obj", key) + changes + "</objectSet>";
+		}
+
+		private static String change(String path, String op, FakeValue value){
+			return "<changeSet><name>"+path+"</name><op>"+op+"</op>"
+					+ ((value==null) ? "" : value.toTypedXml("val")) + "</changeSet>";
+		}
+	}
+}
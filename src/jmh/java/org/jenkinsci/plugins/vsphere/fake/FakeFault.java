@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+/**
+ * A SOAP fault the fake answers a request with.  vijava raises it as a
+ * RemoteException on the calling side.
+ */
+public class FakeFault extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String faultType;
+
+	/**
+	 * @param faultType - vim25 fault name, e.g. InvalidState
+	 * @param message - fault string
+	 */
+	public FakeFault(String faultType, String message){
+		super(message);
+		this.faultType = faultType;
+	}
+
+	public String getFaultType(){
+		return faultType;
+	}
+}
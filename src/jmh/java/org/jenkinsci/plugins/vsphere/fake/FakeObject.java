@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One managed object of a {@link FakeVCenter}.  Properties are stored by
+ * their full path (e.g. "runtime.powerState"); the data objects vijava asks
+ * for as a whole (e.g. "runtime") are assembled from those paths on demand.
+ *
+ * Every change is stamped with a version so property collectors can tell
+ * which paths changed since they last reported the object.
+ */
+public final class FakeObject {
+
+	private static final Map<String, String> DATA_TYPES = new HashMap<String, String>();
+	static {
+		DATA_TYPES.put("VirtualMachine.runtime", "VirtualMachineRuntimeInfo");
+		DATA_TYPES.put("VirtualMachine.config", "VirtualMachineConfigInfo");
+		DATA_TYPES.put("VirtualMachine.snapshot", "VirtualMachineSnapshotInfo");
+		DATA_TYPES.put("VirtualMachine.guest", "GuestInfo");
+		DATA_TYPES.put("HostSystem.runtime", "HostRuntimeInfo");
+		DATA_TYPES.put("Task.info", "TaskInfo");
+	}
+
+	private final String type;
+	private final String id;
+	private final boolean inventory;
+	private final Map<String, FakeValue> properties = new LinkedHashMap<String, FakeValue>();
+	private final Map<String, Long> versions = new HashMap<String, Long>();
+	private long version;
+
+	FakeObject(String type, String id, boolean inventory){
+		this.type = type;
+		this.id = id;
+		this.inventory = inventory;
+	}
+
+	public String getType(){
+		return type;
+	}
+
+	public String getId(){
+		return id;
+	}
+
+	/**
+	 * @return - "type:id", the same key the plugin's inventory uses
+	 */
+	public String getKey(){
+		return key(type, id);
+	}
+
+	static String key(String type, String id){
+		return type+":"+id;
+	}
+
+	/**
+	 * @return - whether the object is reachable from the root folder, as
+	 * opposed to tasks and service objects
+	 */
+	public boolean isInventory(){
+		return inventory;
+	}
+
+	/**
+	 * @param path - property path, either stored or a data object assembled
+	 * from the stored paths below it
+	 * @return - the value, or null if the object has no such property
+	 */
+	public synchronized FakeValue get(String path){
+		FakeValue value = properties.get(path);
+		if(value!=null)
+			return value;
+
+		String dataType = DATA_TYPES.get(type+"."+path);
+		if(dataType==null)
+			return null;
+
+		StringBuilder fields = new StringBuilder();
+		String prefix = path+".";
+		for(Map.Entry<String, FakeValue> property : properties.entrySet()){
+			String field = property.getKey();
+			if(field.startsWith(prefix) && field.indexOf('.', prefix.length())<0)
+				fields.append(property.getValue().toXml(field.substring(prefix.length())));
+		}
+		return (fields.length()==0) ? null : FakeValue.data(dataType, fields.toString());
+	}
+
+	/**
+	 * @return - the text of a stored property, or null
+	 */
+	public synchronized String getText(String path){
+		FakeValue value = properties.get(path);
+		return (value==null) ? null : value.getText();
+	}
+
+	public synchronized List<String> getPaths(){
+		return new ArrayList<String>(properties.keySet());
+	}
+
+	synchronized long getVersion(){
+		return version;
+	}
+
+	/**
+	 * @return - the last version in which the path, or anything below it,
+	 * changed
+	 */
+	synchronized long getVersion(String path){
+		long latest = 0;
+		String prefix = path+".";
+		for(Map.Entry<String, Long> changed : versions.entrySet()){
+			if(changed.getKey().equals(path) || changed.getKey().startsWith(prefix))
+				latest = Math.max(latest, changed.getValue());
+		}
+		return latest;
+	}
+
+	synchronized void put(String path, FakeValue value, long newVersion){
+		if(value==null)
+			properties.remove(path);
+		else
+			properties.put(path, value);
+		versions.put(path, newVersion);
+		version = newVersion;
+	}
+}
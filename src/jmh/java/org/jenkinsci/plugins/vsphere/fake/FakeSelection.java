@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+
+/**
+ * The objects and properties a PropertyFilterSpec selects.  Traversal specs
+ * are not interpreted: a spec that traverses from the TaskManager selects
+ * every task, any other traversal selects the whole inventory.
+ */
+final class FakeSelection {
+
+	private static final String TASKS = "Task";
+
+	private final List<String> singleObjects = new ArrayList<String>();
+	private boolean inventory;
+	private boolean tasks;
+	private final Map<String, List<String>> paths = new HashMap<String, List<String>>();
+	private final Map<String, Boolean> all = new HashMap<String, Boolean>();
+
+	static FakeSelection parse(Element spec){
+		FakeSelection selection = new FakeSelection();
+		for(Element propSet : Soap.children(spec, "propSet")){
+			String type = Soap.text(propSet, "type");
+			List<String> typePaths = new ArrayList<String>();
+			for(Element path : Soap.children(propSet, "pathSet"))
+				typePaths.add(path.getTextContent().trim());
+			selection.paths.put(type, typePaths);
+			selection.all.put(type, "true".equals(Soap.text(propSet, "all")));
+		}
+
+		for(Element objectSet : Soap.children(spec, "objectSet")){
+			Element obj = Soap.child(objectSet, "obj");
+			boolean traverses = !Soap.children(objectSet, "selectSet").isEmpty();
+			if(!traverses)
+				selection.singleObjects.add(Soap.morKey(obj));
+			else if("TaskManager".equals(obj.getAttribute("type")))
+				selection.tasks = true;
+			else
+				selection.inventory = true;
+		}
+		return selection;
+	}
+
+	boolean isInventory(){
+		return inventory;
+	}
+
+	boolean isTasks(){
+		return tasks;
+	}
+
+	List<String> getSingleObjects(){
+		return singleObjects;
+	}
+
+	boolean covers(FakeObject object){
+		boolean inScope = singleObjects.contains(object.getKey())
+				|| (inventory && object.isInventory())
+				|| (tasks && TASKS.equals(object.getType()));
+		return inScope && getPaths(object)!=null;
+	}
+
+	/**
+	 * @return - the paths selected for the object's type, or null if its
+	 * type is not selected at all
+	 */
+	List<String> getPaths(FakeObject object){
+		List<String> selected = null;
+		for(Map.Entry<String, List<String>> typePaths : paths.entrySet()){
+			if(!isA(object, typePaths.getKey()))
+				continue;
+			if(selected==null)
+				selected = new ArrayList<String>();
+			if(all.get(typePaths.getKey()))
+				selected.addAll(object.getPaths());
+			else
+				selected.addAll(typePaths.getValue());
+		}
+		return selected;
+	}
+
+	private static boolean isA(FakeObject object, String type){
+		if(type.equals(object.getType()))
+			return true;
+		if("ManagedEntity".equals(type))
+			return object.isInventory();
+		if("ComputeResource".equals(type))
+			return "ClusterComputeResource".equals(object.getType());
+		return false;
+	}
+}
@@ -0,0 +1,815 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a vCenter SDK endpoint.  vijava talks to it over
+ * plain HTTP exactly as it talks to vCenter, so the plugin's own code runs
+ * unchanged; only the managed objects live in memory.
+ *
+ * It implements the calls the plugin makes: login, property collectors
+ * (RetrieveProperties[Ex], CreateFilter, WaitForUpdatesEx), and the clone,
+ * power, snapshot, rename, template and destroy tasks.  Any SOAP method can
+ * be replaced or added with {@link #handle(String, Handler)}.  Every call
+ * can be delayed to simulate the network, and tasks take a configurable
+ * time to complete, fixed or per method and task type through a
+ * {@link Timing}.
+ */
+public final class FakeVCenter {
+
+	/**
+	 * Answers one SOAP method.
+	 */
+	public interface Handler {
+		/**
+		 * @param request - the method element of the request body
+		 * @return - the content of the response element, usually returnval
+		 * elements, or null for methods that return nothing
+		 */
+		String handle(Element request) throws Exception;
+	}
+
+	/**
+	 * The work a task does once its simulated duration has passed.
+	 */
+	public interface TaskWork {
+		/**
+		 * @return - the task result, or null
+		 * @throws FakeFault - to fail the task
+		 */
+		FakeValue run() throws FakeFault;
+	}
+
+	/**
+	 * How long calls and tasks take, when the fixed delays are not enough.
+	 */
+	public interface Timing {
+		/**
+		 * @return - delay before answering a call of that SOAP method
+		 */
+		long latencyMillis(String method);
+
+		/**
+		 * @param descriptionId - the task type, e.g. VirtualMachine.clone
+		 * @return - time the task takes to complete
+		 */
+		long taskMillis(String descriptionId);
+	}
+
+	public static final String POOL_ROOT = "Resources";
+	public static final String POOL_BUILD = "Build";
+
+	private static final int VMS_PER_HOST = 250;
+	private static final int HOSTS_PER_DATASTORE = 4;
+	private static final long DATASTORE_CAPACITY = 4L * 1024 * 1024 * 1024 * 1024;
+	private static final long RECENT_TASK_MILLIS = 10 * 1000;
+	private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<soapenv:Envelope xmlns:soapenc=\"http://schemas.xmlsoap.org/soap/encoding/\""
+			+ " xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+			+ " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\""
+			+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n<soapenv:Body>\n";
+	private static final String ENVELOPE_END = "\n</soapenv:Body>\n</soapenv:Envelope>";
+
+	private final ConcurrentMap<String, FakeObject> objects = new ConcurrentHashMap<String, FakeObject>();
+	private final ConcurrentMap<String, FakeObject> names = new ConcurrentHashMap<String, FakeObject>();
+	private final ConcurrentMap<String, FakeCollector> collectors = new ConcurrentHashMap<String, FakeCollector>();
+	private final Map<String, Handler> handlers = new ConcurrentHashMap<String, Handler>();
+	private final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong versions = new AtomicLong();
+	private final AtomicInteger ids = new AtomicInteger(100);
+	private final String sessionKey = UUID.randomUUID().toString();
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, daemonThreads("fake vCenter tasks"));
+	private final ThreadLocal<DocumentBuilder> parsers = new ThreadLocal<DocumentBuilder>(){
+		@Override
+		protected DocumentBuilder initialValue(){
+			try {
+				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+				factory.setNamespaceAware(true);
+				return factory.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final FakeObject rootFolder;
+	private final FakeObject vmFolder;
+	private final FakeObject cluster;
+	private final FakeObject buildPool;
+	private final FakeObject sessionManager;
+	private final FakeObject taskManager;
+
+	private volatile int latencyMillis;
+	private volatile int taskMillis;
+	private volatile Timing timing;
+	private HttpServer httpServer;
+	private ExecutorService httpExecutor;
+
+	/**
+	 * Creates a datacenter with one cluster, whose root pool has a "Build"
+	 * child pool, and no hosts, datastores or VMs.
+	 *
+	 * @param latencyMillis - delay added to every SOAP call
+	 * @param taskMillis - time every task takes to complete
+	 */
+	public FakeVCenter(int latencyMillis, int taskMillis){
+		this.latencyMillis = latencyMillis;
+		this.taskMillis = taskMillis;
+
+		sessionManager = add("SessionManager", "SessionManager", false);
+		taskManager = add("TaskManager", "TaskManager", false);
+		add("PropertyCollector", "propertyCollector", false);
+
+		rootFolder = add("Folder", "group-d1", true);
+		set(rootFolder, "name", FakeValue.string("Datacenters"));
+		FakeObject datacenter = addEntity("Datacenter", "datacenter-2", "Datacenter", rootFolder);
+		vmFolder = addEntity("Folder", "group-v3", "vm", datacenter);
+		FakeObject hostFolder = addEntity("Folder", "group-h4", "host", datacenter);
+		set(datacenter, "vmFolder", FakeValue.mor(vmFolder));
+		set(datacenter, "hostFolder", FakeValue.mor(hostFolder));
+
+		cluster = addEntity("ClusterComputeResource", "domain-c5", "Cluster", hostFolder);
+		FakeObject rootPool = addEntity("ResourcePool", "resgroup-6", POOL_ROOT, cluster);
+		set(rootPool, "owner", FakeValue.mor(cluster));
+		set(cluster, "resourcePool", FakeValue.mor(rootPool));
+		buildPool = addEntity("ResourcePool", "resgroup-7", POOL_BUILD, rootPool);
+		set(buildPool, "owner", FakeValue.mor(cluster));
+
+		set(sessionManager, "currentSession", FakeValue.data("UserSession", userSession("fake")));
+		registerDefaultHandlers();
+	}
+
+	/**
+	 * Starts serving on an ephemeral port of the loopback interface.
+	 */
+	public synchronized void start() throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+		httpExecutor = Executors.newCachedThreadPool(daemonThreads("fake vCenter requests"));
+		httpServer.setExecutor(httpExecutor);
+		httpServer.createContext("/sdk", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		httpServer.start();
+	}
+
+	public synchronized void stop(){
+		for(FakeCollector collector : collectors.values())
+			collector.destroy();
+		if(httpServer!=null)
+			httpServer.stop(0);
+		if(httpExecutor!=null)
+			httpExecutor.shutdownNow();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return - the SDK URL to configure as the vSphere server
+	 */
+	public String getUrl(){
+		return "http://127.0.0.1:"+httpServer.getAddress().getPort()+"/sdk";
+	}
+
+	public void setLatencyMillis(int latencyMillis){
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void setTaskMillis(int taskMillis){
+		this.taskMillis = taskMillis;
+	}
+
+	/**
+	 * Replaces the fixed latency and task time, or restores them with null.
+	 */
+	public void setTiming(Timing timing){
+		this.timing = timing;
+	}
+
+	/**
+	 * Replaces or adds the handler of a SOAP method.
+	 */
+	public void handle(String method, Handler handler){
+		handlers.put(method, handler);
+	}
+
+	/**
+	 * @return - number of SOAP calls served so far
+	 */
+	public long getRequestCount(){
+		long total = 0;
+		for(AtomicLong count : requestCounts.values())
+			total += count.get();
+		return total;
+	}
+
+	/**
+	 * @return - number of SOAP calls served so far, by method
+	 */
+	public Map<String, Long> getRequestCounts(){
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> count : requestCounts.entrySet())
+			counts.put(count.getKey(), count.getValue().get());
+		return counts;
+	}
+
+	/**
+	 * Adds hosts, datastores and alternately powered on and off VMs, sized
+	 * like a cluster of that many VMs.
+	 */
+	public void populate(int vms){
+		int hostCount = Math.max(2, vms / VMS_PER_HOST);
+		int datastoreCount = Math.max(2, hostCount / HOSTS_PER_DATASTORE);
+		Random random = new Random(vms);
+
+		List<FakeObject> datastores = new ArrayList<FakeObject>();
+		for(int i=0; i<datastoreCount; i++)
+			datastores.add(addDatastore(String.format("datastore-%03d", i), DATASTORE_CAPACITY,
+					(long) (DATASTORE_CAPACITY * (0.2 + 0.6 * random.nextDouble()))));
+
+		List<FakeObject> hosts = new ArrayList<FakeObject>();
+		for(int i=0; i<hostCount; i++)
+			hosts.add(addHost(String.format("esx-%03d", i), random.nextDouble(),
+					datastores.get(i % datastoreCount), datastores.get((i+1) % datastoreCount)));
+
+		for(int i=0; i<vms; i++)
+			addVm(vmName(i), hosts.get(i % hostCount), i % 2 == 0);
+	}
+
+	/**
+	 * @return - name of the i-th VM added by {@link #populate(int)}
+	 */
+	public static String vmName(int i){
+		return String.format("vm-%06d", i);
+	}
+
+	public FakeObject addDatastore(String name, long capacity, long freeSpace){
+		FakeObject datastore = addEntity("Datastore", "datastore-"+ids.incrementAndGet(), name, rootFolder);
+		Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+		values.put("summary.capacity", FakeValue.ofLong(capacity));
+		values.put("summary.freeSpace", FakeValue.ofLong(freeSpace));
+		values.put("summary.accessible", FakeValue.bool(true));
+		set(datastore, values);
+		return datastore;
+	}
+
+	/**
+	 * @param load - CPU and memory usage as a fraction of capacity
+	 */
+	public FakeObject addHost(String name, double load, FakeObject... datastores){
+		FakeObject host = addEntity("HostSystem", "host-"+ids.incrementAndGet(), name, cluster);
+		int cpuMhz = 2400;
+		short cores = 16;
+		long memoryBytes = 256L * 1024 * 1024 * 1024;
+		Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+		values.put("datastore", FakeValue.morArray(Arrays.asList(datastores)));
+		values.put("runtime.connectionState", FakeValue.enumeration("HostSystemConnectionState", "connected"));
+		values.put("runtime.inMaintenanceMode", FakeValue.bool(false));
+		values.put("summary.hardware.cpuMhz", FakeValue.ofInt(cpuMhz));
+		values.put("summary.hardware.numCpuCores", FakeValue.ofShort(cores));
+		values.put("summary.hardware.memorySize", FakeValue.ofLong(memoryBytes));
+		values.put("summary.quickStats.overallCpuUsage", FakeValue.ofInt((int) (load * cpuMhz * cores)));
+		values.put("summary.quickStats.overallMemoryUsage", FakeValue.ofInt((int) (load * memoryBytes / (1024 * 1024))));
+		set(host, values);
+		return host;
+	}
+
+	public FakeObject addVm(String name, FakeObject host, boolean poweredOn){
+		FakeObject vm = addEntity("VirtualMachine", "vm-"+ids.incrementAndGet(), name, vmFolder);
+		Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+		values.put("config.name", FakeValue.string(name));
+		values.put("config.template", FakeValue.bool(false));
+		values.put("runtime.host", FakeValue.mor(host));
+		values.put("resourcePool", FakeValue.mor(buildPool));
+		set(vm, values);
+		setPowerState(vm, poweredOn);
+		return vm;
+	}
+
+	/**
+	 * Adds a powered off template with a current snapshot to clone from.
+	 */
+	public FakeObject addTemplate(String name, FakeObject host){
+		FakeObject template = addVm(name, host, false);
+		FakeObject snapshot = add("VirtualMachineSnapshot", "snapshot-"+ids.incrementAndGet(), false);
+		set(template, "config.template", FakeValue.bool(true));
+		set(template, "snapshot.currentSnapshot", FakeValue.mor(snapshot));
+		return template;
+	}
+
+	/**
+	 * @return - the first host, to place VMs added by hand on
+	 */
+	public FakeObject getAnyHost(){
+		for(FakeObject object : objects.values())
+			if("HostSystem".equals(object.getType()))
+				return object;
+		return null;
+	}
+
+	public FakeObject getObject(String key){
+		return objects.get(key);
+	}
+
+	/**
+	 * @return - the managed entity of that type and name, or null
+	 */
+	public FakeObject find(String type, String name){
+		return names.get(type+"/"+name);
+	}
+
+	public void set(FakeObject object, String path, FakeValue value){
+		set(object, Collections.singletonMap(path, value));
+	}
+
+	/**
+	 * Changes several properties at once, as one version, and tells every
+	 * property collector watching the object.
+	 */
+	public void set(FakeObject object, Map<String, FakeValue> values){
+		long version = versions.incrementAndGet();
+		synchronized(object){
+			String oldName = object.getText("name");
+			for(Map.Entry<String, FakeValue> value : values.entrySet())
+				object.put(value.getKey(), value.getValue(), version);
+			String newName = object.getText("name");
+			if(oldName!=null && !oldName.equals(newName))
+				names.remove(object.getType()+"/"+oldName, object);
+			if(newName!=null)
+				names.put(object.getType()+"/"+newName, object);
+		}
+		for(FakeCollector collector : collectors.values())
+			collector.changed(object);
+	}
+
+	public void remove(FakeObject object){
+		objects.remove(object.getKey());
+		String name = object.getText("name");
+		if(name!=null)
+			names.remove(object.getType()+"/"+name, object);
+		for(FakeCollector collector : collectors.values())
+			collector.removed(object.getKey());
+	}
+
+	/**
+	 * Creates a running task that completes after its configured time
+	 * and then stays among the recent tasks for a while, like vCenter's.
+	 *
+	 * @return - the task object
+	 */
+	public FakeObject startTask(String descriptionId, FakeObject entity, final TaskWork work){
+		final FakeObject task = add("Task", "task-"+ids.incrementAndGet(), false);
+		Map<String, FakeValue> info = new LinkedHashMap<String, FakeValue>();
+		info.put("info.key", FakeValue.string(task.getId()));
+		info.put("info.task", FakeValue.mor(task));
+		info.put("info.descriptionId", FakeValue.string(descriptionId));
+		info.put("info.entity", FakeValue.mor(entity));
+		info.put("info.state", FakeValue.enumeration("TaskInfoState", "running"));
+		info.put("info.cancelled", FakeValue.bool(false));
+		info.put("info.cancelable", FakeValue.bool(false));
+		info.put("info.progress", FakeValue.ofInt(0));
+		set(task, info);
+
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				complete(task, work);
+			}
+		}, taskMillis(descriptionId), TimeUnit.MILLISECONDS);
+		return task;
+	}
+
+	private void complete(final FakeObject task, TaskWork work){
+		Map<String, FakeValue> info = new LinkedHashMap<String, FakeValue>();
+		try {
+			FakeValue result = work.run();
+			if(result!=null)
+				info.put("info.result", result.asAny());
+			info.put("info.progress", FakeValue.ofInt(100));
+			info.put("info.state", FakeValue.enumeration("TaskInfoState", "success"));
+		} catch (FakeFault fault) {
+			info.put("info.error", FakeValue.data("LocalizedMethodFault",
+					"<fault xsi:type=\""+fault.getFaultType()+"\"></fault>"
+					+ "<localizedMessage>"+FakeValue.escape(String.valueOf(fault.getMessage()))+"</localizedMessage>"));
+			info.put("info.state", FakeValue.enumeration("TaskInfoState", "error"));
+		}
+		set(task, info);
+
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				remove(task);
+			}
+		}, RECENT_TASK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private FakeObject add(String type, String id, boolean inventory){
+		FakeObject object = new FakeObject(type, id, inventory);
+		objects.put(object.getKey(), object);
+		return object;
+	}
+
+	private FakeObject addEntity(String type, String id, String name, FakeObject parent){
+		FakeObject entity = add(type, id, true);
+		Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+		values.put("name", FakeValue.string(name));
+		values.put("parent", FakeValue.mor(parent));
+		set(entity, values);
+		return entity;
+	}
+
+	private void setPowerState(FakeObject vm, boolean poweredOn){
+		Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+		values.put("runtime.powerState", FakeValue.enumeration("VirtualMachinePowerState", poweredOn ? "poweredOn" : "poweredOff"));
+		if(poweredOn){
+			int n = Integer.parseInt(vm.getId().substring(vm.getId().indexOf('-')+1));
+			values.put("guest.ipAddress", FakeValue.string("10."+((n>>16)&255)+"."+((n>>8)&255)+"."+(n&255)));
+		}
+		else {
+			values.put("guest.ipAddress", null);
+		}
+		set(vm, values);
+	}
+
+	private FakeObject lookup(Element mor) throws FakeFault {
+		FakeObject object = (mor==null) ? null : objects.get(Soap.morKey(mor));
+		if(object==null)
+			throw new FakeFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created");
+		return object;
+	}
+
+	private FakeCollector collector(Element request) throws FakeFault {
+		FakeCollector collector = collectors.get(Soap.child(request, "_this").getTextContent().trim());
+		if(collector==null)
+			throw new FakeFault("ManagedObjectNotFound", "No such property collector");
+		return collector;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		int status = 200;
+		String body;
+		try {
+			Document document = parsers.get().parse(exchange.getRequestBody());
+			Element request = Soap.children(Soap.child(document.getDocumentElement(), "Body"), null).get(0);
+			String method = Soap.localName(request);
+			count(method);
+			long latency = latencyMillis(method);
+			if(latency>0)
+				Thread.sleep(latency);
+
+			Handler handler = handlers.get(method);
+			if(handler==null)
+				throw new FakeFault("NotSupported", method+" is not supported by the fake vCenter");
+			String result = handler.handle(request);
+			body = "<"+method+"Response xmlns=\"urn:vim25\">"+((result==null) ? "" : result)+"</"+method+"Response>";
+		} catch (FakeFault fault) {
+			status = 500;
+			body = fault(fault);
+		} catch (Exception e) {
+			status = 500;
+			body = fault(new FakeFault("SystemError", String.valueOf(e)));
+		}
+
+		byte[] bytes = (ENVELOPE_START + body + ENVELOPE_END).getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		exchange.getResponseHeaders().set("Set-Cookie", "vmware_soap_session=\""+sessionKey+"\"; Path=/; HttpOnly");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private long latencyMillis(String method){
+		Timing current = timing;
+		return (current==null) ? latencyMillis : current.latencyMillis(method);
+	}
+
+	private long taskMillis(String descriptionId){
+		Timing current = timing;
+		return (current==null) ? taskMillis : current.taskMillis(descriptionId);
+	}
+
+	private void count(String method){
+		AtomicLong count = requestCounts.get(method);
+		if(count==null){
+			AtomicLong created = new AtomicLong();
+			count = requestCounts.putIfAbsent(method, created);
+			if(count==null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	private static String fault(FakeFault fault){
+		return "<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>"
+				+ FakeValue.escape(String.valueOf(fault.getMessage())) + "</faultstring><detail>"
+				+ "<"+fault.getFaultType()+"Fault xmlns=\"urn:vim25\" xsi:type=\""+fault.getFaultType()+"\"/>"
+				+ "</detail></soapenv:Fault>";
+	}
+
+	private String userSession(String user){
+		return "<key>"+sessionKey+"</key><userName>"+FakeValue.escape(user)+"</userName><fullName>"+FakeValue.escape(user)+"</fullName>"
+				+ "<loginTime>2013-01-01T00:00:00Z</loginTime><lastActiveTime>2013-01-01T00:00:00Z</lastActiveTime>"
+				+ "<locale>en</locale><messageLocale>en</messageLocale>";
+	}
+
+	private String serviceContent(){
+		return "<returnval>"
+				+ FakeValue.mor(rootFolder).toXml("rootFolder")
+				+ FakeValue.mor("PropertyCollector", "propertyCollector").toXml("propertyCollector")
+				+ "<about><name>VMware vCenter Server</name><fullName>VMware vCenter Server 5.0.0 (fake)</fullName>"
+				+ "<vendor>VMware, Inc.</vendor><version>5.0.0</version><build>0</build>"
+				+ "<localeVersion>INTL</localeVersion><localeBuild>000</localeBuild><osType>linux-x64</osType>"
+				+ "<productLineId>vpx</productLineId><apiType>VirtualCenter</apiType><apiVersion>5.0</apiVersion>"
+				+ "<instanceUuid>"+sessionKey+"</instanceUuid></about>"
+				+ FakeValue.mor(sessionManager).toXml("sessionManager")
+				+ FakeValue.mor(taskManager).toXml("taskManager")
+				+ "</returnval>";
+	}
+
+	/**
+	 * @return - one ObjectContent per selected object, each wrapped in the
+	 * given element
+	 */
+	private String retrieve(List<Element> specSet, String element){
+		StringBuilder contents = new StringBuilder();
+		for(Element spec : specSet){
+			FakeSelection selection = FakeSelection.parse(spec);
+			for(FakeObject object : candidates(selection)){
+				List<String> paths = selection.getPaths(object);
+				if(paths==null)
+					continue;
+
+				contents.append("<"+element+">").append(FakeValue.mor(object).toXml("obj"));
+				synchronized(object){
+					for(String path : paths){
+						FakeValue value = object.get(path);
+						if(value!=null)
+							contents.append("<propSet><name>"+path+"</name>"+value.toTypedXml("val")+"</propSet>");
+					}
+				}
+				contents.append("</"+element+">");
+			}
+		}
+		return contents.toString();
+	}
+
+	private Collection<FakeObject> candidates(FakeSelection selection){
+		Map<String, FakeObject> candidates = new LinkedHashMap<String, FakeObject>();
+		for(String key : selection.getSingleObjects()){
+			FakeObject object = objects.get(key);
+			if(object!=null)
+				candidates.put(key, object);
+		}
+		if(selection.isInventory() || selection.isTasks()){
+			for(FakeObject object : objects.values()){
+				if((selection.isInventory() && object.isInventory()) || (selection.isTasks() && "Task".equals(object.getType())))
+					candidates.put(object.getKey(), object);
+			}
+		}
+		return candidates.values();
+	}
+
+	private void registerDefaultHandlers(){
+		handle("RetrieveServiceContent", new Handler() {
+			public String handle(Element request) {
+				return serviceContent();
+			}
+		});
+		handle("Login", new Handler() {
+			public String handle(Element request) {
+				return "<returnval>"+userSession(Soap.text(request, "userName"))+"</returnval>";
+			}
+		});
+		handle("Logout", new Handler() {
+			public String handle(Element request) {
+				return null;
+			}
+		});
+
+		handle("CreatePropertyCollector", new Handler() {
+			public String handle(Element request) {
+				FakeCollector collector = new FakeCollector("session["+sessionKey+"]"+ids.incrementAndGet());
+				collectors.put(collector.getId(), collector);
+				return FakeValue.mor("PropertyCollector", collector.getId()).toXml("returnval");
+			}
+		});
+		handle("DestroyPropertyCollector", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				FakeCollector collector = collector(request);
+				collectors.remove(collector.getId());
+				collector.destroy();
+				return null;
+			}
+		});
+		handle("CreateFilter", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				String filterId = "session["+sessionKey+"]filter-"+ids.incrementAndGet();
+				collector(request).addFilter(filterId, FakeSelection.parse(Soap.child(request, "spec")), objects.values());
+				return FakeValue.mor("PropertyFilter", filterId).toXml("returnval");
+			}
+		});
+		handle("DestroyPropertyFilter", new Handler() {
+			public String handle(Element request) {
+				String filterId = Soap.child(request, "_this").getTextContent().trim();
+				for(FakeCollector collector : collectors.values())
+					if(collector.removeFilter(filterId))
+						break;
+				return null;
+			}
+		});
+		handle("WaitForUpdatesEx", new Handler() {
+			public String handle(Element request) throws Exception {
+				Element options = Soap.child(request, "options");
+				String maxWait = (options==null) ? null : Soap.text(options, "maxWaitSeconds");
+				String maxUpdates = (options==null) ? null : Soap.text(options, "maxObjectUpdates");
+				return collector(request).waitForUpdates(FakeVCenter.this,
+						(maxWait==null) ? -1 : Long.parseLong(maxWait) * 1000,
+						(maxUpdates==null) ? 0 : Integer.parseInt(maxUpdates));
+			}
+		});
+		handle("CancelWaitForUpdates", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				collector(request).cancel();
+				return null;
+			}
+		});
+		handle("RetrieveProperties", new Handler() {
+			public String handle(Element request) {
+				return retrieve(Soap.children(request, "specSet"), "returnval");
+			}
+		});
+		handle("RetrievePropertiesEx", new Handler() {
+			public String handle(Element request) {
+				String objectContents = retrieve(Soap.children(request, "specSet"), "objects");
+				return (objectContents.length()==0) ? null : "<returnval>"+objectContents+"</returnval>";
+			}
+		});
+
+		handle("CloneVM_Task", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				final FakeObject source = lookup(Soap.child(request, "_this"));
+				final String name = Soap.text(request, "name");
+				Element spec = Soap.child(request, "spec");
+				final boolean powerOn = "true".equals(Soap.text(spec, "powerOn"));
+				final boolean template = "true".equals(Soap.text(spec, "template"));
+				Element location = Soap.child(spec, "location");
+				Element hostMor = (location==null) ? null : Soap.child(location, "host");
+				final FakeObject host = (hostMor!=null) ? lookup(hostMor) : getAnyHost();
+
+				return taskXml(startTask("VirtualMachine.clone", source, new TaskWork() {
+					public FakeValue run() throws FakeFault {
+						if(find("VirtualMachine", name)!=null)
+							throw new FakeFault("DuplicateName", "The name '"+name+"' already exists.");
+						FakeObject clone = addVm(name, host, powerOn);
+						if(template)
+							set(clone, "config.template", FakeValue.bool(true));
+						return FakeValue.mor(clone);
+					}
+				}));
+			}
+		});
+		handle("PowerOnVM_Task", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				final FakeObject vm = lookup(Soap.child(request, "_this"));
+				return taskXml(startTask("VirtualMachine.powerOn", vm, new TaskWork() {
+					public FakeValue run() throws FakeFault {
+						if(isTemplate(vm))
+							throw new FakeFault("InvalidState", "Templates cannot be powered on");
+						setPowerState(vm, true);
+						return null;
+					}
+				}));
+			}
+		});
+		handle("PowerOffVM_Task", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				final FakeObject vm = lookup(Soap.child(request, "_this"));
+				return taskXml(startTask("VirtualMachine.powerOff", vm, new TaskWork() {
+					public FakeValue run() {
+						setPowerState(vm, false);
+						return null;
+					}
+				}));
+			}
+		});
+		handle("Destroy_Task", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				final FakeObject vm = lookup(Soap.child(request, "_this"));
+				return taskXml(startTask("VirtualMachine.destroy", vm, new TaskWork() {
+					public FakeValue run() throws FakeFault {
+						if("poweredOn".equals(vm.getText("runtime.powerState")))
+							throw new FakeFault("InvalidPowerState", "The attempted operation cannot be performed in the current state (Powered on).");
+						remove(vm);
+						return null;
+					}
+				}));
+			}
+		});
+		handle("CreateSnapshot_Task", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				final FakeObject vm = lookup(Soap.child(request, "_this"));
+				return taskXml(startTask("VirtualMachine.createSnapshot", vm, new TaskWork() {
+					public FakeValue run() {
+						FakeObject snapshot = add("VirtualMachineSnapshot", "snapshot-"+ids.incrementAndGet(), false);
+						set(vm, "snapshot.currentSnapshot", FakeValue.mor(snapshot));
+						return FakeValue.mor(snapshot);
+					}
+				}));
+			}
+		});
+		handle("Rename_Task", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				final FakeObject entity = lookup(Soap.child(request, "_this"));
+				final String newName = Soap.text(request, "newName");
+				return taskXml(startTask(entity.getType()+".rename", entity, new TaskWork() {
+					public FakeValue run() throws FakeFault {
+						if(find(entity.getType(), newName)!=null)
+							throw new FakeFault("DuplicateName", "The name '"+newName+"' already exists.");
+						Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+						values.put("name", FakeValue.string(newName));
+						if("VirtualMachine".equals(entity.getType()))
+							values.put("config.name", FakeValue.string(newName));
+						set(entity, values);
+						return null;
+					}
+				}));
+			}
+		});
+		handle("MarkAsTemplate", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				FakeObject vm = lookup(Soap.child(request, "_this"));
+				if(!"poweredOff".equals(vm.getText("runtime.powerState")))
+					throw new FakeFault("InvalidPowerState", "The attempted operation cannot be performed in the current state (Powered on).");
+				set(vm, "config.template", FakeValue.bool(true));
+				return null;
+			}
+		});
+		handle("MarkAsVirtualMachine", new Handler() {
+			public String handle(Element request) throws FakeFault {
+				FakeObject vm = lookup(Soap.child(request, "_this"));
+				Map<String, FakeValue> values = new LinkedHashMap<String, FakeValue>();
+				values.put("config.template", FakeValue.bool(false));
+				values.put("resourcePool", FakeValue.mor(lookup(Soap.child(request, "pool"))));
+				Element host = Soap.child(request, "host");
+				if(host!=null)
+					values.put("runtime.host", FakeValue.mor(lookup(host)));
+				set(vm, values);
+				return null;
+			}
+		});
+	}
+
+	private static boolean isTemplate(FakeObject vm){
+		return "true".equals(vm.getText("config.template"));
+	}
+
+	private static String taskXml(FakeObject task){
+		return FakeValue.mor(task).toXml("returnval");
+	}
+
+	private static ThreadFactory daemonThreads(final String name){
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name+" "+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
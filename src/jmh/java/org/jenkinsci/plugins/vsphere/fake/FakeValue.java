@@ -0,0 +1,117 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+import java.util.Collection;
+
+/**
+ * A property value of a {@link FakeObject}, kept in the XML form vCenter
+ * sends it in.  Values are immutable.
+ */
+public final class FakeValue {
+
+	private final String xsiType;
+	private final String attributes;
+	private final String content;
+	private final boolean anyType;
+
+	private FakeValue(String xsiType, String attributes, String content, boolean anyType){
+		this.xsiType = xsiType;
+		this.attributes = attributes;
+		this.content = content;
+		this.anyType = anyType;
+	}
+
+	public static FakeValue string(String value){
+		return new FakeValue("xsd:string", "", escape(value), false);
+	}
+
+	public static FakeValue bool(boolean value){
+		return new FakeValue("xsd:boolean", "", String.valueOf(value), false);
+	}
+
+	public static FakeValue ofInt(int value){
+		return new FakeValue("xsd:int", "", String.valueOf(value), false);
+	}
+
+	public static FakeValue ofShort(short value){
+		return new FakeValue("xsd:short", "", String.valueOf(value), false);
+	}
+
+	public static FakeValue ofLong(long value){
+		return new FakeValue("xsd:long", "", String.valueOf(value), false);
+	}
+
+	public static FakeValue dateTime(String value){
+		return new FakeValue("xsd:dateTime", "", value, false);
+	}
+
+	/**
+	 * @param type - vim25 enum type, e.g. VirtualMachinePowerState
+	 * @param value - enum constant as vCenter spells it
+	 */
+	public static FakeValue enumeration(String type, String value){
+		return new FakeValue(type, "", value, false);
+	}
+
+	public static FakeValue mor(FakeObject object){
+		return mor(object.getType(), object.getId());
+	}
+
+	public static FakeValue mor(String type, String id){
+		return new FakeValue("ManagedObjectReference", " type=\""+type+"\"", escape(id), false);
+	}
+
+	public static FakeValue morArray(Collection<FakeObject> objects){
+		StringBuilder xml = new StringBuilder();
+		for(FakeObject object : objects)
+			xml.append(mor(object).toXml("ManagedObjectReference"));
+		return new FakeValue("ArrayOfManagedObjectReference", "", xml.toString(), false);
+	}
+
+	/**
+	 * @param type - vim25 data object type
+	 * @param content - the object's fields, already in XML
+	 */
+	public static FakeValue data(String type, String content){
+		return new FakeValue(type, "", content, false);
+	}
+
+	/**
+	 * @return - this value for a field declared as xsd:anyType, which
+	 * carries its xsi:type even inside a data object
+	 */
+	public FakeValue asAny(){
+		return new FakeValue(xsiType, attributes, content, true);
+	}
+
+	public String getXsiType(){
+		return xsiType;
+	}
+
+	/**
+	 * @return - the plain text of the value, e.g. a name or an enum constant
+	 */
+	public String getText(){
+		return content.replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+	}
+
+	/**
+	 * Element as a field of a data object: typed only where the declared
+	 * type is xsd:anyType.
+	 */
+	String toXml(String element){
+		if(anyType)
+			return toTypedXml(element);
+		return "<"+element+attributes+">"+content+"</"+element+">";
+	}
+
+	/**
+	 * Element as the val of a DynamicProperty or PropertyChange.
+	 */
+	String toTypedXml(String element){
+		return "<"+element+attributes+" xsi:type=\""+xsiType+"\">"+content+"</"+element+">";
+	}
+
+	static String escape(String text){
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+}
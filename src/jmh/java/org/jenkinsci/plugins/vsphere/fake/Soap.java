@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.vsphere.fake;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * DOM helpers for reading vijava's requests and writing responses.
+ */
+public final class Soap {
+
+	private Soap(){}
+
+	/**
+	 * @return - the first child element with the local name, or null
+	 */
+	public static Element child(Element parent, String name){
+		for(Node node = parent.getFirstChild(); node!=null; node = node.getNextSibling()){
+			if(node instanceof Element && name.equals(localName(node)))
+				return (Element) node;
+		}
+		return null;
+	}
+
+	public static List<Element> children(Element parent, String name){
+		List<Element> children = new ArrayList<Element>();
+		for(Node node = parent.getFirstChild(); node!=null; node = node.getNextSibling()){
+			if(node instanceof Element && (name==null || name.equals(localName(node))))
+				children.add((Element) node);
+		}
+		return children;
+	}
+
+	/**
+	 * @return - trimmed text of the named child, or null if there is none
+	 */
+	public static String text(Element parent, String name){
+		Element child = child(parent, name);
+		return (child==null) ? null : child.getTextContent().trim();
+	}
+
+	/**
+	 * @return - "type:id" of a ManagedObjectReference element
+	 */
+	public static String morKey(Element mor){
+		return FakeObject.key(mor.getAttribute("type"), mor.getTextContent().trim());
+	}
+
+	static String morXml(String element, String key){
+		int colon = key.indexOf(':');
+		return FakeValue.mor(key.substring(0, colon), key.substring(colon+1)).toXml(element);
+	}
+
+	static String localName(Node node){
+		return (node.getLocalName()!=null) ? node.getLocalName() : node.getNodeName();
+	}
+}
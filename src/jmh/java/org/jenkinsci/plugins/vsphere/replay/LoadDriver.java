@@ -0,0 +1,341 @@
+package org.jenkinsci.plugins.vsphere.replay;
+
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.StreamBuildListener;
+import hudson.tasks.Builder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.vsphere.VSpherePlugin;
+import org.jenkinsci.plugins.vsphere.builders.Destroyer;
+import org.jenkinsci.plugins.vsphere.builders.MarkTemplate;
+import org.jenkinsci.plugins.vsphere.builders.MarkVM;
+import org.jenkinsci.plugins.vsphere.builders.Starter;
+import org.jenkinsci.plugins.vsphere.fake.FakeVCenter;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Runs many builder perform() calls at once inside a test Jenkins and
+ * reports throughput, latency percentiles and SOAP calls per operation.
+ *
+ * Each round of a worker clones and powers on a VM with Starter, destroys
+ * it with Destroyer, and turns a VM of its own into a template and back
+ * with MarkTemplate and MarkVM.  One round runs alone first, to count the
+ * SOAP calls of each operation (and, when recording, to label them), then
+ * all workers run their rounds at once.
+ *
+ * The server is one of:
+ * <ul>
+ * <li>a {@link ReplayVCenter} of a recording (--replay file)</li>
+ * <li>a real vCenter behind a {@link SoapRecorder} (--record file --vcenter
+ * url --user user --password password --template template), saving the
+ * exchanges for later replays</li>
+ * <li>otherwise a {@link FakeVCenter} with fixed latency and task times</li>
+ * </ul>
+ * Other options: --threads (16), --rounds per thread (10), --latency
+ * millis added to every call (0), --task millis per task without a
+ * recording (0), --vms in the fake (1000).
+ *
+ * <pre>
+ *   mvn -Pbenchmarks test-compile exec:exec \
+ *     -Dbenchmark.main=org.jenkinsci.plugins.vsphere.replay.LoadDriver \
+ *     -Dbenchmark.args="--replay recording.gz --threads 32"
+ * </pre>
+ */
+public class LoadDriver extends HudsonTestCase {
+
+	private static final String SERVER = "load";
+	private static final String FAKE_TEMPLATE = "load-template";
+	private static final int IP_TIMEOUT_SECONDS = 60;
+	private static final int REPORTED_FAILURES = 5;
+	private static final List<String> OPERATIONS = Arrays.asList("Starter", "Destroyer", "MarkTemplate", "MarkVM");
+
+	private final Map<String, String> options;
+	private final String prefix = "load-"+Long.toString(System.currentTimeMillis(), 36);
+	private final AtomicInteger failures = new AtomicInteger();
+	private final PrintStream out = System.out;
+	private FakeVCenter vcenter;
+	private SoapRecorder recorder;
+	private FreeStyleBuild build;
+	private String template;
+
+	public LoadDriver(Map<String, String> options) {
+		super("drive");
+		this.options = options;
+	}
+
+	public void drive() throws Exception {
+		String url = startServer();
+		JSONObject server = new JSONObject();
+		server.put("server", url);
+		server.put("user", option("user", "load"));
+		server.put("pw", option("password", "load"));
+		server.put("name", SERVER);
+		JSONObject config = new JSONObject();
+		config.put("servers", server);
+		config.put("maxWarmVms", 0);
+		VSpherePlugin.DescriptorImpl.get().configure(null, config);
+
+		build = createFreeStyleProject().scheduleBuild2(0).get();
+		int threads = Integer.parseInt(option("threads", "16"));
+		int rounds = Integer.parseInt(option("rounds", "10"));
+
+		//VSphere reports its progress on System.out
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}));
+		try {
+			for(int worker=0; worker<threads; worker++)
+				perform(new Starter(SERVER, template, null, convertedVm(worker), false, IP_TIMEOUT_SECONDS, 1, 0, false, false, false, false, 0, false), "setup", null);
+
+			Map<String, Samples> alone = samples();
+			Map<String, Long> soapPerOperation = new LinkedHashMap<String, Long>();
+			round(0, -1, alone, soapPerOperation);
+
+			final Map<String, Samples> loaded = samples();
+			long before = soapCalls();
+			long start = System.nanoTime();
+			runConcurrently(threads, rounds, loaded);
+			long elapsed = System.nanoTime() - start;
+			long soapCalls = soapCalls() - before;
+
+			for(int worker=0; worker<threads; worker++)
+				perform(new Destroyer(SERVER, convertedVm(worker), false, 0), "cleanup", null);
+
+			System.setOut(out);
+			report(alone, soapPerOperation, loaded, threads, elapsed, soapCalls);
+		} finally {
+			System.setOut(out);
+			stopServer();
+		}
+	}
+
+	private String startServer() throws Exception {
+		if(options.containsKey("record")){
+			recorder = new SoapRecorder(option("vcenter", null), 0);
+			recorder.start();
+			template = option("template", null);
+			return recorder.getUrl();
+		}
+
+		int latency = Integer.parseInt(option("latency", "0"));
+		if(options.containsKey("replay")){
+			Recording recording = Recording.read(new File(options.get("replay")));
+			vcenter = new ReplayVCenter(recording, latency).getVCenter();
+			template = options.get("template");
+			for(Map.Entry<String, Boolean> vm : recording.getVirtualMachines().entrySet())
+				if(template==null && vm.getValue())
+					template = vm.getKey();
+			if(template==null)
+				throw new IllegalArgumentException("The recording has no template, pass --template");
+		}
+		else {
+			vcenter = new FakeVCenter(latency, Integer.parseInt(option("task", "0")));
+			vcenter.populate(Integer.parseInt(option("vms", "1000")));
+			vcenter.addTemplate(FAKE_TEMPLATE, vcenter.getAnyHost());
+			template = FAKE_TEMPLATE;
+		}
+		vcenter.start();
+		return vcenter.getUrl();
+	}
+
+	private void stopServer() throws Exception {
+		if(vcenter!=null)
+			vcenter.stop();
+		if(recorder!=null){
+			recorder.stop();
+			Recording recording = recorder.getRecording();
+			recording.write(new File(options.get("record")));
+			out.println("Wrote "+recording.getExchanges().size()+" SOAP calls to "+options.get("record"));
+		}
+	}
+
+	private void runConcurrently(int threads, final int rounds, final Map<String, Samples> samples) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+			for(int worker=0; worker<threads; worker++){
+				final int index = worker;
+				workers.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						for(int round=0; round<rounds; round++)
+							round(index, round, samples, null);
+						return null;
+					}
+				});
+			}
+			for(Future<Void> worker : executor.invokeAll(workers))
+				worker.get();
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * @param soapPerOperation - receives the SOAP calls of each operation, when
+	 * the round runs alone
+	 */
+	private void round(int worker, int round, Map<String, Samples> samples, Map<String, Long> soapPerOperation) throws Exception {
+		String clone = prefix+"-"+worker+"-"+((round<0) ? "first" : String.valueOf(round));
+		String converted = convertedVm(worker);
+		Builder[] builders = {
+				new Starter(SERVER, template, null, clone, true, IP_TIMEOUT_SECONDS, 1, 0, false, false, false, false, 0, false),
+				new Destroyer(SERVER, clone, true, 0),
+				new MarkTemplate(SERVER, converted, "load test", false, null),
+				new MarkVM(SERVER, converted, false, IP_TIMEOUT_SECONDS, false, false, 0, false)
+		};
+		for(int i=0; i<builders.length; i++){
+			String operation = OPERATIONS.get(i);
+			if(soapPerOperation==null){
+				perform(builders[i], operation, samples.get(operation));
+				continue;
+			}
+
+			if(recorder!=null)
+				recorder.setOperation(operation);
+			long before = soapCalls();
+			try {
+				perform(builders[i], operation, samples.get(operation));
+			} finally {
+				soapPerOperation.put(operation, soapCalls() - before);
+				if(recorder!=null)
+					recorder.setOperation(null);
+			}
+		}
+	}
+
+	private boolean perform(Builder builder, String operation, Samples samples) throws Exception {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		BuildListener listener = new StreamBuildListener(log, Charset.forName("UTF-8"));
+		long start = System.nanoTime();
+		boolean success = builder.perform(build, new Launcher.LocalLauncher(listener), listener);
+		long elapsed = System.nanoTime() - start;
+
+		if(samples!=null)
+			samples.add(elapsed, success);
+		if(!success && failures.incrementAndGet()<=REPORTED_FAILURES)
+			out.println(operation+" failed:\n"+log.toString("UTF-8"));
+		return success;
+	}
+
+	private long soapCalls() {
+		return (vcenter!=null) ? vcenter.getRequestCount() : recorder.getCallCount();
+	}
+
+	private void report(Map<String, Samples> alone, Map<String, Long> soapPerOperation, Map<String, Samples> loaded,
+			int threads, long elapsedNanos, long soapCalls) {
+		double seconds = elapsedNanos / 1e9;
+		int operations = 0;
+		for(Samples samples : loaded.values())
+			operations += samples.count();
+
+		out.println();
+		out.println("One round alone:");
+		out.println(String.format("%-14s %8s %10s", "operation", "ms", "SOAP calls"));
+		for(String operation : OPERATIONS)
+			out.println(String.format("%-14s %8.1f %10d", operation,
+					alone.get(operation).percentile(100) / 1e6, soapPerOperation.get(operation)));
+
+		out.println();
+		out.println(String.format("%d threads, %d operations in %.1f s: %.1f ops/s, %.1f SOAP calls/op",
+				threads, operations, seconds, operations / seconds, (operations==0) ? 0.0 : (double) soapCalls / operations));
+		out.println(String.format("%-14s %7s %7s %8s %8s %8s %8s %8s", "operation", "count", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for(String operation : OPERATIONS){
+			Samples samples = loaded.get(operation);
+			out.println(String.format("%-14s %7d %7d %8.1f %8.1f %8.1f %8.1f %8.1f", operation,
+					samples.count(), samples.errors(), samples.count() / seconds,
+					samples.percentile(50) / 1e6, samples.percentile(95) / 1e6,
+					samples.percentile(99) / 1e6, samples.percentile(100) / 1e6));
+		}
+	}
+
+	private String convertedVm(int worker) {
+		return prefix+"-"+worker+"-converted";
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		if(value==null && defaultValue==null)
+			throw new IllegalArgumentException("--"+name+" is required");
+		return (value==null) ? defaultValue : value;
+	}
+
+	private static Map<String, Samples> samples() {
+		Map<String, Samples> samples = new LinkedHashMap<String, Samples>();
+		for(String operation : OPERATIONS)
+			samples.put(operation, new Samples());
+		return samples;
+	}
+
+	/**
+	 * Durations of one operation.
+	 */
+	private static final class Samples {
+		private final List<Long> nanos = new ArrayList<Long>();
+		private int errors;
+
+		synchronized void add(long elapsed, boolean success) {
+			nanos.add(elapsed);
+			if(!success)
+				errors++;
+		}
+
+		synchronized int count() {
+			return nanos.size();
+		}
+
+		synchronized int errors() {
+			return errors;
+		}
+
+		/**
+		 * @return - nearest rank percentile, in nanoseconds
+		 */
+		synchronized double percentile(double percent) {
+			if(nanos.isEmpty())
+				return 0;
+			List<Long> sorted = new ArrayList<Long>(nanos);
+			Collections.sort(sorted);
+			int rank = (int) Math.ceil(percent / 100 * sorted.size());
+			return sorted.get(Math.max(0, rank-1));
+		}
+	}
+
+	public static void main(String[] args) throws Throwable {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for(int i=0; i+1<args.length; i+=2){
+			if(!args[i].startsWith("--"))
+				throw new IllegalArgumentException("Unexpected "+args[i]);
+			options.put(args[i].substring(2), args[i+1]);
+		}
+
+		//The load can run for longer than a test may
+		System.setProperty("jenkins.test.timeout", "0");
+		new LoadDriver(options).runBare();
+		System.exit(0);
+	}
+}
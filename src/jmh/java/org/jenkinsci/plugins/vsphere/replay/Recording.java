@@ -0,0 +1,372 @@
+package org.jenkinsci.plugins.vsphere.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.jenkinsci.plugins.vsphere.fake.Soap;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The SOAP exchanges between vijava and a vCenter, as captured by
+ * {@link SoapRecorder}, and what can be learned from them to replay the
+ * server: how long each method takes to answer, how long each kind of
+ * task runs, and which VMs and templates the recorded operations used.
+ */
+public final class Recording {
+
+	/**
+	 * Calls that block on the server until something changes, so their
+	 * duration is not a latency.
+	 */
+	static final List<String> LONG_POLLS = Arrays.asList("WaitForUpdatesEx", "WaitForUpdates", "WaitForTask");
+
+	private static final int MAGIC = 0x76535250; //"vSRP"
+	private static final int VERSION = 1;
+	private static final Pattern METHOD = Pattern.compile("<(?:[\\w.-]+:)?Body[^>]*>\\s*<(?:[\\w.-]+:)?([\\w.-]+)");
+	private static final Pattern TASK = Pattern.compile("<returnval[^>]*type=\"Task\"[^>]*>([^<]+)</returnval>");
+
+	/**
+	 * One SOAP call.
+	 */
+	public static final class Exchange {
+		private final long startMillis;
+		private final long elapsedMillis;
+		private final int status;
+		private final String method;
+		private final String operation;
+		private final String request;
+		private final String response;
+
+		public Exchange(long startMillis, long elapsedMillis, int status, String method,
+				String operation, String request, String response) {
+			this.startMillis = startMillis;
+			this.elapsedMillis = elapsedMillis;
+			this.status = status;
+			this.method = method;
+			this.operation = operation;
+			this.request = request;
+			this.response = response;
+		}
+
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return - when the response was received
+		 */
+		public long getEndMillis() {
+			return startMillis + elapsedMillis;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return - the builder operation that was running, or null
+		 */
+		public String getOperation() {
+			return operation;
+		}
+
+		public String getRequest() {
+			return request;
+		}
+
+		public String getResponse() {
+			return response;
+		}
+	}
+
+	private final List<Exchange> exchanges;
+
+	public Recording(List<Exchange> exchanges) {
+		List<Exchange> sorted = new ArrayList<Exchange>(exchanges);
+		Collections.sort(sorted, new Comparator<Exchange>() {
+			public int compare(Exchange a, Exchange b) {
+				return (a.startMillis<b.startMillis) ? -1 : ((a.startMillis==b.startMillis) ? 0 : 1);
+			}
+		});
+		this.exchanges = Collections.unmodifiableList(sorted);
+	}
+
+	/**
+	 * @return - the SOAP method called in a request body, or null
+	 */
+	public static String methodOf(String request) {
+		Matcher matcher = METHOD.matcher(request);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	public List<Exchange> getExchanges() {
+		return exchanges;
+	}
+
+	/**
+	 * @return - number of SOAP calls made during each builder operation
+	 */
+	public Map<String, Integer> getCallsPerOperation() {
+		Map<String, Integer> calls = new TreeMap<String, Integer>();
+		for(Exchange exchange : exchanges){
+			if(exchange.operation==null)
+				continue;
+			Integer count = calls.get(exchange.operation);
+			calls.put(exchange.operation, (count==null) ? 1 : count+1);
+		}
+		return calls;
+	}
+
+	/**
+	 * @return - recorded response times by SOAP method, leaving out the
+	 * long polls
+	 */
+	public Map<String, long[]> getLatencies() {
+		Map<String, List<Long>> latencies = new TreeMap<String, List<Long>>();
+		for(Exchange exchange : exchanges){
+			if(exchange.method==null || LONG_POLLS.contains(exchange.method))
+				continue;
+			add(latencies, exchange.method, exchange.elapsedMillis);
+		}
+		return toArrays(latencies);
+	}
+
+	/**
+	 * A task runs from the response that created it to the first response,
+	 * usually of a WaitForUpdatesEx, reporting it finished.
+	 *
+	 * @return - recorded task durations by the SOAP method that started them
+	 */
+	public Map<String, long[]> getTaskDurations() throws IOException {
+		Map<String, List<Long>> durations = new TreeMap<String, List<Long>>();
+		DocumentBuilder parser = parser();
+		for(int i=0; i<exchanges.size(); i++){
+			Exchange started = exchanges.get(i);
+			if(started.status!=200 || started.response==null)
+				continue;
+			Matcher matcher = TASK.matcher(started.response);
+			if(!matcher.find())
+				continue;
+
+			String taskId = matcher.group(1).trim();
+			for(int j=i+1; j<exchanges.size(); j++){
+				Exchange update = exchanges.get(j);
+				if(update.response==null || !update.response.contains(">"+taskId+"<"))
+					continue;
+				if(reportsDone(parse(parser, update.response), taskId)){
+					add(durations, started.method, Math.max(0, update.getEndMillis() - started.getEndMillis()));
+					break;
+				}
+			}
+		}
+		return toArrays(durations);
+	}
+
+	/**
+	 * @return - name and template flag of every VM seen in a response, in
+	 * the order they were first seen
+	 */
+	public Map<String, Boolean> getVirtualMachines() throws IOException {
+		Map<String, String> names = new LinkedHashMap<String, String>();
+		Map<String, Boolean> templates = new LinkedHashMap<String, Boolean>();
+		DocumentBuilder parser = parser();
+		for(Exchange exchange : exchanges){
+			if(exchange.response==null || !exchange.response.contains("\"VirtualMachine\""))
+				continue;
+			NodeList objs = parse(parser, exchange.response).getElementsByTagNameNS("*", "obj");
+			for(int i=0; i<objs.getLength(); i++){
+				Element obj = (Element) objs.item(i);
+				if(!"VirtualMachine".equals(obj.getAttribute("type")))
+					continue;
+				String id = obj.getTextContent().trim();
+				for(Element property : properties((Element) obj.getParentNode())){
+					String path = Soap.text(property, "name");
+					Element val = Soap.child(property, "val");
+					if(val==null)
+						continue;
+					if("name".equals(path))
+						names.put(id, val.getTextContent().trim());
+					else if("config.template".equals(path))
+						templates.put(id, Boolean.valueOf(val.getTextContent().trim()));
+				}
+			}
+		}
+
+		Map<String, Boolean> vms = new LinkedHashMap<String, Boolean>();
+		for(Map.Entry<String, String> name : names.entrySet())
+			vms.put(name.getValue(), Boolean.TRUE.equals(templates.get(name.getKey())));
+		return vms;
+	}
+
+	public static Recording read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION)
+				throw new IOException(file+" is not a SOAP recording");
+			int count = in.readInt();
+			List<Exchange> exchanges = new ArrayList<Exchange>(count);
+			for(int i=0; i<count; i++){
+				long start = in.readLong();
+				long elapsed = in.readLong();
+				int status = in.readInt();
+				String method = readString(in);
+				String operation = readString(in);
+				exchanges.add(new Exchange(start, elapsed, status, method, operation, readString(in), readString(in)));
+			}
+			return new Recording(exchanges);
+		} finally {
+			in.close();
+		}
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(exchanges.size());
+			for(Exchange exchange : exchanges){
+				out.writeLong(exchange.startMillis);
+				out.writeLong(exchange.elapsedMillis);
+				out.writeInt(exchange.status);
+				writeString(out, exchange.method);
+				writeString(out, exchange.operation);
+				writeString(out, exchange.request);
+				writeString(out, exchange.response);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Whether an ObjectContent or ObjectUpdate of the task carries a final
+	 * TaskInfoState.
+	 */
+	private static boolean reportsDone(Document response, String taskId) {
+		NodeList objs = response.getElementsByTagNameNS("*", "obj");
+		for(int i=0; i<objs.getLength(); i++){
+			Element obj = (Element) objs.item(i);
+			if(!"Task".equals(obj.getAttribute("type")) || !taskId.equals(obj.getTextContent().trim()))
+				continue;
+			for(Element property : properties((Element) obj.getParentNode())){
+				if(containsText(property, "success") || containsText(property, "error"))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return - the propSet elements of an ObjectContent or the changeSet
+	 * elements of an ObjectUpdate
+	 */
+	private static List<Element> properties(Element content) {
+		List<Element> properties = Soap.children(content, "propSet");
+		properties.addAll(Soap.children(content, "changeSet"));
+		return properties;
+	}
+
+	private static boolean containsText(Element element, String text) {
+		for(Node node = element.getFirstChild(); node!=null; node = node.getNextSibling()){
+			if(node instanceof Element){
+				if(containsText((Element) node, text))
+					return true;
+			}
+			else if(node.getNodeType()==Node.TEXT_NODE && text.equals(node.getNodeValue().trim()))
+				return true;
+		}
+		return false;
+	}
+
+	private static DocumentBuilder parser() throws IOException {
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			return factory.newDocumentBuilder();
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static Document parse(DocumentBuilder parser, String xml) throws IOException {
+		try {
+			return parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		} catch (Exception e) {
+			throw new IOException("Could not parse a recorded response", e);
+		}
+	}
+
+	private static void add(Map<String, List<Long>> samples, String key, long value) {
+		List<Long> values = samples.get(key);
+		if(values==null){
+			values = new ArrayList<Long>();
+			samples.put(key, values);
+		}
+		values.add(value);
+	}
+
+	private static Map<String, long[]> toArrays(Map<String, List<Long>> samples) {
+		Map<String, long[]> arrays = new TreeMap<String, long[]>();
+		for(Map.Entry<String, List<Long>> entry : samples.entrySet()){
+			long[] values = new long[entry.getValue().size()];
+			for(int i=0; i<values.length; i++)
+				values[i] = entry.getValue().get(i);
+			Arrays.sort(values);
+			arrays.put(entry.getKey(), values);
+		}
+		return arrays;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length<0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value==null){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.vsphere.replay;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.jenkinsci.plugins.vsphere.fake.FakeObject;
+import org.jenkinsci.plugins.vsphere.fake.FakeVCenter;
+
+/**
+ * Local stand-in that replays a {@link Recording}.  The recorded bytes
+ * cannot be sent back as they are, since collector, filter and task ids
+ * and update versions belong to the recorded session, so the exchanges are
+ * replayed through a {@link FakeVCenter}: it holds the recorded VMs and
+ * templates, answers each SOAP method after one of its recorded response
+ * times, and runs each task for one of the recorded durations of its kind.
+ */
+public final class ReplayVCenter implements FakeVCenter.Timing {
+
+	/**
+	 * SOAP method that starts each task type the fake runs.
+	 */
+	private static final Map<String, String> TASK_METHODS = new HashMap<String, String>();
+	static {
+		TASK_METHODS.put("VirtualMachine.clone", "CloneVM_Task");
+		TASK_METHODS.put("VirtualMachine.powerOn", "PowerOnVM_Task");
+		TASK_METHODS.put("VirtualMachine.powerOff", "PowerOffVM_Task");
+		TASK_METHODS.put("VirtualMachine.destroy", "Destroy_Task");
+		TASK_METHODS.put("VirtualMachine.createSnapshot", "CreateSnapshot_Task");
+		TASK_METHODS.put("VirtualMachine.rename", "Rename_Task");
+	}
+
+	private final Map<String, long[]> latencies;
+	private final Map<String, long[]> taskDurations;
+	private final long[] allLatencies;
+	private final int extraLatencyMillis;
+	private final Random random = new Random();
+	private final FakeVCenter vcenter;
+
+	/**
+	 * @param recording - what to replay
+	 * @param extraLatencyMillis - delay added to every call, on top of the
+	 * recorded one, to simulate a more distant vCenter
+	 */
+	public ReplayVCenter(Recording recording, int extraLatencyMillis) throws IOException {
+		this.latencies = recording.getLatencies();
+		this.taskDurations = recording.getTaskDurations();
+		this.extraLatencyMillis = extraLatencyMillis;
+
+		int count = 0;
+		for(long[] samples : latencies.values())
+			count += samples.length;
+		allLatencies = new long[count];
+		count = 0;
+		for(long[] samples : latencies.values()){
+			System.arraycopy(samples, 0, allLatencies, count, samples.length);
+			count += samples.length;
+		}
+		Arrays.sort(allLatencies);
+
+		vcenter = new FakeVCenter(0, 0);
+		vcenter.setTiming(this);
+		vcenter.populate(0);
+		FakeObject host = vcenter.getAnyHost();
+		for(Map.Entry<String, Boolean> vm : recording.getVirtualMachines().entrySet()){
+			if(vm.getValue())
+				vcenter.addTemplate(vm.getKey(), host);
+			else
+				vcenter.addVm(vm.getKey(), host, false);
+		}
+	}
+
+	public FakeVCenter getVCenter() {
+		return vcenter;
+	}
+
+	/**
+	 * Long polls and methods that were never recorded get the network part
+	 * of a typical call: the smallest recorded response time.
+	 */
+	public long latencyMillis(String method) {
+		long[] samples = latencies.get(method);
+		if(samples!=null)
+			return extraLatencyMillis + sample(samples);
+		return extraLatencyMillis + ((allLatencies.length==0) ? 0 : allLatencies[0]);
+	}
+
+	public long taskMillis(String descriptionId) {
+		String method = TASK_METHODS.get(descriptionId);
+		if(method==null && descriptionId.endsWith(".rename"))
+			method = "Rename_Task";
+		long[] samples = (method==null) ? null : taskDurations.get(method);
+		return (samples==null) ? 0 : sample(samples);
+	}
+
+	private long sample(long[] samples) {
+		synchronized(random){
+			return samples[random.nextInt(samples.length)];
+		}
+	}
+}
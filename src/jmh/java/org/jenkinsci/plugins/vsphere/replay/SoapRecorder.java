@@ -0,0 +1,236 @@
+package org.jenkinsci.plugins.vsphere.replay;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Recording proxy for a vCenter SDK endpoint.  Configure a vSphere server
+ * with {@link #getUrl()} instead of the vCenter's URL and every SOAP call
+ * vijava makes is forwarded and kept, with its timing, as a
+ * {@link Recording}.  Like the plugin, it does not check the vCenter's
+ * certificate.
+ *
+ * Calls are labelled with the builder operation set through
+ * {@link #setOperation(String)}, which is only meaningful while one
+ * operation runs at a time.
+ *
+ * Standalone, while builds run in a Jenkins pointed at the proxy:
+ * <pre>
+ *   SoapRecorder https://vcenter/sdk recording.gz [port]
+ * </pre>
+ */
+public final class SoapRecorder {
+
+	private static final List<String> REQUEST_HEADERS = Arrays.asList("Content-Type", "SOAPAction", "Cookie");
+	private static final List<String> RESPONSE_HEADERS = Arrays.asList("Content-Type", "Set-Cookie");
+
+	private final URL target;
+	private final int port;
+	private final List<Recording.Exchange> exchanges = new ArrayList<Recording.Exchange>();
+	private final SSLSocketFactory trustingSockets;
+	private volatile String operation;
+	private HttpServer httpServer;
+	private ExecutorService httpExecutor;
+
+	/**
+	 * @param target - the vCenter SDK URL, e.g. https://vcenter/sdk
+	 * @param port - local port to listen on, or 0 for any
+	 */
+	public SoapRecorder(String target, int port) throws MalformedURLException, GeneralSecurityException {
+		this.target = new URL(target);
+		this.port = port;
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[]{ new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		}}, null);
+		trustingSockets = context.getSocketFactory();
+	}
+
+	/**
+	 * Starts listening on the loopback interface.
+	 */
+	public synchronized void start() throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+		//WaitForUpdatesEx holds a thread for as long as vCenter does
+		httpExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SOAP recorder "+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		httpServer.setExecutor(httpExecutor);
+		httpServer.createContext("/sdk", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				forward(exchange);
+			}
+		});
+		httpServer.start();
+	}
+
+	public synchronized void stop() {
+		if(httpServer!=null)
+			httpServer.stop(0);
+		if(httpExecutor!=null)
+			httpExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return - the SDK URL to configure as the vSphere server
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:"+httpServer.getAddress().getPort()+"/sdk";
+	}
+
+	/**
+	 * Labels the calls that follow, or stops labelling them with null.
+	 */
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+
+	public int getCallCount() {
+		synchronized(exchanges){
+			return exchanges.size();
+		}
+	}
+
+	/**
+	 * @return - the calls recorded so far
+	 */
+	public Recording getRecording() {
+		synchronized(exchanges){
+			return new Recording(exchanges);
+		}
+	}
+
+	private void forward(HttpExchange exchange) throws IOException {
+		String label = operation;
+		byte[] request = readAll(exchange.getRequestBody());
+		long start = System.currentTimeMillis();
+		int status;
+		byte[] response;
+		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+		try {
+			if(connection instanceof HttpsURLConnection){
+				((HttpsURLConnection) connection).setSSLSocketFactory(trustingSockets);
+				((HttpsURLConnection) connection).setHostnameVerifier(new HostnameVerifier() {
+					public boolean verify(String hostname, SSLSession session) {
+						return true;
+					}
+				});
+			}
+			connection.setRequestMethod(exchange.getRequestMethod());
+			connection.setDoOutput(true);
+			for(String header : REQUEST_HEADERS){
+				String value = exchange.getRequestHeaders().getFirst(header);
+				if(value!=null)
+					connection.setRequestProperty(header, value);
+			}
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(request);
+			} finally {
+				out.close();
+			}
+
+			status = connection.getResponseCode();
+			InputStream in = (status>=400) ? connection.getErrorStream() : connection.getInputStream();
+			response = (in==null) ? new byte[0] : readAll(in);
+			for(Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()){
+				for(String name : RESPONSE_HEADERS)
+					if(name.equalsIgnoreCase(header.getKey()))
+						exchange.getResponseHeaders().put(name, header.getValue());
+			}
+		} catch (IOException e) {
+			exchange.sendResponseHeaders(502, -1);
+			exchange.close();
+			return;
+		} finally {
+			connection.disconnect();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		String requestXml = new String(request, "UTF-8");
+		Recording.Exchange recorded = new Recording.Exchange(start, elapsed, status,
+				Recording.methodOf(requestXml), label, requestXml, new String(response, "UTF-8"));
+		synchronized(exchanges){
+			exchanges.add(recorded);
+		}
+
+		exchange.sendResponseHeaders(status, response.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(response);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for(int read; (read = in.read(buffer))!=-1; )
+				bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length<2){
+			System.err.println("Usage: SoapRecorder <vCenter SDK URL> <recording file> [port]");
+			System.exit(1);
+		}
+
+		SoapRecorder recorder = new SoapRecorder(args[0], (args.length>2) ? Integer.parseInt(args[2]) : 0);
+		recorder.start();
+		System.out.println("Recording "+args[0]+" through "+recorder.getUrl()+", press Enter to stop.");
+		new BufferedReader(new InputStreamReader(System.in)).readLine();
+		recorder.stop();
+
+		Recording recording = recorder.getRecording();
+		recording.write(new File(args[1]));
+		System.out.println("Wrote "+recording.getExchanges().size()+" SOAP calls to "+args[1]);
+	}
+}
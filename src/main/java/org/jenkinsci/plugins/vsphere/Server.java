@@ -13,18 +13,25 @@ public class Server extends AbstractDescribableImpl<Server> {
 	private String user;
 	private Secret secretPassphrase;
 	private String name;
+	//Computed on first use, every build step checks it
+	private transient volatile int hash;
 
 	public final String getName() {
 		return name;
 	}
 
 	public final int getHash() {
-		return new HashCodeBuilder(67, 89).
-		append(getName()).
-		append(getUser()).
-		append(getServer()).
-		append(getEncryptedPassphrase()).
-		toHashCode();
+		int h = hash;
+		if(h==0){
+			h = new HashCodeBuilder(67, 89).
+			append(getName()).
+			append(getUser()).
+			append(getServer()).
+			append(getEncryptedPassphrase()).
+			toHashCode();
+			hash = h;
+		}
+		return h;
 	}
 
 	public final String getServer() {
@@ -41,6 +48,7 @@ public class Server extends AbstractDescribableImpl<Server> {
 
 	public final void setPassphrase(final String pw) { 
 		secretPassphrase = Secret.fromString(pw); 
+		hash = 0;
 	}
 
 	public final String getEncryptedPassphrase() {
@@ -0,0 +1,67 @@
+package org.jenkinsci.plugins.vsphere;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Several configured {@link Server}s a build step may start its VMs on,
+ * picked per build by load, so one vCenter being busy or down does not
+ * fail every job on it.
+ */
+public class ServerGroup extends AbstractDescribableImpl<ServerGroup> {
+	private String name;
+	private String members;
+
+	public final String getName() {
+		return name;
+	}
+
+	/**
+	 * @return - the member server names, comma separated, as configured
+	 */
+	public final String getMembers() {
+		return members;
+	}
+
+	/**
+	 * @return - the member server names, in configuration order
+	 */
+	public final List<String> getMemberNames() {
+		if(members==null)
+			return Collections.emptyList();
+
+		List<String> names = new ArrayList<String>();
+		for(String member : members.split(",")){
+			String trimmed = member.trim();
+			if(trimmed.length()>0 && !names.contains(trimmed))
+				names.add(trimmed);
+		}
+		return names;
+	}
+
+	public String toString(){
+		return ("Server Group: "+name+", Members: "+members);
+	}
+
+	@DataBoundConstructor
+	public ServerGroup(final String name, final String members){
+		this.name = name;
+		this.members = members;
+	}
+
+	public ServerGroup(final JSONObject obj){
+		this(obj.getString("name"), obj.getString("members"));
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<ServerGroup> {
+		public String getDisplayName() { return ""; }
+	}
+}
@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the configured servers, indexed by name and by
+ * {@link Server#getHash()}, and of the server groups, indexed by name.  A configuration change builds a new registry
+ * and publishes it in one write, so readers see either the old servers or
+ * the new ones, never a list being filled in.
+ */
+public final class ServerRegistry {
+
+	public static final ServerRegistry EMPTY = new ServerRegistry(Collections.<Server>emptyList(),
+			Collections.<ServerGroup>emptyList());
+
+	private final List<Server> servers;
+	private final Map<String, Server> byName;
+	private final Map<Integer, Server> byHash;
+	private final List<ServerGroup> groups;
+	private final Map<String, ServerGroup> groupsByName;
+
+	/**
+	 * @param servers - the servers, in configuration order; the first of
+	 * several servers with the same name wins
+	 * @param groups - the server groups, in configuration order; a group
+	 * named like a server, or like an earlier group, is ignored
+	 */
+	public ServerRegistry(List<Server> servers, List<ServerGroup> groups){
+		Map<String, Server> names = new HashMap<String, Server>();
+		Map<Integer, Server> hashes = new HashMap<Integer, Server>();
+		for(Server server : servers){
+			if(!names.containsKey(server.getName()))
+				names.put(server.getName(), server);
+			hashes.put(server.getHash(), server);
+		}
+		this.servers = Collections.unmodifiableList(new ArrayList<Server>(servers));
+		this.byName = names;
+		this.byHash = hashes;
+
+		Map<String, ServerGroup> groupNames = new HashMap<String, ServerGroup>();
+		List<ServerGroup> usable = new ArrayList<ServerGroup>();
+		for(ServerGroup group : groups){
+			if(names.containsKey(group.getName()) || groupNames.containsKey(group.getName()))
+				continue;
+			groupNames.put(group.getName(), group);
+			usable.add(group);
+		}
+		this.groups = Collections.unmodifiableList(usable);
+		this.groupsByName = groupNames;
+	}
+
+	/**
+	 * @return - every server, in configuration order
+	 */
+	public List<Server> getServers(){
+		return servers;
+	}
+
+	/**
+	 * @return - the server with that name, or null
+	 */
+	public Server get(String name){
+		return byName.get(name);
+	}
+
+	/**
+	 * @return - every usable server group, in configuration order
+	 */
+	public List<ServerGroup> getGroups(){
+		return groups;
+	}
+
+	/**
+	 * @return - the group with that name, or null
+	 */
+	public ServerGroup getGroup(String name){
+		return groupsByName.get(name);
+	}
+
+	/**
+	 * @return - the configured servers of the group, in configuration order;
+	 * member names without a server are skipped
+	 */
+	public List<Server> getMembers(ServerGroup group){
+		List<Server> members = new ArrayList<Server>();
+		for(String memberName : group.getMemberNames()){
+			Server member = byName.get(memberName);
+			if(member!=null)
+				members.add(member);
+		}
+		return members;
+	}
+
+	/**
+	 * @return - whether a server with exactly this configuration exists
+	 */
+	public boolean contains(Server server){
+		return byHash.containsKey(server.getHash());
+	}
+
+	/**
+	 * @return - hashes of the servers of this registry that the newer one
+	 * no longer has, because they were edited or removed
+	 */
+	public Set<Integer> getChangedSince(ServerRegistry newer){
+		Set<Integer> changed = new HashSet<Integer>(byHash.keySet());
+		changed.removeAll(newer.byHash.keySet());
+		return changed;
+	}
+}
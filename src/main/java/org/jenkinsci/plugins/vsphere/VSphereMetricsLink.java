@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.vsphere;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.util.List;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereMetrics;
+import org.jenkinsci.plugins.vsphere.tools.VSphereTemplateCatalog;
+
+/**
+ * "Manage Jenkins" page listing the latency percentiles and error counts
+ * recorded by {@link VSphereMetrics}, and the snapshot chains of the
+ * templates in the {@link VSphereTemplateCatalog}.
+ */
+@Extension
+public class VSphereMetricsLink extends ManagementLink {
+
+	@Override
+	public String getIconFileName() {
+		return "monitor.png";
+	}
+
+	public String getDisplayName() {
+		return Messages.VSphereMetricsLink_displayName();
+	}
+
+	@Override
+	public String getDescription() {
+		return Messages.VSphereMetricsLink_description();
+	}
+
+	@Override
+	public String getUrlName() {
+		return "vsphere-metrics";
+	}
+
+	public List<VSphereMetrics> getServers() {
+		return VSphereMetrics.all();
+	}
+
+	public List<VSphereTemplateCatalog.Template> getTemplates() {
+		return VSphereTemplateCatalog.get().getTemplates();
+	}
+
+	public String format(double millis) {
+		return String.format("%.1f", millis);
+	}
+}
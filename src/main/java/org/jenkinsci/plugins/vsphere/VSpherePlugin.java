@@ -11,12 +11,17 @@ import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 
+import org.jenkinsci.plugins.vsphere.tools.VSphereAdmission;
 import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.jenkinsci.plugins.vsphere.tools.VSphereRetry;
+import org.jenkinsci.plugins.vsphere.tools.VSphereSessionPool;
+import org.jenkinsci.plugins.vsphere.tools.VSphereWarmPool;
 import org.kohsuke.stapler.StaplerRequest;
 
 /**
@@ -49,6 +54,9 @@ public class VSpherePlugin extends Builder {
 	@Extension
 	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
+		public static final int DEFAULT_LEASE_HOURS = 0;
+		public static final int DEFAULT_TEMPLATE_VERSIONS_TO_KEEP = 3;
+
 		@Override
 		public boolean isApplicable(Class<? extends AbstractProject> jobType) {
 			// TODO Auto-generated method stub
@@ -69,6 +77,20 @@ public class VSpherePlugin extends Builder {
 		 * If you don't want fields to be persisted, use <tt>transient</tt>.
 		 */
 		private volatile List<Server> servers;
+		private volatile List<ServerGroup> groups;
+		private transient volatile ServerRegistry registry = ServerRegistry.EMPTY;
+		private int maxWarmVms = VSphereWarmPool.DEFAULT_MAX_WARM_VMS;
+		private int maxConcurrentClones = VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.CLONE);
+		private int maxConcurrentPowerOps = VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.POWER);
+		private int maxConcurrentSnapshots = VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.SNAPSHOT);
+		private int maxConcurrentDestroys = VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.DESTROY);
+		private int maxConcurrentPerDatastore = VSphereAdmission.Limits.DEFAULT.getPerDatastore();
+		private int maxConcurrentTasks = VSphereAdmission.Limits.DEFAULT.getTotal();
+		private int retryBudgetSeconds = VSphereRetry.DEFAULT_BUDGET_SECONDS;
+		private int leaseHours = DEFAULT_LEASE_HOURS;
+		private boolean reapWhenBuildEnds;
+		private boolean reapWhenBuildDeleted;
+		private int templateVersionsToKeep = DEFAULT_TEMPLATE_VERSIONS_TO_KEEP;
 
 		public DescriptorImpl () {
 			//super();
@@ -93,6 +115,10 @@ public class VSpherePlugin extends Builder {
 				e.printStackTrace();
 			}*/
 			load();
+			registry = new ServerRegistry((servers==null) ? new ArrayList<Server>() : servers,
+					(groups==null) ? new ArrayList<ServerGroup>() : groups);
+			VSphereAdmission.setLimits(getAdmissionLimits());
+			VSphereRetry.setBudgetSeconds(retryBudgetSeconds);
 		}
 
 		@Override
@@ -100,17 +126,48 @@ public class VSpherePlugin extends Builder {
 
 			// To persist global configuration information,
 			// set that to properties and call save().
-			populateServers(formData);
+			ServerRegistry oldRegistry = registry;
+			List<Server> newServers = parseServers(formData);
+			List<ServerGroup> newGroups = parseGroups(formData);
+			ServerRegistry newRegistry = new ServerRegistry(newServers, newGroups);
+			servers = newServers;
+			groups = newGroups;
+			registry = newRegistry;
+			maxWarmVms = formData.optInt("maxWarmVms", VSphereWarmPool.DEFAULT_MAX_WARM_VMS);
+			maxConcurrentClones = formData.optInt("maxConcurrentClones", VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.CLONE));
+			maxConcurrentPowerOps = formData.optInt("maxConcurrentPowerOps", VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.POWER));
+			maxConcurrentSnapshots = formData.optInt("maxConcurrentSnapshots", VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.SNAPSHOT));
+			maxConcurrentDestroys = formData.optInt("maxConcurrentDestroys", VSphereAdmission.Limits.DEFAULT.get(VSphereAdmission.Type.DESTROY));
+			maxConcurrentPerDatastore = formData.optInt("maxConcurrentPerDatastore", VSphereAdmission.Limits.DEFAULT.getPerDatastore());
+			maxConcurrentTasks = formData.optInt("maxConcurrentTasks", VSphereAdmission.Limits.DEFAULT.getTotal());
+			retryBudgetSeconds = formData.optInt("retryBudgetSeconds", VSphereRetry.DEFAULT_BUDGET_SECONDS);
+			leaseHours = formData.optInt("leaseHours", DEFAULT_LEASE_HOURS);
+			reapWhenBuildEnds = formData.optBoolean("reapWhenBuildEnds", false);
+			reapWhenBuildDeleted = formData.optBoolean("reapWhenBuildDeleted", false);
+			templateVersionsToKeep = formData.optInt("templateVersionsToKeep", DEFAULT_TEMPLATE_VERSIONS_TO_KEEP);
 			save();
+			VSphereAdmission.setLimits(getAdmissionLimits());
+			VSphereRetry.setBudgetSeconds(retryBudgetSeconds);
+
+			//Only servers that were edited or removed lose their sessions and warm VMs
+			Set<Integer> changed = oldRegistry.getChangedSince(newRegistry);
+			if(!changed.isEmpty()){
+				VSphereSessionPool.get().invalidate(changed);
+				VSphereWarmPool.get().retainServers(newRegistry.getServers());
+			}
 			return true;
 			//super.configure(req,formData);
 		}
 
-		private void populateServers(JSONObject formData){
+		/**
+		 * @return - a new list of the servers in the form, never published
+		 * before it is complete
+		 */
+		private List<Server> parseServers(JSONObject formData){
 
-			servers = new ArrayList<Server>();
+			List<Server> parsed = new ArrayList<Server>();
 			if (formData.isEmpty()) 
-				return;
+				return parsed;
 
 			JSONArray serverJSONObjectArray;
 			try{
@@ -121,23 +178,129 @@ public class VSpherePlugin extends Builder {
 			}
 
 			for (int i=0, j=serverJSONObjectArray.size(); i<j; i++){
-				servers.add(new Server(serverJSONObjectArray.getJSONObject(i)));
+				parsed.add(new Server(serverJSONObjectArray.getJSONObject(i)));
+			}
+			return parsed;
+		}
+
+		/**
+		 * @return - a new list of the server groups in the form; there may be none
+		 */
+		private List<ServerGroup> parseGroups(JSONObject formData){
+
+			List<ServerGroup> parsed = new ArrayList<ServerGroup>();
+			Object groupsJSON = formData.opt("groups");
+			if (groupsJSON instanceof JSONArray){
+				JSONArray groupJSONObjectArray = (JSONArray) groupsJSON;
+				for (int i=0, j=groupJSONObjectArray.size(); i<j; i++){
+					parsed.add(new ServerGroup(groupJSONObjectArray.getJSONObject(i)));
+				}
+			}
+			else if (groupsJSON instanceof JSONObject){
+				parsed.add(new ServerGroup((JSONObject) groupsJSON));
 			}
+			return parsed;
 		}
 
 		public List<Server> getServers() {
-			return servers;
+			return registry.getServers();
+		}
+
+		public List<ServerGroup> getGroups() {
+			return registry.getGroups();
+		}
+
+		/**
+		 * @return - the current snapshot of the configured servers
+		 */
+		public ServerRegistry getRegistry() {
+			return registry;
+		}
+
+		/**
+		 * @return - the most warm VMs to keep ready per server
+		 */
+		public int getMaxWarmVms() {
+			return maxWarmVms;
+		}
+
+		public int getMaxConcurrentClones() {
+			return maxConcurrentClones;
+		}
+
+		public int getMaxConcurrentPowerOps() {
+			return maxConcurrentPowerOps;
+		}
+
+		public int getMaxConcurrentSnapshots() {
+			return maxConcurrentSnapshots;
+		}
+
+		public int getMaxConcurrentDestroys() {
+			return maxConcurrentDestroys;
+		}
+
+		public int getMaxConcurrentPerDatastore() {
+			return maxConcurrentPerDatastore;
+		}
+
+		public int getMaxConcurrentTasks() {
+			return maxConcurrentTasks;
+		}
+
+		/**
+		 * @return - how long an operation may retry transient faults, 0 for no retries
+		 */
+		public int getRetryBudgetSeconds() {
+			return retryBudgetSeconds;
+		}
+
+		/**
+		 * @return - how long a cloned VM may live, 0 for as long as it likes
+		 */
+		public int getLeaseHours() {
+			return leaseHours;
+		}
+
+		/**
+		 * @return - whether clones a build did not destroy are destroyed when it ends
+		 */
+		public boolean isReapWhenBuildEnds() {
+			return reapWhenBuildEnds;
+		}
+
+		/**
+		 * @return - whether clones a build left behind are destroyed when it is deleted
+		 */
+		public boolean isReapWhenBuildDeleted() {
+			return reapWhenBuildDeleted;
+		}
+
+		/**
+		 * @return - how many versions of each template to keep, 0 for all of them
+		 */
+		public int getTemplateVersionsToKeep() {
+			return templateVersionsToKeep;
+		}
+
+		/**
+		 * @return - the admission limits every server gets, 0 meaning no limit
+		 */
+		public VSphereAdmission.Limits getAdmissionLimits() {
+			return new VSphereAdmission.Limits(maxConcurrentClones, maxConcurrentPowerOps, maxConcurrentSnapshots,
+					maxConcurrentDestroys, maxConcurrentPerDatastore, maxConcurrentTasks);
 		}
 
 		public Server getServer(String name) throws VSphereException {
-			for(Server server : servers)
-				if(server.getName().equals(name))
-					return server;
+			Server server = registry.get(name);
+			if(server!=null)
+				return server;
 
 			throw new VSphereException("Server not found!");
 		}
 
 		public ListBoxModel doFillServerItems(){
+			List<Server> servers = registry.getServers();
 			ListBoxModel select = new ListBoxModel(servers.size());
 
 			for(Server server : servers){
@@ -146,11 +309,40 @@ public class VSpherePlugin extends Builder {
 			return select;
 		}
 
+		/**
+		 * @return - servers, then server groups, for steps that accept either
+		 */
+		public ListBoxModel doFillServerOrGroupItems(){
+			ListBoxModel select = doFillServerItems();
+
+			for(ServerGroup group : registry.getGroups()){
+				select.add(group.getName());
+			}
+			return select;
+		}
+
+		/**
+		 * @param name - name of a server group
+		 * @return - its configured members, in configuration order
+		 * @throws VSphereException - there is no such group, or none of its
+		 * members is configured
+		 */
+		public List<Server> getGroupMembers(String name) throws VSphereException {
+			ServerRegistry current = registry;
+			ServerGroup group = current.getGroup(name);
+			if(group==null)
+				throw new VSphereException("Server group not found!");
+
+			List<Server> members = current.getMembers(group);
+			if(members.isEmpty())
+				throw new VSphereException("Server group "+name+" has no configured servers!");
+			return members;
+		}
+
 		public void checkServerExistence(Server serverToFind) throws VSphereException {
 
-			for (Server server : servers)
-				if(server.getHash()==serverToFind.getHash())
-					return;
+			if(registry.contains(serverToFind))
+				return;
 
 			throw new VSphereException("Server does not exist in global config! Please re-save your job configuration.");
 		}
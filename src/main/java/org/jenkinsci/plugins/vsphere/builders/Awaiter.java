@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphere;
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Waits for the clones that {@link Starter} steps of the same build left
+ * starting in the background, and exports their names and IPs as those
+ * steps would have.
+ */
+public class Awaiter extends Builder{
+
+	@DataBoundConstructor
+	public Awaiter() {
+	}
+
+	@Override
+	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) {
+
+		VSphereLogger logger = VSphereLogger.forBuild(listener.getLogger());
+		try {
+			VSpherePendingAction action = build.getAction(VSpherePendingAction.class);
+			List<VSpherePendingAction.Pending> clones = (action==null) ? null : action.takeAll();
+			if(clones==null || clones.isEmpty()){
+				logger.log("No VMs are starting in the background.");
+				return true;
+			}
+
+			logger.log("Waiting for "+clones.size()+" VM(s) started in the background ...");
+			return await(logger, clones, build);
+		} finally {
+			logger.flush();
+		}
+	}
+
+	private boolean await(VSphereLogger logger, List<VSpherePendingAction.Pending> clones, AbstractBuild<?, ?> build) {
+		VSphereEnvAction envAction = new VSphereEnvAction();
+		Set<VSphereLogger> starters = new LinkedHashSet<VSphereLogger>();
+		boolean success = true;
+		for(VSpherePendingAction.Pending clone : clones){
+			starters.add(clone.getLogger());
+			try {
+				Starter.Deployed deployed = VSphere.await(clone.getDeployed());
+				String vmIP = deployed.getIp();
+				String suffix = (clone.getIndex()>0) ? "_"+clone.getIndex() : "";
+				if(clone.getIndex()>0)
+					envAction.add("VSPHERE_NAME"+suffix, clone.getName());
+				envAction.add("VSPHERE_SERVER"+suffix, deployed.getServer());
+
+				if(vmIP!=null){
+					logger.log("Got IP for \""+clone.getName()+"\" ");
+					envAction.add("VSPHERE_IP"+suffix, vmIP);
+				}
+				else if(clone.isPowerOn()){
+					logger.log("Error: Could not get IP for \""+clone.getName()+"\" ");
+					success = false;
+				}
+			} catch (VSphereException e) {
+				logger.log("Error: Could not create \""+clone.getName()+"\": "+e.getMessage());
+				success = false;
+			} finally {
+				//Anything the starting step logged since it returned
+				clone.getLogger().flush();
+			}
+		}
+		build.addAction(envAction);
+		//The starting steps returned before their clones were done, so their timings are recorded here
+		for(VSphereLogger starter : starters)
+			VSphereTimingAction.record(build, VSphere.vSphereOutput(Messages.vm_title_Starter()), starter.getTimings());
+		return success;
+	}
+
+	@Override
+	public DescriptorImpl getDescriptor() {
+		return (DescriptorImpl )super.getDescriptor();
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+		public DescriptorImpl() {
+			load();
+		}
+
+		/**
+		 * This human readable name is used in the configuration screen.
+		 */
+		@Override
+		public String getDisplayName() {
+			return VSphere.vSphereOutput(Messages.vm_title_Awaiter());
+		}
+
+		@Override
+		public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+			return true;
+		}
+	}
+}
@@ -12,7 +12,15 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.ServletException;
 
@@ -24,19 +32,28 @@ import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.vmware.vim25.TaskInfo;
+
 public class Destroyer extends Builder{
 
+	private static final int DEFAULT_PARALLELISM = 10;
+	//Names with nothing in common, which only a pattern matching every VM matches all of
+	private static final String[] UNRELATED_NAMES = { "a", "vm-0", "Z9_x.test" };
+
 	private final String vm;
 	private final Server server;
 	private final String serverName;
 	private final boolean failOnNoExist;
-	private VSphere vsphere = null;
-	private final VSphereLogger logger = VSphereLogger.getVSphereLogger();
+	private final int parallelism;
 
 	@DataBoundConstructor
-	public Destroyer(String serverName,	String vm, boolean failOnNoExist) throws VSphereException {
+	public Destroyer(String serverName,	String vm, boolean failOnNoExist, int parallelism) throws VSphereException {
 		this.serverName = serverName;
 		this.failOnNoExist = failOnNoExist;
+		this.parallelism = parallelism;
 		server = VSpherePlugin.DescriptorImpl.get().getServer(serverName);
 		this.vm = vm;
 	}
@@ -53,11 +70,15 @@ public class Destroyer extends Builder{
 		return serverName;
 	}
 
+	public int getParallelism(){
+		return parallelism;
+	}
+
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)  {
 
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Using server configuration: " + server.getName(), true);
+		VSphereLogger logger = VSphereLogger.forBuild(listener.getLogger());
+		logger.log("Using server configuration: " + server.getName());
 		boolean killed = false;
 
 		try {
@@ -65,23 +86,25 @@ public class Destroyer extends Builder{
 			//and a job is not opened, it will still try to connect
 			VSpherePlugin.DescriptorImpl.get().checkServerExistence(server);
 
-			vsphere = VSphere.connect(server);
+			VSphere vsphere = VSphere.connect(server, logger);
 			
 			if(VSpherePlugin.DescriptorImpl.allowDelete())
-				killed = killVm(build, launcher, listener);
+				killed = killVm(vsphere, logger, build, listener);
 			else
-				logger.verboseLogger(jLogger, "Deletion is disabled!", true);
+				logger.log("Deletion is disabled!");
 
 		} catch (VSphereException e) {
-			logger.verboseLogger(jLogger, e.getMessage(), true);
+			logger.log(e.getMessage());
+		} finally {
+			VSphereTimingAction.record(build, getDescriptor().getDisplayName(), logger.getTimings());
+			logger.flush();
 		}
 
 		return killed;
 	}
 
-	private boolean killVm(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) throws VSphereException {
+	private boolean killVm(VSphere vsphere, VSphereLogger logger, final AbstractBuild<?, ?> build, final BuildListener listener) throws VSphereException {
 
-		PrintStream jLogger = listener.getLogger();
 		EnvVars env;
 		try {
 			env = build.getEnvironment(listener);
@@ -89,13 +112,130 @@ public class Destroyer extends Builder{
 			throw new VSphereException(e);
 		}
 		env.overrideAll(build.getBuildVariables()); // Add in matrix axes..
-		String expandedVm = env.expand(vm);
 
-		logger.verboseLogger(jLogger, "Destroying VM \""+expandedVm+".\" Please wait ...", true);
-		vsphere.destroyVm(expandedVm, failOnNoExist);
-		logger.verboseLogger(jLogger, "Destroyed!", true);
+		List<String> names = resolveVms(vsphere, logger, env.expand(vm));
+		if(names.isEmpty())
+			return true;
+
+		int permits = (parallelism > 0) ? parallelism : DEFAULT_PARALLELISM;
+		logger.log("Destroying "+names.size()+" VM(s), "+permits+" at a time. Please wait ...");
+
+		//Bounded parallelism without extra threads: a permit is released
+		//as soon as a destroy task completes
+		final Semaphore inFlight = new Semaphore(permits);
+		Map<String, ListenableFuture<TaskInfo>> results = new LinkedHashMap<String, ListenableFuture<TaskInfo>>();
+		for(String name : names){
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new VSphereException(e);
+			}
+
+			ListenableFuture<TaskInfo> result;
+			try {
+				result = vsphere.destroyVmAsync(name, failOnNoExist);
+			} catch (VSphereException e) {
+				result = Futures.<TaskInfo>immediateFailedFuture(e);
+			}
+			result.addListener(new Runnable() {
+				public void run() {
+					inFlight.release();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			results.put(name, result);
+		}
+
+		VSphereLeaseAction leases = build.getAction(VSphereLeaseAction.class);
+		int destroyed = 0;
+		int skipped = 0;
+		for(Map.Entry<String, ListenableFuture<TaskInfo>> result : results.entrySet()){
+			try {
+				//No task when the VM was not there to destroy
+				if(VSphere.await(result.getValue())==null){
+					logger.log("Skipped \""+result.getKey()+"\", it does not exist or was already deleted");
+					skipped++;
+				}
+				else {
+					logger.log("Destroyed \""+result.getKey()+"\"");
+					destroyed++;
+				}
+				if(leases!=null)
+					leases.remove(result.getKey());
+			} catch (VSphereException e) {
+				logger.log("Error: Could not destroy \""+result.getKey()+"\": "+e.getMessage());
+			}
+		}
+
+		logger.log("Destroyed "+destroyed+" of "+names.size()+" VM(s)"+((skipped>0) ? ", skipped "+skipped : "")+".");
+		return destroyed+skipped==names.size();
+	}
+
+	/**
+	 * Expands the comma or newline separated VM list.  Entries wrapped in
+	 * slashes are regular expressions, entries containing * or ? are globs,
+	 * anything else is an exact VM name.  Patterns never match templates.
+	 */
+	private List<String> resolveVms(VSphere vsphere, VSphereLogger logger, String expandedVms) throws VSphereException {
+		Set<String> names = new LinkedHashSet<String>();
+		for(String entry : expandedVms.split("[,\\n]")){
+			entry = entry.trim();
+			if(entry.length()==0)
+				continue;
 
-		return true;
+			Pattern pattern = toPattern(entry);
+			if(pattern==null){
+				names.add(entry);
+				continue;
+			}
+
+			List<String> matches = vsphere.getVmNames(pattern, false);
+			logger.log("\""+entry+"\" matches "+matches.size()+" VM(s).");
+			if(matches.isEmpty() && failOnNoExist)
+				throw new VSphereException("No VM matches \""+entry+"\"");
+			names.addAll(matches);
+		}
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * @return - the pattern of a regular expression or glob entry, null for
+	 * an exact VM name
+	 * @throws VSphereException - the regular expression is invalid, or the
+	 * entry would match every VM
+	 */
+	static Pattern toPattern(String entry) throws VSphereException {
+		if(entry.length()>1 && entry.startsWith("/") && entry.endsWith("/")){
+			Pattern pattern;
+			try {
+				pattern = Pattern.compile(entry.substring(1, entry.length()-1));
+			} catch (PatternSyntaxException e) {
+				throw new VSphereException("Invalid regular expression \""+entry+"\": "+e.getDescription(), e);
+			}
+			for(String name : UNRELATED_NAMES)
+				if(!pattern.matcher(name).matches())
+					return pattern;
+			throw new VSphereException("\""+entry+"\" would destroy every VM, give part of the name");
+		}
+
+		if(entry.indexOf('*')<0 && entry.indexOf('?')<0)
+			return null;
+
+		StringBuilder regex = new StringBuilder();
+		boolean literals = false;
+		for(String literal : entry.split("(?<=[*?])|(?=[*?])")){
+			if(literal.equals("*"))
+				regex.append(".*");
+			else if(literal.equals("?"))
+				regex.append('.');
+			else if(literal.length()>0){
+				regex.append(Pattern.quote(literal));
+				literals = true;
+			}
+		}
+		if(!literals)
+			throw new VSphereException("\""+entry+"\" would destroy every VM, give part of the name");
+		return Pattern.compile(regex.toString());
 	}
 
 	@Override
@@ -12,9 +12,10 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
-import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import javax.servlet.ServletException;
 
@@ -23,9 +24,12 @@ import org.jenkinsci.plugins.vsphere.VSpherePlugin;
 import org.jenkinsci.plugins.vsphere.tools.VSphere;
 import org.jenkinsci.plugins.vsphere.tools.VSphereException;
 import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
+import org.jenkinsci.plugins.vsphere.tools.VSphereTemplateCatalog;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import com.vmware.vim25.ManagedObjectReference;
+
 public class MarkTemplate extends Builder {
 
 	private final String vm;
@@ -33,16 +37,16 @@ public class MarkTemplate extends Builder {
 	private final Server server;
 	private final String serverName;
 	private final String description;
-	private final VSphereLogger logger = VSphereLogger.getVSphereLogger();
-	private VSphere vsphere = null;
+	private final String replicaDatastores;
 
 	@DataBoundConstructor
-	public MarkTemplate(String serverName, String vm, String description, boolean force) throws VSphereException {
+	public MarkTemplate(String serverName, String vm, String description, boolean force, String replicaDatastores) throws VSphereException {
 		this.serverName = serverName;
 		server = VSpherePlugin.DescriptorImpl.get().getServer(serverName);
 		this.force = force;
 		this.vm = vm;
 		this.description = description;
+		this.replicaDatastores = replicaDatastores;
 	}
 
 	public String getVm() {
@@ -61,11 +65,19 @@ public class MarkTemplate extends Builder {
 		return force;
 	}
 
+	/**
+	 * @return - comma separated names of the datastores to copy each new
+	 * version to, or null for none
+	 */
+	public String getReplicaDatastores() {
+		return replicaDatastores;
+	}
+
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) {
 
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Using server configuration: " + server.getName(), true);
+		VSphereLogger logger = VSphereLogger.forBuild(listener.getLogger());
+		logger.log("Using server configuration: " + server.getName());
 		boolean changed = false;
 
 		try {
@@ -73,11 +85,13 @@ public class MarkTemplate extends Builder {
 			//and a job is not opened, it will still try to connect
 			VSpherePlugin.DescriptorImpl.get().checkServerExistence(server);
 
-			vsphere = VSphere.connect(server);
-			changed = markTemplate(build, launcher, listener);
+			VSphere vsphere = VSphere.connect(server, logger);
+			changed = markTemplate(vsphere, logger, build, listener);
 
 		} catch (VSphereException e) {
-			logger.verboseLogger(jLogger, e.getMessage(), true);
+			logger.log(e.getMessage());
+		} finally {
+			logger.flush();
 		}
 
 		return changed;
@@ -86,9 +100,8 @@ public class MarkTemplate extends Builder {
 	/* (non-Javadoc)
 	 * @see hudson.tasks.BuildWrapper#setUp(hudson.model.AbstractBuild, hudson.Launcher, hudson.model.BuildListener)
 	 */
-	private boolean markTemplate(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) throws VSphereException {
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Converting VM to template. Please wait ...", true);	
+	private boolean markTemplate(VSphere vsphere, VSphereLogger logger, final AbstractBuild<?, ?> build, final BuildListener listener) throws VSphereException {
+		logger.log("Converting VM to template. Please wait ...");	
 
 		EnvVars env;
 		try {
@@ -103,13 +116,43 @@ public class MarkTemplate extends Builder {
 		env.overrideAll(build.getBuildVariables()); // Add in matrix axes..
 		String expandedVm = env.expand(vm);
 
-		vsphere.markAsTemplate(expandedVm, df.format(date), env.expand(description), force);
-		logger.verboseLogger(jLogger, "\""+expandedVm+"\" is now a template.", true);
+		String snapshotName = df.format(date);
+		ManagedObjectReference snapshot = vsphere.markAsTemplate(expandedVm, snapshotName, env.expand(description), force);
+		logger.log("\""+expandedVm+"\" is now a template.");
+
+		//Already a template, no new version
+		if(snapshot!=null){
+			VSphereTemplateCatalog.Version version = VSphereTemplateCatalog.get().publish(server.getName(), expandedVm,
+					snapshot, snapshotName, build.getProject().getFullName()+"#"+build.getNumber());
+			logger.log("Published version "+version.getNumber()+" of \""+expandedVm+"\"");
+			replicate(vsphere, logger, expandedVm, version, env);
+		}
 
 		return true;
 	}
 
 
+	/**
+	 * Copies a new version onto the replica datastores.  Clones use the
+	 * other copies meanwhile, so a replica that fails is only logged.
+	 */
+	private void replicate(VSphere vsphere, VSphereLogger logger, String expandedVm, VSphereTemplateCatalog.Version version,
+			EnvVars env) throws VSphereException {
+		if(replicaDatastores==null)
+			return;
+		List<String> datastores = new ArrayList<String>();
+		for(String datastore : env.expand(replicaDatastores).split(","))
+			if(datastore.trim().length()>0)
+				datastores.add(datastore.trim());
+		if(datastores.isEmpty())
+			return;
+
+		logger.log("Replicating version "+version.getNumber()+" of \""+expandedVm+"\" to "+datastores+". Please wait ...");
+		List<VSphereTemplateCatalog.Replica> replicas = vsphere.replicateTemplate(expandedVm, version, datastores);
+		VSphereTemplateCatalog.get().addReplicas(version, replicas);
+		logger.log("Replicated \""+expandedVm+"\" to "+replicas.size()+" of "+datastores.size()+" datastore(s).");
+	}
+
 	@Override
 	public DescriptorImpl getDescriptor() {
 		return (DescriptorImpl )super.getDescriptor();
@@ -4,7 +4,6 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.BuildListener;
-import hudson.model.EnvironmentContributingAction;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
@@ -13,8 +12,9 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -22,28 +22,43 @@ import javax.servlet.ServletException;
 import org.jenkinsci.plugins.vsphere.Server;
 import org.jenkinsci.plugins.vsphere.VSpherePlugin;
 import org.jenkinsci.plugins.vsphere.tools.VSphere;
+import org.jenkinsci.plugins.vsphere.tools.VSphereConstants;
 import org.jenkinsci.plugins.vsphere.tools.VSphereException;
 import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
+import org.jenkinsci.plugins.vsphere.tools.VSphereTimings;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.mo.VirtualMachine;
 
 public class MarkVM extends Builder {
 
 	private final String template;
 	private final boolean powerOn;
+	private final int timeoutInSeconds;
 	private final Server server;
 	private final String serverName;
-	private final VSphereLogger logger = VSphereLogger.getVSphereLogger();
-	private VSphere vsphere = null;
+	private final boolean waitForTools;
+	private final boolean waitForHeartbeat;
+	private final int readinessPort;
+	private final boolean probeFromNode;
 
 	@DataBoundConstructor
-	public MarkVM(String serverName, String template, boolean powerOn) throws VSphereException {
+	public MarkVM(String serverName, String template, boolean powerOn, int timeoutInSeconds,
+			boolean waitForTools, boolean waitForHeartbeat, int readinessPort, boolean probeFromNode) throws VSphereException {
 		this.serverName = serverName;
 		server = VSpherePlugin.DescriptorImpl.get().getServer(serverName);
 		this.powerOn = powerOn;
+		this.timeoutInSeconds = timeoutInSeconds;
 		this.template = template;
+		this.waitForTools = waitForTools;
+		this.waitForHeartbeat = waitForHeartbeat;
+		this.readinessPort = readinessPort;
+		this.probeFromNode = probeFromNode;
 	}
 
 	public String getTemplate() {
@@ -58,11 +73,41 @@ public class MarkVM extends Builder {
 		return powerOn;
 	}
 
+	public int getTimeoutInSeconds() {
+		return timeoutInSeconds;
+	}
+
+	public boolean isWaitForTools() {
+		return waitForTools;
+	}
+
+	public boolean isWaitForHeartbeat() {
+		return waitForHeartbeat;
+	}
+
+	/**
+	 * @return - port a started VM must accept connections on, 0 for none
+	 */
+	public int getReadinessPort() {
+		return readinessPort;
+	}
+
+	public boolean isProbeFromNode() {
+		return probeFromNode;
+	}
+
+	/**
+	 * Jobs saved before the timeout was configurable have 0 here.
+	 */
+	private int getIpTimeout() {
+		return (timeoutInSeconds > 0) ? timeoutInSeconds : VSphereConstants.IP_DEFAULT_TIMEOUT_SECONDS;
+	}
+
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) {
 
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Using server configuration: " + server.getName(), true);
+		VSphereLogger logger = VSphereLogger.forBuild(listener.getLogger());
+		logger.log("Using server configuration: " + server.getName());
 		boolean changed = false;
 
 		try {
@@ -70,11 +115,16 @@ public class MarkVM extends Builder {
 			//and a job is not opened, it will still try to connect
 			VSpherePlugin.DescriptorImpl.get().checkServerExistence(server);
 
-			vsphere = VSphere.connect(server);
-			changed = markVm(build, launcher, listener);
+			VSphere vsphere = VSphere.connect(server, logger);
+			VSphereReadiness readiness = new VSphereReadiness(waitForTools, waitForHeartbeat, readinessPort,
+					probeFromNode ? launcher : null);
+			changed = markVm(vsphere, logger, readiness, build, listener);
 
 		} catch (VSphereException e) {
-			logger.verboseLogger(jLogger, e.getMessage(), true);
+			logger.log(e.getMessage());
+		} finally {
+			VSphereTimingAction.record(build, getDescriptor().getDisplayName(), logger.getTimings());
+			logger.flush();
 		}
 
 		return changed;
@@ -83,9 +133,9 @@ public class MarkVM extends Builder {
 	/* (non-Javadoc)
 	 * @see hudson.tasks.BuildWrapper#setUp(hudson.model.AbstractBuild, hudson.Launcher, hudson.model.BuildListener)
 	 */
-	private boolean markVm(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) throws VSphereException {
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Converting template to VM. Please wait ...", true);		
+	private boolean markVm(VSphere vsphere, VSphereLogger logger, VSphereReadiness readiness,
+			final AbstractBuild<?, ?> build, final BuildListener listener) throws VSphereException {
+		logger.log("Converting template(s) to VM. Please wait ...");		
 
 		EnvVars env;
 		try {
@@ -94,29 +144,107 @@ public class MarkVM extends Builder {
 			throw new VSphereException(e);
 		}
 
-		//TODO:  take in a comma delimited list and convert all
 		env.overrideAll(build.getBuildVariables()); // Add in matrix axes..
-		String expandedTemplate = env.expand(template);
+		List<String> templates = new ArrayList<String>();
+		for(String name : env.expand(template).split(",")){
+			if(name.trim().length()>0)
+				templates.add(name.trim());
+		}
+
+		List<ListenableFuture<VirtualMachine>> conversions = vsphere.markAsVmsAsync(templates);
+		Map<String, VirtualMachine> vms = new LinkedHashMap<String, VirtualMachine>();
+		boolean success = true;
+		for(int i=0; i<templates.size(); i++){
+			String name = templates.get(i);
+			try {
+				vms.put(name, VSphere.await(conversions.get(i)));
+				logger.log("\""+name+"\" is a VM!");
+			} catch (VSphereException e) {
+				logger.log("Error: Could not convert \""+name+"\": "+e.getMessage());
+				success = false;
+			}
+		}
 
-		VirtualMachine vm = vsphere.markAsVm(expandedTemplate);
-		logger.verboseLogger(jLogger, "\""+expandedTemplate+"\" is a VM!", true);
+		if(!powerOn || vms.isEmpty())
+			return success;
+
+		logger.log("Waiting a maximum of " + getIpTimeout() +" seconds for IP.");
+		if(readiness.isRequired())
+			logger.log("Then waiting a maximum of " + getIpTimeout() +" seconds for: "+readiness+".");
+		Map<String, ListenableFuture<String>> ips = startAndGetIps(vsphere, logger, readiness, vms);
+
+		VSphereEnvAction envAction = new VSphereEnvAction();
+		for(Map.Entry<String, ListenableFuture<String>> ip : ips.entrySet()){
+			String name = ip.getKey();
+			String vmIP = null;
+			try {
+				vmIP = VSphere.await(ip.getValue());
+			} catch (VSphereException e) {
+				logger.log("Error: Could not start \""+name+"\": "+e.getMessage());
+				success = false;
+				continue;
+			}
 
-		if(powerOn){
-			vsphere.startVm(expandedTemplate);
-			String vmIP = vsphere.getIp(vm); 
 			if(vmIP!=null){
-				logger.verboseLogger(jLogger, "Got IP for \""+expandedTemplate+"\" ", true);
-				VSphereEnvAction envAction = new VSphereEnvAction();
-				envAction.add("VSPHERE_IP", vmIP);
-				build.addAction(envAction);
-				return true;
+				logger.log("Got IP for \""+name+"\" ");
+				envAction.add("VSPHERE_IP_"+toEnvName(name), vmIP);
+				if(templates.size()==1)
+					envAction.add("VSPHERE_IP", vmIP);
+			}
+			else {
+				logger.log("Error: Could not get IP for \""+name+"\" ");
+				success = false;
+			}
+		}
+		build.addAction(envAction);
+		return success;
+	}
+
+	/**
+	 * Powers on every VM and waits for all of their IPs, and then for them
+	 * to be ready, at the same time.  No thread waits on a VM meanwhile.
+	 */
+	private Map<String, ListenableFuture<String>> startAndGetIps(final VSphere vsphere, final VSphereLogger logger,
+			final VSphereReadiness readiness, Map<String, VirtualMachine> vms) {
+		Map<String, ListenableFuture<String>> ips = new LinkedHashMap<String, ListenableFuture<String>>();
+		for(final Map.Entry<String, VirtualMachine> vm : vms.entrySet()){
+			ListenableFuture<TaskInfo> started;
+			try {
+				started = vsphere.startVmAsync(vm.getKey());
+			} catch (VSphereException e) {
+				started = Futures.<TaskInfo>immediateFailedFuture(e);
 			}
 
-			logger.verboseLogger(jLogger, "Error: Could not get IP for \""+expandedTemplate+"\" ", true);
-			return false;
+			ListenableFuture<String> ip = Futures.transform(started, new AsyncFunction<TaskInfo, String>() {
+				public ListenableFuture<String> apply(TaskInfo poweredOn) throws VSphereException {
+					return vsphere.getIpAsync(vm.getValue(), getIpTimeout());
+				}
+			}, VSphere.getFollowUpExecutor());
+			ips.put(vm.getKey(), Futures.transform(ip, new AsyncFunction<String, String>() {
+				public ListenableFuture<String> apply(final String vmIP) throws VSphereException {
+					if(vmIP==null || !readiness.isRequired())
+						return Futures.immediateFuture(vmIP);
+
+					ListenableFuture<String> probed = logger.getTimings().recordWhenDone(VSphereTimings.Phase.GUEST_READY,
+							System.nanoTime(), readiness.probe(vsphere, vm.getValue(), vmIP, getIpTimeout()));
+					return Futures.transform(probed, new AsyncFunction<String, String>() {
+						public ListenableFuture<String> apply(String missing) throws VSphereException {
+							if(missing!=null)
+								throw new VSphereException("not ready, "+missing);
+							return Futures.immediateFuture(vmIP);
+						}
+					});
+				}
+			}, VSphere.getFollowUpExecutor()));
 		}
+		return ips;
+	}
 
-		return true;
+	/**
+	 * VM names may contain characters that are not valid in variable names.
+	 */
+	private static String toEnvName(String name){
+		return name.replaceAll("[^A-Za-z0-9_]", "_");
 	}
 
 
@@ -163,31 +291,5 @@ public class MarkVM extends Builder {
 		public ListBoxModel doFillServerNameItems(){
 			return VSpherePlugin.DescriptorImpl.get().doFillServerItems();
 		}
-	}	
-
-
-	//TODO move to own class/file
-	/**
-	 * This class is used to inject the IP value into the build environment
-	 * as a variable so that it can be used with other plugins.
-	 * 
-	 * @author Lordahl
-	 */
-	private static class VSphereEnvAction implements EnvironmentContributingAction {
-		// Decided not to record this data in build.xml, so marked transient:
-		private transient Map<String,String> data = new HashMap<String,String>();
-
-		private void add(String key, String val) {
-			if (data==null) return;
-			data.put(key, val);
-		}
-
-		public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
-			if (data!=null) env.putAll(data);
-		}
-
-		public String getIconFileName() { return null; }
-		public String getDisplayName() { return null; }
-		public String getUrlName() { return null; }
 	}
 }
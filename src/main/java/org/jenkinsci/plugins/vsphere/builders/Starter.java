@@ -4,50 +4,100 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.BuildListener;
-import hudson.model.EnvironmentContributingAction;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
 import org.jenkinsci.plugins.vsphere.Server;
+import org.jenkinsci.plugins.vsphere.ServerRegistry;
 import org.jenkinsci.plugins.vsphere.VSpherePlugin;
 import org.jenkinsci.plugins.vsphere.tools.VSphere;
 import org.jenkinsci.plugins.vsphere.tools.VSphereConstants;
 import org.jenkinsci.plugins.vsphere.tools.VSphereException;
 import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
+import org.jenkinsci.plugins.vsphere.tools.VSphereRetry;
+import org.jenkinsci.plugins.vsphere.tools.VSphereServerSelector;
+import org.jenkinsci.plugins.vsphere.tools.VSphereTemplateCatalog;
+import org.jenkinsci.plugins.vsphere.tools.VSphereTimings;
+import org.jenkinsci.plugins.vsphere.tools.VSphereVmLease;
+import org.jenkinsci.plugins.vsphere.tools.VSphereWarmPool;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.vmware.vim25.mo.VirtualMachine;
 
 public class Starter extends Builder{
 
+	private static final String INDEX = "INDEX";
+
+	//Submits background clones, which may wait for admission, and cleans up failed ones, off the executor
+	private static final ListeningExecutorService SUBMITTER = MoreExecutors.listeningDecorator(
+			Executors.newCachedThreadPool(new DaemonThreadFactory()));
+
 	private final String template;
+	private final String templateVersion;
+	//null when serverName is a server group, whose members are picked per build
 	private final Server server;
 	private final String serverName;
 	private final String clone;
 	private final boolean powerOn;
-	private VSphere vsphere = null;
-	private final VSphereLogger logger = VSphereLogger.getVSphereLogger();
+	private final int timeoutInSeconds;
+	private final int count;
+	private final int parallelism;
+	private final boolean useWarmPool;
+	private final boolean startInBackground;
+	private final boolean waitForTools;
+	private final boolean waitForHeartbeat;
+	private final int readinessPort;
+	private final boolean probeFromNode;
 
 	@DataBoundConstructor
-	public Starter(String serverName, String template,
-			String clone, boolean powerOn) throws VSphereException {
+	public Starter(String serverName, String template, String templateVersion,
+			String clone, boolean powerOn, int timeoutInSeconds,
+			int count, int parallelism, boolean useWarmPool, boolean startInBackground,
+			boolean waitForTools, boolean waitForHeartbeat, int readinessPort, boolean probeFromNode) throws VSphereException {
 		this.template = template;
+		this.templateVersion = templateVersion;
 		this.serverName = serverName;
-		server = VSpherePlugin.DescriptorImpl.get().getServer(serverName);
+		ServerRegistry registry = VSpherePlugin.DescriptorImpl.get().getRegistry();
+		server = (registry.getGroup(serverName)!=null) ? null : VSpherePlugin.DescriptorImpl.get().getServer(serverName);
 		this.clone = clone;
 		this.powerOn = powerOn;
+		this.timeoutInSeconds = timeoutInSeconds;
+		this.count = count;
+		this.parallelism = parallelism;
+		this.useWarmPool = useWarmPool;
+		this.startInBackground = startInBackground;
+		this.waitForTools = waitForTools;
+		this.waitForHeartbeat = waitForHeartbeat;
+		this.readinessPort = readinessPort;
+		this.probeFromNode = probeFromNode;
 	}
 
 
@@ -55,6 +105,14 @@ public class Starter extends Builder{
 		return template;
 	}
 
+	/**
+	 * @return - the catalogued version of the template to clone, or null or
+	 * {@value VSphereTemplateCatalog#LATEST} for its current snapshot
+	 */
+	public String getTemplateVersion() {
+		return templateVersion;
+	}
+
 	public String getClone() {
 		return clone;
 	}
@@ -70,30 +128,107 @@ public class Starter extends Builder{
 		return powerOn;
 	}
 
+	public int getTimeoutInSeconds() {
+		return timeoutInSeconds;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public boolean isUseWarmPool() {
+		return useWarmPool;
+	}
+
+	public boolean isStartInBackground() {
+		return startInBackground;
+	}
+
+	public boolean isWaitForTools() {
+		return waitForTools;
+	}
+
+	public boolean isWaitForHeartbeat() {
+		return waitForHeartbeat;
+	}
+
+	/**
+	 * @return - port a powered on clone must accept connections on, 0 for none
+	 */
+	public int getReadinessPort() {
+		return readinessPort;
+	}
+
+	public boolean isProbeFromNode() {
+		return probeFromNode;
+	}
+
+	/**
+	 * Jobs saved before the timeout was configurable have 0 here.
+	 */
+	private int getIpTimeout() {
+		return (timeoutInSeconds > 0) ? timeoutInSeconds : VSphereConstants.IP_DEFAULT_TIMEOUT_SECONDS;
+	}
+
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) {
 
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Using server configuration: " + server.getName(), true);
+		VSphereLogger logger = VSphereLogger.forBuild(listener.getLogger());
 		boolean success=false;
 
 		try{
+			success = deployFromTemplate(getMembers(logger, build, launcher), logger, build, listener);
+		} catch(VSphereException e){
+			logger.log(e.getMessage());
+		} finally {
+			//Clones started in the background are timed by the Awaiter
+			if(!startInBackground)
+				VSphereTimingAction.record(build, getDescriptor().getDisplayName(), logger.getTimings());
+			logger.flush();
+		}
+
+		return success;
+	}
+
+	/**
+	 * @return - the configured server, or the members of the configured
+	 * group ranked by load
+	 */
+	private Members getMembers(VSphereLogger logger, AbstractBuild<?, ?> build, Launcher launcher) throws VSphereException {
+		VSphereLeaseAction leases = build.getAction(VSphereLeaseAction.class);
+		if(leases==null){
+			leases = new VSphereLeaseAction();
+			build.addAction(leases);
+		}
+		int leaseHours = VSpherePlugin.DescriptorImpl.get().getLeaseHours();
+		VSphereVmLease lease = new VSphereVmLease(build.getProject().getFullName(), build.getNumber(),
+				(leaseHours > 0) ? System.currentTimeMillis() + TimeUnit.HOURS.toMillis(leaseHours) : 0);
+		VSphereReadiness readiness = new VSphereReadiness(waitForTools, waitForHeartbeat, readinessPort,
+				probeFromNode ? launcher : null);
+
+		if(server!=null){
+			logger.log("Using server configuration: " + server.getName());
 			//Need to ensure this server still exists.  If it's deleted
 			//and a job is not opened, it will still try to connect
 			//TODO:  Need to redo this because server object will change after each reboot of jenkins.
 			VSpherePlugin.DescriptorImpl.get().checkServerExistence(server);
-			vsphere = VSphere.connect(server);
-			success = deployFromTemplate(build, launcher, listener);
-		} catch(VSphereException e){
-			logger.verboseLogger(jLogger, e.getMessage(), true);
+			return new Members(Collections.singletonList(server), logger, lease, leases, readiness);
 		}
 
-		return success;
+		List<Server> ranked = VSphereServerSelector.rank(VSpherePlugin.DescriptorImpl.get().getGroupMembers(serverName));
+		StringBuilder names = new StringBuilder();
+		for(Server member : ranked)
+			names.append((names.length()==0) ? "" : ", ").append(member.getName());
+		logger.log("Using server group: " + serverName + " (" + names + ")");
+		return new Members(ranked, logger, lease, leases, readiness);
 	}
 
-	private boolean deployFromTemplate(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) throws VSphereException {
-		PrintStream jLogger = listener.getLogger();
-		logger.verboseLogger(jLogger, "Cloning VM. Please wait ...", true);
+	private boolean deployFromTemplate(Members members, VSphereLogger logger, final AbstractBuild<?, ?> build, final BuildListener listener) throws VSphereException {
+		logger.log("Cloning VM. Please wait ...");
 
 		EnvVars env;
 		try {
@@ -102,32 +237,421 @@ public class Starter extends Builder{
 			throw new VSphereException(e);
 		}
 		env.overrideAll(build.getBuildVariables()); // Add in matrix axes..
-		String expandedClone = env.expand(clone), expandedTemplate = env.expand(template);
-
-		VirtualMachine vm = vsphere.shallowCloneVm(expandedClone, expandedTemplate, powerOn);
-		if(vm==null)
-			throw new VSphereException("VM is null");
-		
-		if(!powerOn){
-			logger.verboseLogger(jLogger, "Clone successful!");
-			return true;
-		}
+		String expandedTemplate = env.expand(template);
+		String expandedVersion = (templateVersion==null) ? null : env.expand(templateVersion);
 
-		//TODO: Removing hardcoding of wait time
-		logger.verboseLogger(jLogger, "Clone successful! Waiting a maximum of " +
-				VSphereConstants.IP_MAX_SECONDS * VSphereConstants.IP_MAX_TRIES +" seconds for IP.", true);
-		String vmIP = vsphere.getIp(vm);
+		if(startInBackground)
+			return startInBackground(members, logger, env, expandedTemplate, expandedVersion, build);
 
-		if(vmIP!=null){
-			logger.verboseLogger(jLogger, "Got IP for \""+expandedClone+"\" ", true);
+		if(count <= 1){
+			Deployed deployed = deployClone(members, logger, env.expand(clone), expandedTemplate, expandedVersion);
 			VSphereEnvAction envAction = new VSphereEnvAction();
-			envAction.add("VSPHERE_IP", vmIP);
+			envAction.add("VSPHERE_SERVER", deployed.getServer());
+			if(deployed.getIp()!=null)
+				envAction.add("VSPHERE_IP", deployed.getIp());
 			build.addAction(envAction);
-			return true;
+			return deployed.getIp()!=null || !powerOn;
+		}
+
+		return deployClones(members, logger, env, expandedTemplate, expandedVersion, build);
+	}
+
+	/**
+	 * Expands the clone name once per index of the batch.
+	 *
+	 * @return - the names, in index order
+	 * @throws VSphereException - two clones would get the same name
+	 */
+	private List<String> expandCloneNames(EnvVars env, int clones) throws VSphereException {
+		List<String> names = new ArrayList<String>(clones);
+		Set<String> distinct = new HashSet<String>();
+		for(int i=1; i<=clones; i++){
+			EnvVars indexEnv = new EnvVars(env);
+			indexEnv.put(INDEX, String.valueOf(i));
+			String expandedClone = indexEnv.expand(clone);
+			if(!distinct.add(expandedClone))
+				throw new VSphereException("The clone name must contain ${"+INDEX+"} when creating more than one clone, \""
+						+expandedClone+"\" would be used twice");
+			names.add(expandedClone);
+		}
+		return names;
+	}
+
+	/**
+	 * Starts the clones of a batch, no more than the configured parallelism
+	 * at a time, and exports each IP as VSPHERE_IP_&lt;index&gt;.  The clones
+	 * hold no thread while vCenter works, and admission control bounds how
+	 * many run at a time across builds.
+	 */
+	private boolean deployClones(Members members, VSphereLogger logger, EnvVars env, String expandedTemplate,
+			String expandedVersion, AbstractBuild<?, ?> build) throws VSphereException {
+
+		int inFlight = Math.min(count, (parallelism > 0) ? parallelism : count);
+		logger.log("Creating "+count+" clones of \""+expandedTemplate+"\", "+inFlight+" at a time.");
+
+		List<String> names = expandCloneNames(env, count);
+		List<ListenableFuture<Deployed>> results = new ArrayList<ListenableFuture<Deployed>>(count);
+		final Semaphore slots = new Semaphore(inFlight);
+		try {
+			for(String expandedClone : names){
+				slots.acquire();
+				ListenableFuture<Deployed> result;
+				try {
+					result = startClone(members, logger, expandedClone, expandedTemplate, expandedVersion);
+				} catch (VSphereException e) {
+					result = Futures.immediateFailedFuture(e);
+				}
+				result.addListener(new Runnable() {
+					public void run() {
+						slots.release();
+					}
+				}, MoreExecutors.sameThreadExecutor());
+				results.add(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VSphereException(e);
 		}
 
-		logger.verboseLogger(jLogger, "Error: Could not get IP for \""+expandedClone+"\" ", true);
-		return false;
+		VSphereEnvAction envAction = new VSphereEnvAction();
+		boolean success = true;
+		for(int i=0; i<results.size(); i++){
+			try {
+				Deployed deployed = VSphere.await(results.get(i));
+				envAction.add("VSPHERE_NAME_"+(i+1), names.get(i));
+				envAction.add("VSPHERE_SERVER_"+(i+1), deployed.getServer());
+				if(deployed.getIp()!=null)
+					envAction.add("VSPHERE_IP_"+(i+1), deployed.getIp());
+				else if(powerOn)
+					success = false;
+			} catch (VSphereException e) {
+				logger.log("Error: Could not create \""+names.get(i)+"\": "+e.getMessage());
+				success = false;
+			}
+		}
+		build.addAction(envAction);
+		return success;
+	}
+
+	/**
+	 * Hands every clone to a background thread and returns, leaving the
+	 * executor to the following build steps.  An {@link Awaiter} step waits
+	 * for the clones and exports VSPHERE_IP, or VSPHERE_NAME_&lt;index&gt; and
+	 * VSPHERE_IP_&lt;index&gt; for a batch.  Admission control bounds how
+	 * many clones run at a time, so the parallelism setting does not apply.
+	 */
+	private boolean startInBackground(final Members members, final VSphereLogger logger, EnvVars env, final String expandedTemplate,
+			final String expandedVersion, final AbstractBuild<?, ?> build) throws VSphereException {
+
+		int clones = Math.max(1, count);
+		List<String> names = expandCloneNames(env, clones);
+
+		VSpherePendingAction pending = build.getAction(VSpherePendingAction.class);
+		if(pending==null){
+			pending = new VSpherePendingAction();
+			build.addAction(pending);
+		}
+
+		for(int i=1; i<=clones; i++){
+			final String expandedClone = names.get(i-1);
+			ListenableFuture<ListenableFuture<Deployed>> submitted = SUBMITTER.submit(new Callable<ListenableFuture<Deployed>>() {
+				public ListenableFuture<Deployed> call() throws Exception {
+					return startClone(members, logger, expandedClone, expandedTemplate, expandedVersion);
+				}
+			});
+			pending.add(new VSpherePendingAction.Pending(expandedClone, (count > 1) ? i : 0, powerOn, logger,
+					Futures.transform(submitted, new AsyncFunction<ListenableFuture<Deployed>, Deployed>() {
+						public ListenableFuture<Deployed> apply(ListenableFuture<Deployed> started) {
+							return started;
+						}
+					})));
+		}
+
+		logger.log("Starting "+clones+" clone(s) of \""+expandedTemplate+"\" in the background.");
+		return true;
+	}
+
+	/**
+	 * Asynchronous variant of {@link #deployClone(Members, VSphereLogger, String, String, String)},
+	 * holding no thread while vCenter clones and the guest boots.  Only
+	 * failures up to the submission of the clone task move on to the next
+	 * member; a clone task that fails later fails the clone.
+	 */
+	private ListenableFuture<Deployed> startClone(final Members members, final VSphereLogger logger, final String expandedClone,
+			String expandedTemplate, String expandedVersion) throws VSphereException {
+		VSphereException failure = null;
+		for(final Server member : members.getUsable()){
+			final String memberName = member.getName();
+			final VSphere vsphere;
+			ListenableFuture<VirtualMachine> cloned;
+			boolean cloning = false;
+			try {
+				if(useWarmPool && powerOn && VSphereTemplateCatalog.isLatest(expandedVersion)){
+					VSphereWarmPool.WarmVm warm = VSphereWarmPool.get().claim(member, expandedTemplate, expandedClone);
+					if(warm!=null){
+						logger.log("Claimed a warm VM of \""+expandedTemplate+"\" as \""+expandedClone+"\"");
+						members.lease(member, warm.getVm(), expandedClone);
+						return Futures.immediateFuture(new Deployed(memberName, warm.getIp()));
+					}
+					logger.log("No warm VM of \""+expandedTemplate+"\" ready, cloning instead.");
+				}
+
+				vsphere = members.connect(member);
+				cloning = true;
+				cloned = vsphere.shallowCloneVmAsync(expandedClone, expandedTemplate, expandedVersion, powerOn);
+			} catch (VSphereException e) {
+				members.failOver(member, expandedClone, e, cloning);
+				failure = e;
+				continue;
+			}
+			Futures.addCallback(cloned, new FutureCallback<VirtualMachine>() {
+				public void onSuccess(VirtualMachine vm) {
+					VSphereServerSelector.markHealthy(member);
+				}
+
+				public void onFailure(Throwable t) {
+					if(!VSphere.isDuplicateName(t))
+						members.discard(member, expandedClone);
+				}
+			}, SUBMITTER);
+
+			ListenableFuture<String> ip = Futures.transform(cloned, new AsyncFunction<VirtualMachine, String>() {
+				public ListenableFuture<String> apply(VirtualMachine vm) throws VSphereException {
+					members.lease(member, vm, expandedClone);
+					if(!powerOn){
+						logger.verbose("Clone of \""+expandedClone+"\" successful!");
+						return Futures.<String>immediateFuture(null);
+					}
+
+					logger.log("Clone of \""+expandedClone+"\" successful! Waiting a maximum of " +
+							getIpTimeout() +" seconds for IP.");
+					final VirtualMachine started = vm;
+					return Futures.transform(vsphere.getIpAsync(vm, getIpTimeout()), new AsyncFunction<String, String>() {
+						public ListenableFuture<String> apply(String vmIP) throws VSphereException {
+							return members.whenReady(vsphere, started, expandedClone, vmIP);
+						}
+					}, VSphere.getFollowUpExecutor());
+				}
+			}, VSphere.getFollowUpExecutor());
+			return Futures.transform(ip, new Function<String, Deployed>() {
+				public Deployed apply(String vmIP) {
+					return new Deployed(memberName, vmIP);
+				}
+			});
+		}
+		throw members.noneLeft(failure);
+	}
+
+	/**
+	 * Clones on the best member that can be logged in to, moving on to the
+	 * next member when logging in or the clone fails.  Once the clone
+	 * exists, waiting for its IP stays on that member.
+	 *
+	 * @return - server and IP of the new clone; the IP is null if not
+	 * powered on or no IP was reported
+	 */
+	private Deployed deployClone(Members members, VSphereLogger logger, String expandedClone, String expandedTemplate,
+			String expandedVersion) throws VSphereException {
+		VSphereException failure = null;
+		for(Server member : members.getUsable()){
+			VSphere vsphere;
+			VirtualMachine vm;
+			boolean cloning = false;
+			try {
+				//Warm VMs are always powered on clones of the current snapshot, so they
+				//only stand in for powered on clones of the latest version
+				if(useWarmPool && powerOn && VSphereTemplateCatalog.isLatest(expandedVersion)){
+					VSphereWarmPool.WarmVm warm = VSphereWarmPool.get().claim(member, expandedTemplate, expandedClone);
+					if(warm!=null){
+						logger.log("Claimed a warm VM of \""+expandedTemplate+"\" as \""+expandedClone+"\"");
+						members.lease(member, warm.getVm(), expandedClone);
+						return new Deployed(member.getName(), warm.getIp());
+					}
+					logger.log("No warm VM of \""+expandedTemplate+"\" ready, cloning instead.");
+				}
+
+				vsphere = members.connect(member);
+				cloning = true;
+				vm = vsphere.shallowCloneVm(expandedClone, expandedTemplate, expandedVersion, powerOn);
+				if(vm==null)
+					throw new VSphereException("VM is null");
+			} catch (VSphereException e) {
+				members.failOver(member, expandedClone, e, cloning);
+				failure = e;
+				continue;
+			}
+			VSphereServerSelector.markHealthy(member);
+			members.lease(member, vm, expandedClone);
+
+			if(!powerOn){
+				logger.verbose("Clone of \""+expandedClone+"\" successful!");
+				return new Deployed(member.getName(), null);
+			}
+
+			logger.log("Clone of \""+expandedClone+"\" successful! Waiting a maximum of " +
+					getIpTimeout() +" seconds for IP.");
+			String vmIP = vsphere.getIp(vm, getIpTimeout());
+
+			if(vmIP!=null)
+				logger.log("Got IP for \""+expandedClone+"\" ");
+			else
+				logger.log("Error: Could not get IP for \""+expandedClone+"\" ");
+			return new Deployed(member.getName(), VSphere.await(members.whenReady(vsphere, vm, expandedClone, vmIP)));
+		}
+		throw members.noneLeft(failure);
+	}
+
+	/**
+	 * Where a clone ended up.
+	 */
+	static final class Deployed {
+		private final String server;
+		private final String ip;
+
+		Deployed(String server, String ip) {
+			this.server = server;
+			this.ip = ip;
+		}
+
+		String getServer() { return server; }
+		String getIp() { return ip; }
+	}
+
+	/**
+	 * The servers one step may clone on, best first, each connected on first
+	 * use.  A member that fails is skipped by the step's later clones, and
+	 * one that could not be reached also sits out for other builds.  Every
+	 * clone is leased to the step's build.
+	 */
+	private final class Members {
+		private final List<Server> servers;
+		private final VSphereLogger logger;
+		private final VSphereVmLease lease;
+		private final VSphereLeaseAction leases;
+		private final VSphereReadiness readiness;
+		private final Map<Integer, VSphere> connections = new HashMap<Integer, VSphere>();
+		private final Set<Integer> failed = new HashSet<Integer>();
+
+		Members(List<Server> servers, VSphereLogger logger, VSphereVmLease lease, VSphereLeaseAction leases,
+				VSphereReadiness readiness) {
+			this.servers = servers;
+			this.logger = logger;
+			this.lease = lease;
+			this.leases = leases;
+			this.readiness = readiness;
+		}
+
+		synchronized List<Server> getUsable() {
+			List<Server> usable = new ArrayList<Server>(servers.size());
+			for(Server member : servers)
+				if(!failed.contains(member.getHash()))
+					usable.add(member);
+			return usable;
+		}
+
+		synchronized VSphere connect(Server member) throws VSphereException {
+			VSphere vsphere = connections.get(member.getHash());
+			if(vsphere==null){
+				vsphere = VSphere.connect(member, logger, lease.getOwner());
+				connections.put(member.getHash(), vsphere);
+			}
+			return vsphere;
+		}
+
+		/**
+		 * Records a new clone on the build and tags it with the lease, so it
+		 * is reaped if the build leaves it behind.  A clone that could not
+		 * be tagged is left alone by the reapers.
+		 */
+		void lease(Server member, VirtualMachine vm, String expandedClone) {
+			leases.add(member.getName(), expandedClone);
+			try {
+				connect(member).leaseVm(vm, lease);
+			} catch (VSphereException e) {
+				logger.log("Could not lease \""+expandedClone+"\": "+e.getMessage());
+			}
+		}
+
+		/**
+		 * Gives up on a member for this step, unless it is the only server.
+		 * A clone that failed is discarded first, since vCenter may have
+		 * created it before failing.  A clone whose name is taken does not
+		 * move on: the name belongs to another VM, not to a failed clone.
+		 *
+		 * @param cloned - whether the clone was attempted on the member
+		 * @throws VSphereException - the failure, when there is no group to
+		 * fail over in or the name is taken
+		 */
+		void failOver(Server member, String expandedClone, VSphereException failure, boolean cloned) throws VSphereException {
+			if(VSphere.isDuplicateName(failure))
+				throw failure;
+			if(cloned)
+				discard(member, expandedClone);
+			if(servers.size()<=1)
+				throw failure;
+
+			synchronized(this){
+				failed.add(member.getHash());
+			}
+			if(VSphereRetry.isRetryable(failure))
+				VSphereServerSelector.markFailed(member);
+			logger.log("Could not create \""+expandedClone+"\" on "+member.getName()+": "+failure.getMessage());
+		}
+
+		/**
+		 * Probes a powered on clone that reported its IP, in a window as long
+		 * as the IP timeout.  Only failures up to here fail over; a clone that
+		 * does not become ready fails the step.
+		 *
+		 * @return - future completed with the IP once the clone is ready
+		 */
+		ListenableFuture<String> whenReady(VSphere vsphere, VirtualMachine vm, final String expandedClone, final String vmIP) throws VSphereException {
+			if(vmIP==null || !readiness.isRequired())
+				return Futures.immediateFuture(vmIP);
+
+			logger.log("Waiting a maximum of "+getIpTimeout()+" seconds for \""+expandedClone+"\" to be ready: "+readiness+".");
+			ListenableFuture<String> probed = logger.getTimings().recordWhenDone(VSphereTimings.Phase.GUEST_READY, System.nanoTime(),
+					readiness.probe(vsphere, vm, vmIP, getIpTimeout()));
+			return Futures.transform(probed, new AsyncFunction<String, String>() {
+				public ListenableFuture<String> apply(String missing) throws VSphereException {
+					if(missing!=null)
+						throw new VSphereException("\""+expandedClone+"\" did not become ready: "+missing);
+					logger.log("\""+expandedClone+"\" is ready");
+					return Futures.immediateFuture(vmIP);
+				}
+			});
+		}
+
+		/**
+		 * Leases a clone that failed part way, if its task made it anyway, so
+		 * it is no orphan, and destroys it if deleting VMs is allowed.  A VM
+		 * that already had the name is someone else's and is left alone.
+		 */
+		void discard(Server member, String expandedClone) {
+			try {
+				VSphere vsphere = connect(member);
+				VirtualMachine vm = vsphere.getFailedClone(expandedClone);
+				if(vm==null)
+					return;
+
+				lease(member, vm, expandedClone);
+				if(!VSpherePlugin.DescriptorImpl.allowDelete()){
+					logger.log("Leaving the failed clone \""+expandedClone+"\" on "+member.getName()+", deleting VMs is disabled");
+					return;
+				}
+				vsphere.destroyVm(expandedClone, false);
+				leases.remove(expandedClone);
+				logger.log("Destroyed the failed clone \""+expandedClone+"\" on "+member.getName());
+			} catch (VSphereException e) {
+				logger.log("Could not clean up the failed clone \""+expandedClone+"\" on "+member.getName()+": "+e.getMessage());
+			}
+		}
+
+		VSphereException noneLeft(VSphereException lastFailure) {
+			if(lastFailure!=null)
+				return lastFailure;
+			return new VSphereException("No server of group "+serverName+" is left to clone on");
+		}
 	}
 
 
@@ -189,32 +713,7 @@ public class Starter extends Builder{
 		}
 
 		public ListBoxModel doFillServerNameItems(){
-			return VSpherePlugin.DescriptorImpl.get().doFillServerItems();
+			return VSpherePlugin.DescriptorImpl.get().doFillServerOrGroupItems();
 		}
 	}
-
-	/**
-	 * This class is used to inject the IP value into the build environment
-	 * as a variable so that it can be used with other plugins.
-	 * 
-	 * @author Lordahl
-	 */
-	private static class VSphereEnvAction implements EnvironmentContributingAction {
-		// Decided not to record this data in build.xml, so marked transient:
-		private transient Map<String,String> data = new HashMap<String,String>();
-
-		private void add(String key, String val) {
-			if (data==null) return;
-			data.put(key, val);
-		}
-
-		public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
-			if (data!=null) env.putAll(data);
-		}
-
-		public String getIconFileName() { return null; }
-		public String getDisplayName() { return null; }
-		public String getUrlName() { return null; }
-	}
-
 }
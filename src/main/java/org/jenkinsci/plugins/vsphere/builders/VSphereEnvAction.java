@@ -0,0 +1,30 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.EnvVars;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.AbstractBuild;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class is used to inject the IP value into the build environment
+ * as a variable so that it can be used with other plugins.
+ */
+class VSphereEnvAction implements EnvironmentContributingAction {
+	// Decided not to record this data in build.xml, so marked transient:
+	private transient Map<String,String> data = new HashMap<String,String>();
+
+	synchronized void add(String key, String val) {
+		if (data==null) return;
+		data.put(key, val);
+	}
+
+	public synchronized void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
+		if (data!=null) env.putAll(data);
+	}
+
+	public String getIconFileName() { return null; }
+	public String getDisplayName() { return null; }
+	public String getUrlName() { return null; }
+}
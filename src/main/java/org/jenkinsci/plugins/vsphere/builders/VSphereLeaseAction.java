@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The VMs a build cloned and has not destroyed yet, by server name.  Kept
+ * in build.xml, so the VMs can still be reaped when the build is deleted
+ * after a restart.
+ */
+class VSphereLeaseAction implements Action {
+	private Map<String, List<String>> leased = new LinkedHashMap<String, List<String>>();
+
+	synchronized void add(String serverName, String vm) {
+		if (leased==null) leased = new LinkedHashMap<String, List<String>>();
+		List<String> vms = leased.get(serverName);
+		if (vms==null) {
+			vms = new ArrayList<String>();
+			leased.put(serverName, vms);
+		}
+		if (!vms.contains(vm)) vms.add(vm);
+	}
+
+	/**
+	 * Forgets a VM the build destroyed, on whichever server it was.
+	 */
+	synchronized void remove(String vm) {
+		if (leased==null) return;
+		for (List<String> vms : leased.values())
+			vms.remove(vm);
+	}
+
+	/**
+	 * @return - every VM still leased, by server name
+	 */
+	synchronized Map<String, List<String>> getLeased() {
+		Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+		if (leased==null) return copy;
+		for (Map.Entry<String, List<String>> vms : leased.entrySet())
+			if (!vms.getValue().isEmpty())
+				copy.put(vms.getKey(), new ArrayList<String>(vms.getValue()));
+		return copy;
+	}
+
+	public String getIconFileName() { return null; }
+	public String getDisplayName() { return null; }
+	public String getUrlName() { return null; }
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.vsphere.VSpherePlugin;
+import org.jenkinsci.plugins.vsphere.tools.VSphere;
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.jenkinsci.plugins.vsphere.tools.VSphereLeaseReaper;
+import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
+import org.jenkinsci.plugins.vsphere.tools.VSphereVmLease;
+
+/**
+ * Reaps the clones a build left behind when the build ends or is deleted,
+ * if the global configuration asks for it.
+ */
+@Extension
+public class VSphereLeaseListener extends RunListener<AbstractBuild> {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereLeaseListener.class.getName());
+
+	public VSphereLeaseListener() {
+		super(AbstractBuild.class);
+	}
+
+	@Override
+	public void onCompleted(AbstractBuild build, TaskListener listener) {
+		VSphereLeaseAction leases = build.getAction(VSphereLeaseAction.class);
+		if(leases==null || !VSpherePlugin.DescriptorImpl.get().isReapWhenBuildEnds())
+			return;
+
+		VSphereLogger logger = VSphereLogger.forBuild(listener.getLogger());
+		try {
+			if(reap(build, leases, logger)){
+				try {
+					build.save();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not save "+build, e);
+				}
+			}
+		} finally {
+			logger.flush();
+		}
+	}
+
+	@Override
+	public void onDeleted(final AbstractBuild build) {
+		final VSphereLeaseAction leases = build.getAction(VSphereLeaseAction.class);
+		if(leases==null || leases.getLeased().isEmpty() || !VSpherePlugin.DescriptorImpl.get().isReapWhenBuildDeleted())
+			return;
+
+		//Deleting a build must not wait for vCenter
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				reap(build, leases, VSphereLogger.forBackground());
+			}
+		});
+	}
+
+	/**
+	 * Reaps only the VMs still leased to the build, so a later build that
+	 * reused a clone name keeps its VM.
+	 *
+	 * @return - whether any VM was reaped or forgotten
+	 */
+	private static boolean reap(AbstractBuild build, VSphereLeaseAction leases, VSphereLogger logger) {
+		if(!VSpherePlugin.DescriptorImpl.allowDelete())
+			return false;
+
+		String owner = new VSphereVmLease(build.getProject().getFullName(), build.getNumber(), 0).getOwner();
+		boolean reaped = false;
+		for(Map.Entry<String, List<String>> leased : leases.getLeased().entrySet()){
+			try {
+				VSphere vsphere = VSphere.connect(VSpherePlugin.DescriptorImpl.get().getServer(leased.getKey()), logger);
+				logger.log("Reaping "+leased.getValue().size()+" VM(s) left on "+leased.getKey()+" ...");
+				for(String vm : VSphereLeaseReaper.reap(vsphere, leased.getValue(), owner, logger)){
+					leases.remove(vm);
+					reaped = true;
+				}
+			} catch (VSphereException e) {
+				logger.log("Error: Could not reap VMs on "+leased.getKey()+": "+e.getMessage());
+			}
+		}
+		return reaped;
+	}
+}
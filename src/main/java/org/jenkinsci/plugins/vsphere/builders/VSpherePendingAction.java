@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereLogger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Clones a {@link Starter} left starting in the background, for an
+ * {@link Awaiter} later in the same build to wait for.
+ */
+class VSpherePendingAction implements Action {
+	// Futures cannot outlive the build's process, so nothing is recorded in build.xml:
+	private transient List<Pending> pending = new ArrayList<Pending>();
+
+	synchronized void add(Pending clone) {
+		if (pending==null) pending = new ArrayList<Pending>();
+		pending.add(clone);
+	}
+
+	/**
+	 * @return - every clone started since the last call
+	 */
+	synchronized List<Pending> takeAll() {
+		List<Pending> taken = (pending==null) ? new ArrayList<Pending>() : pending;
+		pending = new ArrayList<Pending>();
+		return taken;
+	}
+
+	public String getIconFileName() { return null; }
+	public String getDisplayName() { return null; }
+	public String getUrlName() { return null; }
+
+	static final class Pending {
+		private final String name;
+		private final int index;
+		private final boolean powerOn;
+		private final VSphereLogger logger;
+		private final ListenableFuture<Starter.Deployed> deployed;
+
+		/**
+		 * @param index - position in a batch of clones, or 0 for a single clone
+		 * @param logger - log of the step that started the clone
+		 * @param deployed - future completed with the clone's server and IP;
+		 * the IP is null if it is not powered on or reported no IP
+		 */
+		Pending(String name, int index, boolean powerOn, VSphereLogger logger, ListenableFuture<Starter.Deployed> deployed) {
+			this.name = name;
+			this.index = index;
+			this.powerOn = powerOn;
+			this.logger = logger;
+			this.deployed = deployed;
+		}
+
+		String getName() { return name; }
+		int getIndex() { return index; }
+		boolean isPowerOn() { return powerOn; }
+		VSphereLogger getLogger() { return logger; }
+		ListenableFuture<Starter.Deployed> getDeployed() { return deployed; }
+	}
+}
@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphere;
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.jenkinsci.plugins.vsphere.tools.VSpherePortProbe;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * When a VM of a step counts as ready: VMware Tools running, the guest
+ * heartbeat green, a TCP port open, or any of these together.  The probes
+ * of a VM run at the same time, and so do those of all VMs of a step, so
+ * the step ends as soon as its last VM is ready.  Guest conditions are
+ * watched through the server's task monitor; ports are probed from the
+ * controller's selector thread, or from the node the build runs on.
+ */
+final class VSphereReadiness {
+	private final boolean toolsRunning;
+	private final boolean heartbeatGreen;
+	private final int port;
+	//null to probe ports from the controller
+	private final VirtualChannel node;
+
+	/**
+	 * @param port - port that must accept connections, 0 for none
+	 * @param launcher - launcher of the build's node, or null to probe
+	 * ports from the controller
+	 */
+	VSphereReadiness(boolean toolsRunning, boolean heartbeatGreen, int port, Launcher launcher) {
+		this.toolsRunning = toolsRunning;
+		this.heartbeatGreen = heartbeatGreen;
+		this.port = port;
+		this.node = (launcher==null) ? null : launcher.getChannel();
+	}
+
+	/**
+	 * @return - whether there is anything to wait for besides the IP
+	 */
+	boolean isRequired() {
+		return toolsRunning || heartbeatGreen || port > 0;
+	}
+
+	/**
+	 * Starts probing a VM.
+	 *
+	 * @param vsphere - connection to the VM's server
+	 * @param ip - the VM's IP, to probe the port of
+	 * @return - future completed with null once the VM is ready, or with
+	 * what was not ready at the deadline
+	 */
+	ListenableFuture<String> probe(VSphere vsphere, VirtualMachine vm, String ip, int timeoutInSeconds) throws VSphereException {
+		List<ListenableFuture<String>> probes = new ArrayList<ListenableFuture<String>>(2);
+		if(toolsRunning || heartbeatGreen)
+			probes.add(vsphere.waitForGuestAsync(vm, toolsRunning, heartbeatGreen, timeoutInSeconds));
+		if(port > 0)
+			probes.add((ip==null) ? Futures.immediateFuture("no IP to probe port "+port)
+					: probePort(ip, timeoutInSeconds));
+
+		return Futures.transform(Futures.allAsList(probes), new Function<List<String>, String>() {
+			public String apply(List<String> results) {
+				StringBuilder missing = new StringBuilder();
+				for(String result : results)
+					if(result!=null)
+						missing.append((missing.length()==0) ? "" : ", ").append(result);
+				return (missing.length()==0) ? null : missing.toString();
+			}
+		});
+	}
+
+	private ListenableFuture<String> probePort(final String ip, int timeoutInSeconds) throws VSphereException {
+		ListenableFuture<Boolean> open;
+		try {
+			if(node==null){
+				open = VSpherePortProbe.get().probe(ip, port, timeoutInSeconds);
+			}
+			else {
+				//Waits on a pool thread, the node runs the same selector
+				open = JdkFutureAdapters.listenInPoolThread(node.callAsync(new PortProbe(ip, port, timeoutInSeconds)));
+			}
+		} catch (IOException e) {
+			throw new VSphereException("Could not probe port "+port+" of "+ip, e);
+		}
+
+		return Futures.transform(open, new Function<Boolean, String>() {
+			public String apply(Boolean accepted) {
+				return Boolean.TRUE.equals(accepted) ? null : "port "+port+" of "+ip+" closed";
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder conditions = new StringBuilder();
+		if(toolsRunning)
+			conditions.append("VMware Tools running");
+		if(heartbeatGreen)
+			conditions.append((conditions.length()==0) ? "" : ", ").append("heartbeat green");
+		if(port > 0)
+			conditions.append((conditions.length()==0) ? "" : ", ").append("port ").append(port)
+					.append((node==null) ? " open from Jenkins" : " open from the build's node");
+		return conditions.toString();
+	}
+
+	/**
+	 * Waits for a port on the node the build runs on.
+	 */
+	private static final class PortProbe implements Callable<Boolean, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String ip;
+		private final int port;
+		private final int timeoutInSeconds;
+
+		PortProbe(String ip, int port, int timeoutInSeconds) {
+			this.ip = ip;
+			this.port = port;
+			this.timeoutInSeconds = timeoutInSeconds;
+		}
+
+		public Boolean call() throws IOException {
+			try {
+				return VSpherePortProbe.get().probe(ip, port, timeoutInSeconds).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while probing port "+port+" of "+ip);
+			} catch (ExecutionException e) {
+				throw new IOException("Could not probe port "+port+" of "+ip+": "+e.getCause());
+			}
+		}
+	}
+}
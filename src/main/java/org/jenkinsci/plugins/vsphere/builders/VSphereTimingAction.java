@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereTimings;
+
+/**
+ * How long each vSphere step of a build spent looking up VMs, in clone
+ * tasks, powering on, waiting for IPs and ready guests, and destroying.
+ * Kept in build.xml, for {@link VSphereTimingTrendAction} to chart.
+ */
+public class VSphereTimingAction implements Action {
+	private List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * Adds a step's timings to its build, unless the step did no timed work.
+	 *
+	 * @param step - name of the step, as shown on the build's page
+	 */
+	static void record(AbstractBuild<?, ?> build, String step, VSphereTimings timings) {
+		if (timings.isEmpty()) return;
+
+		VSphereTimingAction action = build.getAction(VSphereTimingAction.class);
+		if (action==null) {
+			action = new VSphereTimingAction();
+			build.addAction(action);
+		}
+		action.add(new Step(step, timings));
+	}
+
+	synchronized void add(Step step) {
+		if (steps==null) steps = new ArrayList<Step>();
+		steps.add(step);
+	}
+
+	public synchronized List<Step> getSteps() {
+		return (steps==null) ? new ArrayList<Step>() : new ArrayList<Step>(steps);
+	}
+
+	/**
+	 * @return - time all steps spent in a phase, in milliseconds
+	 */
+	public long getMillis(VSphereTimings.Phase phase) {
+		long millis = 0;
+		for (Step step : getSteps())
+			millis += step.getMillis(phase);
+		return millis;
+	}
+
+	public VSphereTimings.Phase[] getPhases() {
+		return VSphereTimings.Phase.values();
+	}
+
+	public String getIconFileName() { return "clock.png"; }
+	public String getDisplayName() { return Messages.vm_title_Timings(); }
+	public String getUrlName() { return "vsphere-timings"; }
+
+	/**
+	 * The timings of one step, by phase name.
+	 */
+	public static final class Step {
+		private final String name;
+		private final long elapsedMillis;
+		private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+		Step(String name, VSphereTimings timings) {
+			this.name = name;
+			this.elapsedMillis = timings.getElapsedMillis();
+			for (VSphereTimings.Phase phase : VSphereTimings.Phase.values())
+				phases.put(phase.name(), timings.getMillis(phase));
+		}
+
+		public String getName() { return name; }
+
+		/**
+		 * @return - wall clock time from the start of the step until its
+		 * timings were recorded
+		 */
+		public long getElapsedMillis() { return elapsedMillis; }
+
+		/**
+		 * @return - 0 for phases added after the build
+		 */
+		public long getMillis(VSphereTimings.Phase phase) {
+			Long millis = phases.get(phase.name());
+			return (millis==null) ? 0 : millis;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Project;
+import hudson.model.TransientProjectActionFactory;
+import hudson.tasks.Builder;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereTimings;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.ui.RectangleInsets;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Trend of the {@link VSphereTimingAction} of a project's recent builds, as
+ * a chart of the seconds spent in each phase stacked per build.  Shown on
+ * the page of every project with a vSphere step.
+ */
+public class VSphereTimingTrendAction implements Action {
+
+	//Enough builds to show a few weeks of a job built several times a day
+	private static final int MAX_BUILDS = 100;
+
+	private final AbstractProject<?, ?> project;
+
+	VSphereTimingTrendAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	/**
+	 * @return - whether any recent build recorded timings, to show the chart
+	 */
+	public boolean isCharted() {
+		int builds = 0;
+		for (AbstractBuild<?, ?> build = project.getLastCompletedBuild(); build!=null && builds<MAX_BUILDS;
+				build = build.getPreviousCompletedBuild(), builds++)
+			if (build.getAction(VSphereTimingAction.class)!=null)
+				return true;
+		return false;
+	}
+
+	public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		if (ChartUtil.awtProblemCause!=null) {
+			rsp.sendRedirect2(req.getContextPath()+"/images/headless.png");
+			return;
+		}
+
+		AbstractBuild<?, ?> last = project.getLastCompletedBuild();
+		if (last==null || req.checkIfModified(last.getTimestamp(), rsp))
+			return;
+
+		new Graph(last.getTimestamp(), 500, 200) {
+			@Override
+			protected JFreeChart createGraph() {
+				return createChart(buildDataSet());
+			}
+		}.doPng(req, rsp);
+	}
+
+	private CategoryDataset buildDataSet() {
+		DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+		int builds = 0;
+		for (AbstractBuild<?, ?> build = project.getLastCompletedBuild(); build!=null && builds<MAX_BUILDS;
+				build = build.getPreviousCompletedBuild(), builds++) {
+			VSphereTimingAction timings = build.getAction(VSphereTimingAction.class);
+			if (timings==null) continue;
+
+			ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(build);
+			for (VSphereTimings.Phase phase : VSphereTimings.Phase.values())
+				data.add(timings.getMillis(phase) / 1000.0, phase.getDisplayName(), label);
+		}
+		return data.build();
+	}
+
+	private static JFreeChart createChart(CategoryDataset dataset) {
+		JFreeChart chart = ChartFactory.createStackedAreaChart(null, null, "seconds", dataset,
+				PlotOrientation.VERTICAL, true, true, false);
+		chart.setBackgroundPaint(Color.white);
+
+		CategoryPlot plot = chart.getCategoryPlot();
+		plot.setBackgroundPaint(Color.WHITE);
+		plot.setOutlinePaint(null);
+		plot.setForegroundAlpha(0.8f);
+		plot.setRangeGridlinesVisible(true);
+		plot.setRangeGridlinePaint(Color.black);
+
+		CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+		plot.setDomainAxis(domainAxis);
+		domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+		domainAxis.setLowerMargin(0.0);
+		domainAxis.setUpperMargin(0.0);
+		domainAxis.setCategoryMargin(0.0);
+
+		NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+		rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+
+		plot.setInsets(new RectangleInsets(0, 0, 0, 5.0));
+		return chart;
+	}
+
+	//Only the chart on the project's page, no page of its own
+	public String getIconFileName() { return null; }
+	public String getDisplayName() { return Messages.vm_title_Timings(); }
+	public String getUrlName() { return "vsphere-timings"; }
+
+	/**
+	 * Adds the trend to projects with a vSphere step.
+	 */
+	@Extension
+	public static final class Factory extends TransientProjectActionFactory {
+		@Override
+		public Collection<? extends Action> createFor(AbstractProject target) {
+			if (!(target instanceof Project)) return Collections.emptyList();
+
+			for (Builder builder : ((Project<?, ?>) target).getBuilders()) {
+				if (builder instanceof Starter || builder instanceof Destroyer || builder instanceof MarkVM
+						|| builder instanceof Awaiter)
+					return Collections.singletonList(new VSphereTimingTrendAction(target));
+			}
+			return Collections.emptyList();
+		}
+	}
+}
@@ -1,30 +1,48 @@
 package org.jenkinsci.plugins.vsphere.tools;
 
 
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import org.jenkinsci.plugins.vsphere.Server;
 
-import com.vmware.vim25.FileFault;
-import com.vmware.vim25.InsufficientResourcesFault;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.vmware.vim25.DuplicateName;
 import com.vmware.vim25.InvalidProperty;
-import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.RuntimeFault;
-import com.vmware.vim25.TaskInProgress;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.VirtualMachineCloneSpec;
 import com.vmware.vim25.VirtualMachinePowerState;
 import com.vmware.vim25.VirtualMachineRelocateSpec;
-import com.vmware.vim25.VmConfigFault;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.HostSystem;
-import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServerConnection;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
 
 
 /**
@@ -32,29 +50,93 @@ import com.vmware.vim25.mo.VirtualMachine;
  *
  */
 public class VSphere {
-	private final URL url;
-	private final String session;
-	
-	private VSphere(String url, String user, String pw) throws VSphereException{
-		
-		try {
-			this.url = new URL(url);
-			this.session = (new ServiceInstance(this.url, user, pw, true)).getServerConnection().getSessionStr();
-		} catch (Exception e) {
-			throw new VSphereException(e);
-		}
+	//Shared by every connection, so concurrent builds together convert at most MAX_PARALLEL_CONVERSIONS at a time
+	private static final ListeningExecutorService converter = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+			VSphereConstants.MAX_PARALLEL_CONVERSIONS, VSphereRetry.daemonThreads("vSphere template conversion")));
+	//Runs what follows a task and calls vCenter again, which must not hold up the task monitor's thread
+	private static final ListeningExecutorService followUps = MoreExecutors.listeningDecorator(
+			Executors.newCachedThreadPool(VSphereRetry.daemonThreads("vSphere follow-up")));
+
+	private final Server server;
+	private final VSphereMetrics metrics;
+	private final VSphereLogger logger;
+	private final VSphereAdmission admission;
+	private final VSphereAdmission.Priority priority;
+	private final String owner;
+	//The clones made through this connection that have not succeeded, by name
+	private final ConcurrentMap<String, CloneAttempts> clones = new ConcurrentHashMap<String, CloneAttempts>();
+
+	private VSphere(Server server, VSphereLogger logger, VSphereAdmission.Priority priority, String owner) throws VSphereException{
+		this.server = server;
+		this.metrics = VSphereMetrics.forServer(server.getName());
+		this.logger = logger;
+		this.admission = VSphereAdmission.forServer(server.getName());
+		this.priority = priority;
+		this.owner = owner;
+		//Log in up front (or reuse the pooled session) so bad credentials fail here
+		getServiceInstance();
+	}
+
+	private ServiceInstance getServiceInstance() throws VSphereException{
+		return VSphereSessionPool.get().getServiceInstance(server);
+	}
+
+	private VSphereInventory getInventory() throws VSphereException{
+		return VSphereSessionPool.get().getInventory(server);
 	}
 
-	private ServiceInstance getServiceInstance() throws RemoteException, MalformedURLException{
-		return new ServiceInstance(url, session, true);
+	private VSphereTaskMonitor getTaskMonitor() throws VSphereException{
+		return VSphereSessionPool.get().getTaskMonitor(server);
 	}
 
 	/**
-	 * Initiates Connection to vSphere Server
+	 * Initiates Connection to vSphere Server, for work outside of a build
 	 * @throws VSphereException 
 	 */
 	public static VSphere connect(Server server) throws VSphereException {
-		return new VSphere(server.getServer(), server.getUser(), server.getPw());
+		return new VSphere(server, VSphereLogger.forBackground(), VSphereAdmission.Priority.BACKGROUND, null);
+	}
+
+	/**
+	 * Initiates Connection to vSphere Server
+	 * @param logger - the log of the build step using the connection
+	 * @throws VSphereException 
+	 */
+	public static VSphere connect(Server server, VSphereLogger logger) throws VSphereException {
+		return connect(server, logger, null);
+	}
+
+	/**
+	 * Initiates Connection to vSphere Server
+	 * @param logger - the log of the build step using the connection
+	 * @param owner - the build using the connection, as job#number, recorded
+	 * with its tasks in the {@link VSphereJournal}
+	 * @throws VSphereException 
+	 */
+	public static VSphere connect(Server server, VSphereLogger logger, String owner) throws VSphereException {
+		return new VSphere(server, logger, VSphereAdmission.Priority.INTERACTIVE, owner);
+	}
+
+	/**
+	 * @return - whether the failure, or one of its causes, is a name that
+	 * was already taken
+	 */
+	public static boolean isDuplicateName(Throwable failure){
+		for(Throwable cause = failure; cause!=null; cause = cause.getCause())
+			if(cause instanceof DuplicateName)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Futures of this class complete on the thread that tracks every task of
+	 * a session.  A callback that calls vCenter, or waits on anything else,
+	 * must run here instead, or it holds up all the other tasks.
+	 *
+	 * @return - the shared pool to run such callbacks on
+	 */
+	public static Executor getFollowUpExecutor(){
+		return followUps;
 	}
 
 	public static String vSphereOutput(String msg){
@@ -71,91 +153,526 @@ public class VSphere {
 	 * @throws Exception 
 	 */
 	public VirtualMachine shallowCloneVm(String cloneName, String template, boolean powerOn) throws VSphereException {
+		return shallowCloneVm(cloneName, template, null, powerOn);
+	}
+
+	/**
+	 * Creates a new VM from a given version of a template.
+	 * 
+	 * @param version - a version number from the {@link VSphereTemplateCatalog},
+	 * or null or {@value VSphereTemplateCatalog#LATEST} for the current snapshot
+	 * @return - Virtual Machine object of the new VM
+	 * @throws VSphereException 
+	 */
+	public VirtualMachine shallowCloneVm(String cloneName, String template, String version, boolean powerOn) throws VSphereException {
+		return await(shallowCloneVmAsync(cloneName, template, version, powerOn));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #shallowCloneVm(String, String, boolean)}.
+	 * The clone task is submitted before returning.
+	 * 
+	 * @return - future completed with the new VM when the clone task finishes
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<VirtualMachine> shallowCloneVmAsync(String cloneName, String template, boolean powerOn) throws VSphereException {
+		return shallowCloneVmAsync(cloneName, template, null, powerOn);
+	}
+
+	/**
+	 * Asynchronous variant of {@link #shallowCloneVm(String, String, String, boolean)}.
+	 * 
+	 * @return - future completed with the new VM when the clone task finishes
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<VirtualMachine> shallowCloneVmAsync(final String cloneName, final String template, final String version,
+			final boolean powerOn) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("shallowCloneVm");
+		try {
+			final CloneAttempts attempts = new CloneAttempts();
+			clones.put(cloneName, attempts);
+			ListenableFuture<VirtualMachine> resumed = resumeClone(cloneName, template, version, powerOn, attempts);
+			if(resumed!=null)
+				return timer.stopWhenDone(forgetWhenCloned(cloneName, attempts, resumed));
+
+			return timer.stopWhenDone(forgetWhenCloned(cloneName, attempts, VSphereRetry.run("Clone", cloneName, new VSphereRetry.Attempt<VirtualMachine>() {
+				public ListenableFuture<VirtualMachine> start(int attempt) throws VSphereException {
+					if(attempt>0){
+						ListenableFuture<VirtualMachine> earlier = findEarlierClone(cloneName, powerOn, attempts);
+						if(earlier!=null)
+							return earlier;
+					}
+					return submitClone(cloneName, template, version, powerOn, attempts);
+				}
+			}, logger)));
+		} finally {
+			timer.stop();
+		}
+	}
 
-		System.out.println("Creating a shallow clone of \""+ template + "\" to \""+cloneName);
+	/**
+	 * A build that died with Jenkins may have started this clone, see
+	 * {@link VSphereJournal}.  The VM its task made is taken over once the
+	 * task ends, and the clone is only made again if that task failed.
+	 * 
+	 * @return - future completed with the resumed clone, or null if no
+	 * clone of that name was running before the restart
+	 */
+	private ListenableFuture<VirtualMachine> resumeClone(final String cloneName, final String template, final String version,
+			final boolean powerOn, final CloneAttempts attempts) throws VSphereException {
+		ListenableFuture<TaskInfo> recovered = VSphereJournal.get().adopt(server.getName(), cloneName);
+		if(recovered==null)
+			return null;
+
+		logger.log("Clone \""+cloneName+"\" was started before Jenkins restarted, resuming it");
+		return Futures.transform(recovered, new AsyncFunction<TaskInfo, VirtualMachine>() {
+			public ListenableFuture<VirtualMachine> apply(TaskInfo info) throws VSphereException {
+				if(info==null){
+					//Another VM may hold the name by now, which the clone checks for
+					logger.log("Clone \""+cloneName+"\" started before the restart did not complete, cloning again");
+					return submitClone(cloneName, template, version, powerOn, attempts);
+				}
+				return Futures.immediateFuture(toClone(cloneName, powerOn, logger.start("Clone", cloneName)).apply(info));
+			}
+		}, followUps);
+	}
+
+	/**
+	 * A clone that failed may still have been made, when the connection
+	 * dropped after vCenter accepted its task.  Only such a VM is returned,
+	 * not one that had the name before.
+	 *
+	 * @return - the VM holding the name, if a clone task submitted through
+	 * this connection made it, or null
+	 */
+	public VirtualMachine getFailedClone(String cloneName) throws VSphereException {
+		CloneAttempts attempts = clones.get(cloneName);
+		if(attempts==null)
+			return null;
+		Task task = getCloneTask(cloneName, attempts);
+		VirtualMachine clone = getVm(cloneName);
+		if(task==null || clone==null)
+			return null;
+		try {
+			TaskInfo info = task.getTaskInfo();
+			return (info.getState()==TaskInfoState.success && isResult(clone, info)) ? clone : null;
+		} catch (RemoteException e) {
+			throw new VSphereException(e);
+		}
+	}
+
+	private ListenableFuture<VirtualMachine> forgetWhenCloned(final String cloneName, final CloneAttempts attempts,
+			ListenableFuture<VirtualMachine> cloned){
+		Futures.addCallback(cloned, new FutureCallback<VirtualMachine>() {
+			public void onSuccess(VirtualMachine clone) {
+				clones.remove(cloneName, attempts);
+			}
+
+			public void onFailure(Throwable t) {
+				//Kept for getFailedClone
+			}
+		});
+		return cloned;
+	}
+
+	/**
+	 * How far the attempts at one clone got.
+	 */
+	private static final class CloneAttempts {
+		//The VM last asked to clone, once the name was found free
+		volatile VirtualMachine source;
+		//vCenter's answer to that request, null if it was lost
+		volatile Task task;
+	}
+
+	/**
+	 * An attempt to clone may have created the clone even though it failed,
+	 * when the connection dropped after vCenter accepted the task.  Retrying
+	 * the clone would then fail on the existing name, so the retry takes
+	 * over the clone instead.  Only a VM made by the task of an earlier
+	 * attempt is taken: an attempt that failed before submitting its task
+	 * leaves the name to {@link #submitClone}, which fails if it is taken.
+	 * 
+	 * @return - future completed with the clone left by an earlier attempt,
+	 * or null if there is none
+	 */
+	private ListenableFuture<VirtualMachine> findEarlierClone(String cloneName, boolean powerOn, CloneAttempts attempts) throws VSphereException {
+		Task task = getCloneTask(cloneName, attempts);
+		if(task==null)
+			return null;
+		TaskInfo info;
+		try {
+			info = task.getTaskInfo();
+		} catch (RemoteException e) {
+			throw new VSphereException(e);
+		}
+		//A failed clone task leaves no clone, vCenter rolls it back
+		if(info.getState()==TaskInfoState.error)
+			return null;
+
+		VSphereLogger.Operation operation = logger.start("Clone", cloneName);
+		if(info.getState()==TaskInfoState.success){
+			logger.log("Clone \""+cloneName+"\" was created by an earlier attempt, using it");
+			return Futures.immediateFuture(toClone(cloneName, powerOn, operation).apply(info));
+		}
+		logger.log("Clone \""+cloneName+"\" of an earlier attempt is still running, waiting for it");
+		return Futures.transform(getTaskMonitor().watch(task), toClone(cloneName, powerOn, operation));
+	}
+
+	/**
+	 * When vCenter's answer to the clone request was lost, its task is
+	 * looked for among the source's recent tasks, where it can only be told
+	 * apart once it has made the VM that holds the name.
+	 *
+	 * @return - the clone task of the latest attempt, or null if no attempt
+	 * submitted one or it cannot be found
+	 */
+	private Task getCloneTask(String cloneName, CloneAttempts attempts) throws VSphereException {
+		VirtualMachine source = attempts.source;
+		if(source==null)
+			return null;
+		if(attempts.task!=null)
+			return attempts.task;
+
+		VirtualMachine clone = getVm(cloneName);
+		if(clone==null)
+			return null;
+		try {
+			Task[] recent = source.getRecentTasks();
+			if(recent==null)
+				return null;
+			for(Task task : recent){
+				TaskInfo info = task.getTaskInfo();
+				if(info.getState()==TaskInfoState.success && isResult(clone, info))
+					return task;
+			}
+		} catch (RemoteException e) {
+			throw new VSphereException(e);
+		}
+		return null;
+	}
+
+	private static boolean isResult(VirtualMachine vm, TaskInfo info){
+		return info.getResult() instanceof ManagedObjectReference
+				&& VSphereInventory.key(vm.getMOR()).equals(VSphereInventory.key((ManagedObjectReference) info.getResult()));
+	}
+
+	private ListenableFuture<VirtualMachine> submitClone(final String cloneName, String template, String version,
+			final boolean powerOn, CloneAttempts attempts) throws VSphereException {
+
+		final VSphereLogger.Operation operation = logger.start("Clone", cloneName);
+		operation.phase("cloning \""+template+"\"");
+		long started = System.nanoTime();
+		Task task;
+		VSpherePlacement.Lease lease = null;
+		VSphereAdmission.Permit permit = null;
 		try{
+			//Checked first, so no other failure can be mistaken for a clone that failed part way
+			if(getVmByName(cloneName)!=null){
+				DuplicateName duplicate = new DuplicateName();
+				duplicate.setName(cloneName);
+				throw new VSphereException("VM " + cloneName + " already exists", duplicate);
+			}
+
 			VirtualMachine sourceVm = getVmByName(template);
 
 			if(sourceVm==null) {
 				throw new VSphereException("No template " + template + " found");
 			}
 
-			if(getVmByName(cloneName)!=null){
-				throw new VSphereException("VM " + cloneName + " already exists");
-			}
-
+			ManagedObjectReference snapshot = resolveSnapshot(sourceVm, template, version, operation);
 			VirtualMachineRelocateSpec rel  = new VirtualMachineRelocateSpec();
 			rel.setDiskMoveType("createNewChildDiskBacking");
-			rel.setPool(getResourcePoolByName(Messages.VSphere_pool_default()).getMOR());
+
+			//Clones of a replicated version read from the replica on the least busy datastore
+			VSphereTemplateCatalog.Replica replica = null;
+			List<VSphereTemplateCatalog.Replica> replicas = VSphereTemplateCatalog.get().getReplicas(server.getName(), template, snapshot);
+			if(!replicas.isEmpty()){
+				List<String> datastores = new ArrayList<String>(replicas.size());
+				for(VSphereTemplateCatalog.Replica candidate : replicas)
+					datastores.add(candidate.getDatastore());
+				lease = choosePlacement(datastores);
+				for(VSphereTemplateCatalog.Replica candidate : replicas)
+					if(lease!=null && candidate.getDatastore().equals(lease.getDatastoreName()))
+						replica = candidate;
+			}
+			VirtualMachine replicaVm = (replica==null) ? null : getVmByName(replica.getVm());
+			if(replicaVm!=null){
+				operation.phase("cloning replica \""+replica.getVm()+"\"");
+				sourceVm = replicaVm;
+				snapshot = replica.getSnapshot();
+			}
+			else if(lease!=null){
+				//Chosen to read the replica, the host may not mount the template's datastores
+				lease.release();
+				lease = null;
+			}
+			if(lease==null)
+				lease = choosePlacement(view(sourceVm, VSphereVmView.DATASTORES).getDatastores());
+			if(lease!=null && lease.getPool()!=null){
+				operation.phase("placed on "+lease);
+				rel.setHost(lease.getHost());
+				rel.setDatastore(lease.getDatastore());
+				rel.setPool(lease.getPool());
+			}
+			else {
+				rel.setPool(getResourcePoolByName(Messages.VSphere_pool_default()).getMOR());
+			}
 
 			VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
 			cloneSpec.setLocation(rel);
 			cloneSpec.setPowerOn(powerOn);
 			cloneSpec.setTemplate(false);
-			cloneSpec.setSnapshot(sourceVm.getCurrentSnapShot().getMOR());
+			cloneSpec.setSnapshot(snapshot);
 
-			Task task = sourceVm.cloneVM_Task((Folder) sourceVm.getParent(), 
+			logger.getTimings().record(VSphereTimings.Phase.LOOKUP, started);
+			//Waiting for admission counts as part of the clone, it is where a busy vCenter shows
+			started = System.nanoTime();
+			permit = admit(VSphereAdmission.Type.CLONE, priority,
+					(rel.getDatastore()==null) ? null : rel.getDatastore().get_value(), cloneName);
+			attempts.task = null;
+			attempts.source = sourceVm;
+			task = sourceVm.cloneVM_Task((Folder) sourceVm.getParent(), 
 					cloneName, cloneSpec);
-			System.out.println("Cloning VM. Please wait ...");
-
-			String status = task.waitForTask();
-			if(status==TaskInfoState.success.toString()) {
-				System.out.println("VM got cloned successfully.");
-				return getVmByName(cloneName);
-			}
+			attempts.task = task;
+			operation.phase("task submitted");
 
 		}catch(Exception e){
+			if(lease!=null)
+				lease.release();
+			if(permit!=null)
+				permit.release();
+			if(e instanceof VSphereException)
+				throw (VSphereException) e;
 			throw new VSphereException(e);
 		}
 
-		throw new VSphereException("Error cloning \""+template+"!\" Does \""+cloneName+"\" already exist?");
+		ListenableFuture<TaskInfo> cloned = logger.getTimings().recordWhenDone(VSphereTimings.Phase.CLONE, started,
+				watch(VSphereJournal.CLONE, cloneName, task));
+		releaseWhenDone(cloned, lease);
+		permit.releaseWhenDone(cloned);
+		return Futures.transform(cloned, toClone(cloneName, powerOn, operation));
 	}	  
 
 	/**
-	 * @param vm
-	 * @return
-	 * @throws VmConfigFault
-	 * @throws TaskInProgress
-	 * @throws FileFault
-	 * @throws InvalidState
-	 * @throws InsufficientResourcesFault
-	 * @throws RuntimeFault
-	 * @throws RemoteException
-	 * @throws InterruptedException
+	 * @return - function from a finished clone task to the VM it made
+	 */
+	private Function<TaskInfo, VirtualMachine> toClone(final String cloneName, final boolean powerOn,
+			final VSphereLogger.Operation operation) throws VSphereException {
+		final ServerConnection connection = getServiceInstance().getServerConnection();
+		final VSphereInventory inventory = getInventory();
+		return new Function<TaskInfo, VirtualMachine>() {
+			public VirtualMachine apply(TaskInfo info) {
+				operation.phase("cloned");
+				//The task result already references the clone, no need to search for it
+				ManagedObjectReference cloneMor = (ManagedObjectReference) info.getResult();
+				inventory.put(new VSphereInventory.Entry(cloneMor, cloneName,
+						powerOn ? VirtualMachinePowerState.poweredOn : VirtualMachinePowerState.poweredOff, false));
+				return new VirtualMachine(connection, cloneMor);
+			}
+		};
+	}
+
+	/**
+	 * @return - the snapshot a clone of the given template version starts
+	 * from, counted as cloned in the catalog
+	 */
+	private ManagedObjectReference resolveSnapshot(VirtualMachine template, String templateName, String version,
+			VSphereLogger.Operation operation) throws VSphereException {
+		VSphereTemplateCatalog catalog = VSphereTemplateCatalog.get();
+		VSphereTemplateCatalog.Version pinned = catalog.getVersion(server.getName(), templateName, version);
+		ManagedObjectReference snapshot;
+		if(pinned!=null){
+			operation.phase("version "+pinned.getNumber());
+			snapshot = pinned.getSnapshot();
+		}
+		else {
+			snapshot = view(template, VSphereVmView.CURRENT_SNAPSHOT).getCurrentSnapshot();
+			if(snapshot==null)
+				throw new VSphereException("Template " + templateName + " has no snapshot to clone from");
+		}
+		catalog.recordClone(server.getName(), templateName, snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * @param name - name of VM to power on
 	 * @throws VSphereException 
 	 */
 	public void startVm(String name) throws VSphereException {
+		try{
+			await(startVmAsync(name));
+		}catch(VSphereException e){
+			throw new VSphereException("VM cannot be started:", e);
+		}
+	}
+
+	/**
+	 * Asynchronous variant of {@link #startVm(String)}.
+	 * 
+	 * @return - future completed when the power on task finishes,
+	 * immediately if the VM is already powered on
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<TaskInfo> startVmAsync(final String name) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("startVm");
+		try {
+			//Each attempt checks the power state first
+			return timer.stopWhenDone(VSphereRetry.run("Power on", name, new VSphereRetry.Attempt<TaskInfo>() {
+				public ListenableFuture<TaskInfo> start(int attempt) throws VSphereException {
+					return submitPowerOn(name);
+				}
+			}, logger));
+		} finally {
+			timer.stop();
+		}
+	}
 
+	private ListenableFuture<TaskInfo> submitPowerOn(String name) throws VSphereException {
+
+		final VSphereLogger.Operation operation = logger.start("Power on", name);
+		long started = System.nanoTime();
 		try{
 			VirtualMachine vm = getVmByName(name);
-			if(isPoweredOn(vm))
-				return;
+			if(view(vm, VSphereVmView.POWER_STATE).isPoweredOn()){
+				operation.phase("already powered on");
+				return Futures.<TaskInfo>immediateFuture(null);
+			}
 
-			String status = vm.powerOnVM_Task(null).waitForTask(10000, 10000);
-			if(status==Task.SUCCESS){
-				System.out.println("VM was powered up successfully.");
-				return;
+			VSphereAdmission.Permit permit = admit(VSphereAdmission.Type.POWER, priority, null, name);
+			Task task;
+			try {
+				task = vm.powerOnVM_Task(null);
+			} catch (Exception e) {
+				permit.release();
+				throw e;
 			}
+			ListenableFuture<TaskInfo> poweredOn = logger.getTimings().recordWhenDone(VSphereTimings.Phase.POWER_ON, started,
+					watch("power on", name, task));
+			return Futures.transform(permit.releaseWhenDone(poweredOn), new Function<TaskInfo, TaskInfo>() {
+				public TaskInfo apply(TaskInfo info) {
+					operation.phase("powered on");
+					return info;
+				}
+			});
+		}catch(VSphereException e){
+			throw e;
 		}catch(Exception e){
 			throw new VSphereException("VM cannot be started:", e);
 		}
-
-		throw new VSphereException("VM cannot be started");
 	}
 
 
 	public void takeSnapshot(String name, String snapshot, String description) throws VSphereException{
+		try {
+			await(takeSnapshotAsync(name, snapshot, description));
+		} catch (VSphereException e) {
+			throw new VSphereException("Could not take snapshot", e);
+		}
+	}
 
+	/**
+	 * Asynchronous variant of {@link #takeSnapshot(String, String, String)}.
+	 * 
+	 * @return - future completed when the snapshot task finishes
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<TaskInfo> takeSnapshotAsync(final String name, final String snapshot, final String description) throws VSphereException{
+		VSphereMetrics.Timer timer = metrics.start("takeSnapshot");
 		try {
-			Task task = getVmByName(name).createSnapshot_Task(snapshot, description, false, false);
-			if (task.waitForTask()==Task.SUCCESS) {
-				return;
+			return timer.stopWhenDone(VSphereRetry.run("Snapshot", name, new VSphereRetry.Attempt<TaskInfo>() {
+				public ListenableFuture<TaskInfo> start(int attempt) throws VSphereException {
+					if(attempt>0 && hasSnapshot(name, snapshot)){
+						logger.log("Snapshot \""+snapshot+"\" of \""+name+"\" was taken by an earlier attempt");
+						return Futures.<TaskInfo>immediateFuture(null);
+					}
+					return submitSnapshot(name, snapshot, description);
+				}
+			}, logger));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private boolean hasSnapshot(String name, String snapshot) throws VSphereException {
+		try {
+			VirtualMachineSnapshotInfo info = getVmByName(name).getSnapshot();
+			return info!=null && hasSnapshot(info.getRootSnapshotList(), snapshot);
+		} catch (Exception e) {
+			throw new VSphereException("Could not read the snapshots of "+name, e);
+		}
+	}
+
+	private static boolean hasSnapshot(VirtualMachineSnapshotTree[] trees, String snapshot){
+		if(trees==null)
+			return false;
+		for(VirtualMachineSnapshotTree tree : trees)
+			if(snapshot.equals(tree.getName()) || hasSnapshot(tree.getChildSnapshotList(), snapshot))
+				return true;
+		return false;
+	}
+
+	private ListenableFuture<TaskInfo> submitSnapshot(String name, String snapshot, String description) throws VSphereException{
+
+		try {
+			VirtualMachine vm = getVmByName(name);
+			VSphereAdmission.Permit permit = admit(VSphereAdmission.Type.SNAPSHOT, priority, null, name);
+			Task task;
+			try {
+				task = vm.createSnapshot_Task(snapshot, description, false, false);
+			} catch (Exception e) {
+				permit.release();
+				throw e;
 			}
+			return permit.releaseWhenDone(watch("snapshot", name, task));
+		} catch (VSphereException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new VSphereException("Could not take snapshot", e);
 		}
+	}
 
-		throw new VSphereException("Could not take snapshot");
+	/**
+	 * Renames a VM, keeping the inventory index in step.
+	 * 
+	 * @param name - current name of the VM
+	 * @param newName - name the VM should have afterwards
+	 * @return - the renamed VM
+	 * @throws VSphereException 
+	 */
+	public VirtualMachine renameVm(String name, String newName) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("renameVm");
+		try {
+			VirtualMachine vm = rename(name, newName);
+			timer.succeeded();
+			return vm;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private VirtualMachine rename(String name, String newName) throws VSphereException {
+		VirtualMachine vm;
+		Task task;
+		try{
+			vm = getVmByName(name);
+			if(vm==null)
+				throw new VSphereException("VM " + name + " does not exist");
+			if(getVmByName(newName)!=null)
+				throw new VSphereException("VM " + newName + " already exists");
+
+			task = vm.rename_Task(newName);
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException("Could not rename "+name, e);
+		}
+
+		await(watch("rename", name, task));
+		VSphereInventory.Entry entry = getInventory().get(VSphereInventory.VIRTUAL_MACHINE, name);
+		if(entry!=null)
+			getInventory().put(new VSphereInventory.Entry(entry.getMOR(), newName, entry.getPowerState(), entry.isTemplate()));
+		return vm;
 	}
 
 	public boolean revertToSnapshot(String vm, String snapshotname){
@@ -163,18 +680,43 @@ public class VSphere {
 		return true;
 	}
 
-	public void markAsTemplate(String vmName, String snapName, String desc, boolean force) throws VSphereException {
+	/**
+	 * Powers a VM down, snapshots it and marks it as a template.
+	 * 
+	 * @return - the snapshot taken, or null if the VM already was a template
+	 * @throws VSphereException 
+	 */
+	public ManagedObjectReference markAsTemplate(String vmName, String snapName, String desc, boolean force) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("markAsTemplate");
+		try {
+			ManagedObjectReference snapshot = convertToTemplate(vmName, snapName, desc, force);
+			timer.succeeded();
+			return snapshot;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private ManagedObjectReference convertToTemplate(String vmName, String snapName, String desc, boolean force) throws VSphereException {
 
+		VSphereLogger.Operation operation = logger.start("Mark as template", vmName);
 		try{
 			VirtualMachine vm = getVmByName(vmName);
-			if(vm.getConfig().template)
-				return;
+			VSphereVmView view = view(vm, VSphereVmView.TEMPLATE, VSphereVmView.POWER_STATE);
+			if(view.isTemplate()){
+				operation.phase("already a template");
+				return null;
+			}
 
-			if(isPoweredOff(vm) || force){
-				powerDown(vm, force);
+			if(view.isPoweredOff() || force){
+				powerDown(vm, view, force, operation);
 				takeSnapshot(vmName, snapName, desc);
+				//A new snapshot becomes the current one
+				ManagedObjectReference snapshot = view(vm, VSphereVmView.CURRENT_SNAPSHOT).getCurrentSnapshot();
+				operation.phase("snapshot taken");
 				vm.markAsTemplate();
-				return;
+				operation.phase("marked as template");
+				return snapshot;
 			}
 		}catch(Exception e){
 			throw new VSphereException("Error: Could not convert to Template", e);
@@ -184,44 +726,498 @@ public class VSphere {
 	}
 
 	public VirtualMachine markAsVm(String name) throws VSphereException{
+		return await(markAsVmsAsync(Collections.singletonList(name)).get(0));
+	}
+
+	/**
+	 * Converts several templates to VMs concurrently, on threads shared with
+	 * every other conversion.  Each is registered on a host that mounts the
+	 * template's datastores.
+	 * 
+	 * @param names - names of the templates to convert
+	 * @return - one future per name, in the same order, completed with the VM
+	 * @throws VSphereException 
+	 */
+	public List<ListenableFuture<VirtualMachine>> markAsVmsAsync(List<String> names) throws VSphereException{
+		List<ListenableFuture<VirtualMachine>> conversions = new ArrayList<ListenableFuture<VirtualMachine>>(names.size());
+		for(final String name : names){
+			conversions.add(metrics.record("markAsVm", converter.submit(new Callable<VirtualMachine>() {
+				public VirtualMachine call() throws VSphereException {
+					return convertToVm(name);
+				}
+			})));
+		}
+		return conversions;
+	}
+
+	private VirtualMachine convertToVm(String name) throws VSphereException{
+		VSphereLogger.Operation operation = logger.start("Mark as VM", name);
+		VSpherePlacement.Lease lease = null;
 		try{
 			VirtualMachine vm = getVmByName(name);
-			if(vm.getConfig().template){
-				vm.markAsVirtualMachine(
-						getResourcePoolByName(Messages.VSphere_pool_default()),
-						getHostByName(Messages.VSphere_host_default())
-				);
+			if(vm==null)
+				throw new VSphereException("No template " + name + " found");
+
+			VSphereVmView template = view(vm, VSphereVmView.TEMPLATE, VSphereVmView.DATASTORES);
+			if(template.isTemplate()){
+				ResourcePool pool;
+				HostSystem host;
+				lease = choosePlacement(template.getDatastores());
+				if(lease!=null && lease.getPool()!=null){
+					ServerConnection connection = getServiceInstance().getServerConnection();
+					pool = new ResourcePool(connection, lease.getPool());
+					host = new HostSystem(connection, lease.getHost());
+				}
+				else {
+					pool = getResourcePoolByName(Messages.VSphere_pool_default());
+					host = getHostByName(Messages.VSphere_host_default());
+				}
+				vm.markAsVirtualMachine(pool, host);
+				operation.phase("marked as VM");
 			}
 			return vm;
 
+		}catch(VSphereException e){
+			throw e;
 		}catch(Exception e){
 			throw new VSphereException("Error: Could not convert to VM", e);
+		}finally{
+			//Conversions do not move disks, the lease only spreads the registrations
+			if(lease!=null)
+				lease.release();
+		}
+	}
+
+	/**
+	 * Reads the snapshot tree of a VM or template in one call.
+	 * 
+	 * @return - the VM's view, with its current and root snapshots
+	 * @throws VSphereException - there is no such VM, or the call failed
+	 */
+	public VSphereVmView getSnapshotTree(String name) throws VSphereException {
+		try{
+			VirtualMachine vm = getVmByName(name);
+			if(vm==null)
+				throw new VSphereException("VM " + name + " does not exist");
+			return view(vm, VSphereVmView.CURRENT_SNAPSHOT, VSphereVmView.ROOT_SNAPSHOTS);
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException("Could not read the snapshots of "+name, e);
 		}
 	}
 
 	/**
-	 * Shortcut
+	 * Removes snapshots of a template one at a time, then consolidates its
+	 * disks if vCenter left deltas behind.  The data of a removed snapshot
+	 * is merged into its children, which stay usable.  vCenter does not
+	 * remove the snapshots of a template, so it is a VM meanwhile.
 	 * 
-	 * @param name - VirtualMachine name of which IP is returned
-	 * @return - String containing IP address
+	 * @param name - name of the template
+	 * @param snapshots - the snapshots to remove
 	 * @throws VSphereException 
 	 */
-	public String getIp(VirtualMachine vm) throws VSphereException {
+	public void removeSnapshots(String name, List<ManagedObjectReference> snapshots) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("removeSnapshots");
+		try {
+			deleteSnapshots(name, snapshots);
+			timer.succeeded();
+		} finally {
+			timer.stop();
+		}
+	}
 
-		if (vm==null)
-			throw new VSphereException("vm is null");
+	private void deleteSnapshots(String name, List<ManagedObjectReference> snapshots) throws VSphereException {
+		VSphereLogger.Operation operation = logger.start("Remove snapshots", name);
+		VirtualMachine vm;
+		boolean template;
+		try{
+			vm = getVmByName(name);
+			if(vm==null)
+				throw new VSphereException("No template " + name + " found");
+			template = view(vm, VSphereVmView.TEMPLATE).isTemplate();
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException("Could not remove the snapshots of "+name, e);
+		}
+
+		if(template)
+			markAsVm(name);
+		VSphereException failure = null;
+		try{
+			ServerConnection connection = getServiceInstance().getServerConnection();
+			for(ManagedObjectReference snapshot : snapshots){
+				VSphereAdmission.Permit permit = admit(VSphereAdmission.Type.SNAPSHOT, priority, null, name);
+				Task task;
+				try {
+					task = new VirtualMachineSnapshot(connection, snapshot).removeSnapshot_Task(false, Boolean.TRUE);
+				} catch (Exception e) {
+					permit.release();
+					throw new VSphereException("Could not remove snapshot "+snapshot.get_value()+" of "+name, e);
+				}
+				await(permit.releaseWhenDone(watch("remove snapshot", name, task)));
+				operation.phase("removed snapshot "+snapshot.get_value());
+			}
 
-		for(int count=0; count<VSphereConstants.IP_MAX_TRIES; ++count){
-			if(vm.getGuest().getIpAddress()!=null){
-				return vm.getGuest().getIpAddress();
+			if(view(vm, VSphereVmView.CONSOLIDATION_NEEDED).isConsolidationNeeded()){
+				Task task;
+				try {
+					task = vm.consolidateVMDisks_Task();
+				} catch (Exception e) {
+					throw new VSphereException("Could not consolidate the disks of "+name, e);
+				}
+				await(watch("consolidate", name, task));
+				operation.phase("disks consolidated");
 			}
+		}catch(VSphereException e){
+			failure = e;
+		}
+
+		if(template){
 			try {
-				Thread.sleep(VSphereConstants.IP_MAX_SECONDS * 1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				vm.markAsTemplate();
+				operation.phase("marked as template");
+			} catch (Exception e) {
+				if(failure==null)
+					failure = new VSphereException("Error: Could not convert "+name+" back to Template", e);
 			}
 		}
-		return null;
+		if(failure!=null)
+			throw failure;
+	}
+
+	/**
+	 * Copies a version of a template in full onto each of the given
+	 * datastores, so that linked clones can read from any of them.  Each
+	 * copy is cloned from the version's snapshot with its disks flattened,
+	 * then gets a snapshot of its own and becomes a template.  The copies
+	 * run concurrently, within the clone limits of each datastore.
+	 * 
+	 * @param template - name of the template
+	 * @param version - the version to copy
+	 * @param datastores - names of the datastores to copy it to
+	 * @return - the replicas made; those that failed are logged and left out
+	 * @throws VSphereException - the template does not exist
+	 */
+	public List<VSphereTemplateCatalog.Replica> replicateTemplate(String template, VSphereTemplateCatalog.Version version,
+			List<String> datastores) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("replicateTemplate");
+		try {
+			List<VSphereTemplateCatalog.Replica> replicas = replicate(template, version, datastores);
+			timer.succeeded();
+			return replicas;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * @return - the name of the replica of a template version on a datastore
+	 */
+	private static String getReplicaName(String template, int version, String datastore){
+		return template+"-v"+version+"@"+datastore;
+	}
+
+	private List<VSphereTemplateCatalog.Replica> replicate(String template, VSphereTemplateCatalog.Version version,
+			List<String> datastores) throws VSphereException {
+		VirtualMachine sourceVm;
+		try{
+			sourceVm = getVmByName(template);
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException("Could not replicate "+template, e);
+		}
+		if(sourceVm==null)
+			throw new VSphereException("No template " + template + " found");
+
+		List<VSphereLogger.Operation> operations = new ArrayList<VSphereLogger.Operation>(datastores.size());
+		List<ListenableFuture<TaskInfo>> copies = new ArrayList<ListenableFuture<TaskInfo>>(datastores.size());
+		for(String datastore : datastores){
+			String name = getReplicaName(template, version.getNumber(), datastore);
+			VSphereLogger.Operation operation = logger.start("Replicate", name);
+			operations.add(operation);
+			try {
+				copies.add(submitCopy(sourceVm, name, version.getSnapshot(), datastore, operation));
+			} catch (VSphereException e) {
+				copies.add(Futures.<TaskInfo>immediateFailedFuture(e));
+			}
+		}
+
+		List<VSphereTemplateCatalog.Replica> replicas = new ArrayList<VSphereTemplateCatalog.Replica>(datastores.size());
+		for(int i=0; i<datastores.size(); i++){
+			String name = getReplicaName(template, version.getNumber(), datastores.get(i));
+			try {
+				await(copies.get(i));
+				replicas.add(finishReplica(name, datastores.get(i), version, operations.get(i)));
+			} catch (VSphereException e) {
+				operations.get(i).failed(e.getMessage());
+				logger.log("Error: Could not replicate \""+template+"\" to "+datastores.get(i)+": "+e.getMessage());
+			}
+		}
+		return replicas;
+	}
+
+	private ListenableFuture<TaskInfo> submitCopy(VirtualMachine sourceVm, String name, ManagedObjectReference snapshot,
+			String datastore, VSphereLogger.Operation operation) throws VSphereException {
+		Task task;
+		VSpherePlacement.Lease lease = null;
+		VSphereAdmission.Permit permit = null;
+		try{
+			//Left by an earlier attempt, finishReplica picks it up
+			if(getVmByName(name)!=null){
+				operation.phase("already copied");
+				return Futures.<TaskInfo>immediateFuture(null);
+			}
+
+			lease = choosePlacement(Collections.singletonList(datastore));
+			if(lease==null || lease.getPool()==null)
+				throw new VSphereException("No usable host mounts datastore " + datastore);
+			operation.phase("placed on "+lease);
+
+			VirtualMachineRelocateSpec rel  = new VirtualMachineRelocateSpec();
+			rel.setDiskMoveType("moveAllDiskBackingsAndDisallowSharing");
+			rel.setHost(lease.getHost());
+			rel.setDatastore(lease.getDatastore());
+			rel.setPool(lease.getPool());
+
+			VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
+			cloneSpec.setLocation(rel);
+			cloneSpec.setPowerOn(false);
+			cloneSpec.setTemplate(false);
+			cloneSpec.setSnapshot(snapshot);
+
+			permit = admit(VSphereAdmission.Type.CLONE, priority, lease.getDatastore().get_value(), name);
+			task = sourceVm.cloneVM_Task((Folder) sourceVm.getParent(), name, cloneSpec);
+			operation.phase("task submitted");
+		}catch(Exception e){
+			if(lease!=null)
+				lease.release();
+			if(permit!=null)
+				permit.release();
+			if(e instanceof VSphereException)
+				throw (VSphereException) e;
+			throw new VSphereException(e);
+		}
+
+		ListenableFuture<TaskInfo> copied = watch("replicate", name, task);
+		releaseWhenDone(copied, lease);
+		return permit.releaseWhenDone(copied);
+	}
+
+	/**
+	 * Snapshots a copied replica and marks it as a template, unless an
+	 * earlier attempt already did.
+	 */
+	private VSphereTemplateCatalog.Replica finishReplica(String name, String datastore, VSphereTemplateCatalog.Version version,
+			VSphereLogger.Operation operation) throws VSphereException {
+		try{
+			VirtualMachine vm = getVmByName(name);
+			if(vm==null)
+				throw new VSphereException("VM " + name + " does not exist");
+
+			VSphereVmView view = view(vm, VSphereVmView.TEMPLATE, VSphereVmView.CURRENT_SNAPSHOT);
+			ManagedObjectReference snapshot = view.getCurrentSnapshot();
+			if(!view.isTemplate()){
+				if(snapshot==null){
+					takeSnapshot(name, version.getSnapshotName(), "Replica of version "+version.getNumber());
+					snapshot = view(vm, VSphereVmView.CURRENT_SNAPSHOT).getCurrentSnapshot();
+					operation.phase("snapshot taken");
+				}
+				vm.markAsTemplate();
+				operation.phase("marked as template");
+			}
+			if(snapshot==null)
+				throw new VSphereException("Replica " + name + " has no snapshot to clone from");
+			return new VSphereTemplateCatalog.Replica(datastore, name, snapshot);
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException("Could not finish replica "+name, e);
+		}
+	}
+
+	/**
+	 * Destroys a template, such as a replica that is no longer cloned.
+	 * 
+	 * @param name - name of the template
+	 * @throws VSphereException 
+	 */
+	public void destroyTemplate(String name) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("destroyTemplate");
+		try {
+			removeTemplate(name);
+			timer.succeeded();
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private void removeTemplate(String name) throws VSphereException {
+		VSphereLogger.Operation operation = logger.start("Destroy", name);
+		VirtualMachine vm;
+		try{
+			vm = getVmByName(name);
+			if(vm==null){
+				operation.phase("does not exist, or already deleted");
+				return;
+			}
+			if(!view(vm, VSphereVmView.TEMPLATE).isTemplate())
+				throw new VSphereException("Error: Specified name represents a VM, not a template.");
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException(e.getMessage(), e);
+		}
+
+		VSphereAdmission.Permit permit = admit(VSphereAdmission.Type.DESTROY, priority, null, name);
+		Task task;
+		try {
+			task = vm.destroy_Task();
+		} catch (Exception e) {
+			permit.release();
+			throw new VSphereException("Could not destroy "+name, e);
+		}
+		await(permit.releaseWhenDone(watch("destroy", name, task)));
+		getInventory().remove(vm.getMOR());
+		operation.phase("destroyed");
+	}
+
+	/**
+	 * Waits for the guest to report an IP address.
+	 * 
+	 * @param vm - VirtualMachine of which IP is returned
+	 * @param timeoutInSeconds - total time to wait for the IP
+	 * @return - String containing IP address, or null on timeout
+	 * @throws VSphereException 
+	 */
+	public String getIp(VirtualMachine vm, int timeoutInSeconds) throws VSphereException {
+		return await(getIpAsync(vm, timeoutInSeconds));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #getIp(VirtualMachine, int)}.  No thread
+	 * waits for the IP: the server's task monitor subscribes to guest.ipAddress
+	 * and guest.net and completes the future when vCenter reports one.
+	 * 
+	 * @return - future completed with the IP address, or null on timeout
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<String> getIpAsync(VirtualMachine vm, int timeoutInSeconds) throws VSphereException {
+		if (vm==null)
+			throw new VSphereException("vm is null");
+
+		VSphereMetrics.Timer timer = metrics.start("getIp");
+		try {
+			return timer.stopWhenDone(logger.getTimings().recordWhenDone(VSphereTimings.Phase.IP_WAIT, System.nanoTime(),
+					getTaskMonitor().watchIp(vm, timeoutInSeconds)));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Waits for the guest of a VM to be ready, without holding a thread.
+	 * 
+	 * @param vm - the VM to wait on
+	 * @param toolsRunning - whether VMware Tools must be running
+	 * @param heartbeatGreen - whether the guest heartbeat must be green
+	 * @param timeoutInSeconds - total time to wait
+	 * @return - future completed with null once the guest is ready, or with
+	 * what was not ready on timeout
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<String> waitForGuestAsync(VirtualMachine vm, boolean toolsRunning, boolean heartbeatGreen,
+			int timeoutInSeconds) throws VSphereException {
+		if (vm==null)
+			throw new VSphereException("vm is null");
+
+		VSphereMetrics.Timer timer = metrics.start("waitForGuest");
+		try {
+			return timer.stopWhenDone(getTaskMonitor().watchGuest(vm, toolsRunning, heartbeatGreen, timeoutInSeconds));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Resolves every VM whose name matches a pattern in one pass over the
+	 * inventory index.
+	 * 
+	 * @param pattern - regular expression the whole VM name must match
+	 * @param includeTemplates - whether templates are returned too
+	 * @return - sorted names of the matching VMs
+	 * @throws VSphereException 
+	 */
+	public List<String> getVmNames(Pattern pattern, boolean includeTemplates) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("getVmNames");
+		long started = System.nanoTime();
+		try {
+			List<String> names = new ArrayList<String>();
+			for(VSphereInventory.Entry entry : getInventory().getAll(VSphereInventory.VIRTUAL_MACHINE)){
+				if((includeTemplates || !entry.isTemplate()) && pattern.matcher(entry.getName()).matches())
+					names.add(entry.getName());
+			}
+			Collections.sort(names);
+			timer.succeeded();
+			return names;
+		} finally {
+			logger.getTimings().record(VSphereTimings.Phase.LOOKUP, started);
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Records on the VM which build owns it and until when.
+	 *
+	 * @param vm - the VM to lease
+	 * @param lease - owner and expiry
+	 * @throws VSphereException
+	 */
+	public void leaseVm(VirtualMachine vm, VSphereVmLease lease) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("leaseVm");
+		try {
+			VSphereVmLease.apply(getServiceInstance(), vm, lease);
+			timer.succeeded();
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * @return - the lease of every leased VM of the server, by VM name
+	 * @throws VSphereException
+	 */
+	public Map<String, VSphereVmLease> getLeasedVms() throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("getLeasedVms");
+		try {
+			Map<String, VSphereVmLease> leases = VSphereVmLease.fetchAll(getServiceInstance());
+			timer.succeeded();
+			return leases;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * @param name - name of the VM
+	 * @return - the VM, or null if there is none with that name
+	 * @throws VSphereException
+	 */
+	public VirtualMachine getVm(String name) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("getVm");
+		try {
+			VirtualMachine vm = getVmByName(name);
+			timer.succeeded();
+			return vm;
+		} catch (VSphereException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new VSphereException(e);
+		} finally {
+			timer.stop();
+		}
 	}
 
 	/**
@@ -230,14 +1226,19 @@ public class VSphere {
 	 * @throws InvalidProperty
 	 * @throws RuntimeFault
 	 * @throws RemoteException
-	 * @throws MalformedURLException 
 	 * @throws VSphereException 
 	 */
-	private VirtualMachine getVmByName(String vmName) throws InvalidProperty, RuntimeFault, RemoteException, MalformedURLException {
+	private VirtualMachine getVmByName(String vmName) throws InvalidProperty, RuntimeFault, RemoteException, VSphereException {
 
-		return (VirtualMachine) new InventoryNavigator(
-				getServiceInstance().getRootFolder()).searchManagedEntity(
-						"VirtualMachine", vmName);
+		VSphereMetrics.Timer timer = metrics.start("getVmByName");
+		try {
+			VSphereInventory.Entry entry = getInventory().get(VSphereInventory.VIRTUAL_MACHINE, vmName);
+			VirtualMachine vm = (entry==null) ? null : new VirtualMachine(getServiceInstance().getServerConnection(), entry.getMOR());
+			timer.succeeded();
+			return vm;
+		} finally {
+			timer.stop();
+		}
 	}
 
 	/**
@@ -246,13 +1247,18 @@ public class VSphere {
 	 * @throws InvalidProperty
 	 * @throws RuntimeFault
 	 * @throws RemoteException
-	 * @throws MalformedURLException 
 	 * @throws VSphereException 
 	 */
-	private ResourcePool getResourcePoolByName(final String poolName) throws InvalidProperty, RuntimeFault, RemoteException, MalformedURLException {
-		return (ResourcePool) new InventoryNavigator(
-				getServiceInstance().getRootFolder()).searchManagedEntity(
-						"ResourcePool", poolName);
+	private ResourcePool getResourcePoolByName(final String poolName) throws InvalidProperty, RuntimeFault, RemoteException, VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("getResourcePoolByName");
+		try {
+			VSphereInventory.Entry entry = getInventory().get(VSphereInventory.RESOURCE_POOL, poolName);
+			ResourcePool pool = (entry==null) ? null : new ResourcePool(getServiceInstance().getServerConnection(), entry.getMOR());
+			timer.succeeded();
+			return pool;
+		} finally {
+			timer.stop();
+		}
 	}
 
 	/**
@@ -261,13 +1267,18 @@ public class VSphere {
 	 * @throws InvalidProperty
 	 * @throws RuntimeFault
 	 * @throws RemoteException
-	 * @throws MalformedURLException 
 	 * @throws VSphereException 
 	 */
-	private HostSystem getHostByName(final String hostName) throws InvalidProperty, RuntimeFault, RemoteException, MalformedURLException {
-		return (HostSystem) new InventoryNavigator(
-				getServiceInstance().getRootFolder()).searchManagedEntity(
-						"HostSystem", hostName);
+	private HostSystem getHostByName(final String hostName) throws InvalidProperty, RuntimeFault, RemoteException, VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("getHostByName");
+		try {
+			VSphereInventory.Entry entry = getInventory().get(VSphereInventory.HOST_SYSTEM, hostName);
+			HostSystem host = (entry==null) ? null : new HostSystem(getServiceInstance().getServerConnection(), entry.getMOR());
+			timer.succeeded();
+			return host;
+		} finally {
+			timer.stop();
+		}
 	}
 
 	/**
@@ -276,65 +1287,226 @@ public class VSphere {
 	 * @throws InterruptedException 
 	 */
 	public void destroyVm(String name, boolean failOnNoExist) throws VSphereException{
+		await(destroyVmAsync(name, failOnNoExist));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #destroyVm(String, boolean)}.  Powers the
+	 * VM off first if needed.
+	 * 
+	 * @return - future completed when the destroy task finishes, immediately
+	 * if the VM does not exist
+	 * @throws VSphereException 
+	 */
+	public ListenableFuture<TaskInfo> destroyVmAsync(final String name, final boolean failOnNoExist) throws VSphereException{
+		VSphereMetrics.Timer timer = metrics.start("destroyVm");
+		long started = System.nanoTime();
+		try {
+			ListenableFuture<TaskInfo> destroyed = VSphereRetry.run("Destroy", name, new VSphereRetry.Attempt<TaskInfo>() {
+				public ListenableFuture<TaskInfo> start(int attempt) throws VSphereException {
+					//A VM missing on a retry was destroyed by an earlier attempt
+					return submitDestroy(name, failOnNoExist && attempt==0);
+				}
+			}, logger);
+			return timer.stopWhenDone(logger.getTimings().recordWhenDone(VSphereTimings.Phase.DESTROY, started, destroyed));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private ListenableFuture<TaskInfo> submitDestroy(final String name, boolean failOnNoExist) throws VSphereException{
+		final VSphereLogger.Operation operation = logger.start("Destroy", name);
+		final VirtualMachine vm;
+		final VSphereVmView view;
 		try{
-			VirtualMachine vm = getVmByName(name);
+			vm = getVmByName(name);
 			if(vm==null){
 				if(failOnNoExist) throw new VSphereException("VM does not exist");
 				
-				System.out.println("VM does not exist, or already deleted!");
-				return;
+				operation.phase("does not exist, or already deleted");
+				return Futures.<TaskInfo>immediateFuture(null);
 			}
 
-			if(vm.getConfig().template)
+			view = view(vm, VSphereVmView.TEMPLATE, VSphereVmView.POWER_STATE);
+			if(view.isTemplate())
 				throw new VSphereException("Error: Specified name represents a template, not a VM.");
 
-			powerDown(vm, true);
+		}catch(VSphereException e){
+			throw e;
+		}catch(Exception e){
+			throw new VSphereException(e.getMessage(), e);
+		}
 
-			String status = vm.destroy_Task().waitForTask();
-			if(status==Task.SUCCESS)
-			{
-				System.out.println("VM was deleted successfully.");
-				return;
+		final VSphereInventory inventory = getInventory();
+		//Builds cleaning up give way to builds waiting for VMs
+		VSphereAdmission.Permit permit = admit(VSphereAdmission.Type.DESTROY,
+				(priority==VSphereAdmission.Priority.INTERACTIVE) ? VSphereAdmission.Priority.CLEANUP : priority, null, name);
+		ListenableFuture<TaskInfo> destroyed;
+		try {
+			destroyed = Futures.transform(powerDownAsync(vm, view, true, operation), new AsyncFunction<TaskInfo, TaskInfo>() {
+				public ListenableFuture<TaskInfo> apply(TaskInfo poweredOff) throws Exception {
+					return watch("destroy", name, vm.destroy_Task());
+				}
+			}, followUps);
+		} catch (VSphereException e) {
+			permit.release();
+			throw e;
+		}
+		permit.releaseWhenDone(destroyed);
+
+		return Futures.transform(destroyed, new Function<TaskInfo, TaskInfo>() {
+			public TaskInfo apply(TaskInfo info) {
+				inventory.remove(vm.getMOR());
+				operation.phase("destroyed");
+				return info;
 			}
+		});
+	}
 
-		}catch(Exception e){
-			throw new VSphereException(e.getMessage());
+	/**
+	 * @param sourceDatastores - datastores of the VM or template the new VM
+	 * is created from, which its host must mount
+	 * @return - where the next new VM should go, or null to fall back to the
+	 * default resource pool and host
+	 */
+	private VSpherePlacement.Lease choosePlacement(ManagedObjectReference[] sourceDatastores){
+		try {
+			return VSphereSessionPool.get().getPlacement(server).choose(sourceDatastores);
+		} catch (VSphereException e) {
+			logger.log("Could not choose a placement, using defaults: "+e.getMessage());
+			return null;
 		}
+	}
 
-		throw new VSphereException("Error destroying VM");
+	/**
+	 * @param datastores - names of the datastores the VM may go on
+	 * @return - where the next new VM should go, or null if no host mounts
+	 * any of the datastores
+	 */
+	private VSpherePlacement.Lease choosePlacement(List<String> datastores){
+		try {
+			return VSphereSessionPool.get().getPlacement(server).choose(datastores);
+		} catch (VSphereException e) {
+			logger.log("Could not choose a datastore among "+datastores+": "+e.getMessage());
+			return null;
+		}
 	}
 
-	private boolean isSuspended(VirtualMachine vm){
-		return (vm.getRuntime().getPowerState() ==  VirtualMachinePowerState.suspended);
+	/**
+	 * Waits for the server's admission control to let a task start, and
+	 * logs the wait if a limit held it back.
+	 * 
+	 * @param datastore - id of the datastore the task writes to, or null
+	 * @param vm - name of the VM the task is for
+	 * @return - the permit, to release when the task has finished
+	 * @throws VSphereException - the wait was interrupted
+	 */
+	private VSphereAdmission.Permit admit(VSphereAdmission.Type type, VSphereAdmission.Priority priority,
+			String datastore, String vm) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("admission."+type.getName());
+		VSphereAdmission.Permit permit;
+		try {
+			permit = admission.acquire(type, datastore, priority);
+			timer.succeeded();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VSphereException("Interrupted while waiting to "+type.getName()+" \""+vm+"\"", e);
+		} finally {
+			timer.stop();
+		}
+		if(permit.isQueued())
+			logger.log("\""+vm+"\" waited "+permit.getWaitMillis()+" ms for a "+type.getName()+" slot");
+		return permit;
 	}
 
-	private boolean isPoweredOn(VirtualMachine vm){
-		return (vm.getRuntime().getPowerState() ==  VirtualMachinePowerState.poweredOn);
+	private static void releaseWhenDone(ListenableFuture<?> future, final VSpherePlacement.Lease lease){
+		if(lease==null)
+			return;
+		future.addListener(new Runnable() {
+			public void run() {
+				lease.release();
+			}
+		}, MoreExecutors.sameThreadExecutor());
 	}
 
-	private boolean isPoweredOff(VirtualMachine vm){
-		return (vm.getRuntime().getPowerState() ==  VirtualMachinePowerState.poweredOff);
+	/**
+	 * Waits for a future returned by one of the asynchronous methods.
+	 * 
+	 * @param future - future to wait on
+	 * @return - the future's result
+	 * @throws VSphereException - the failure of the underlying operation
+	 */
+	public static <T> T await(Future<T> future) throws VSphereException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VSphereException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof VSphereException)
+				throw (VSphereException) e.getCause();
+			throw new VSphereException(e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for a task, recording it in the journal until it ends.
+	 * 
+	 * @param operation - what the task does
+	 * @param target - name of the VM it acts on
+	 */
+	private ListenableFuture<TaskInfo> watch(String operation, String target, Task task) throws VSphereException {
+		ListenableFuture<TaskInfo> done = getTaskMonitor().watch(task);
+		VSphereJournal.get().record(operation, server.getName(), target, task, owner, done);
+		return done;
+	}
+
+	/**
+	 * Reads the given properties of a VM in one call.
+	 * 
+	 * @param paths - properties to read, from the constants of {@link VSphereVmView}
+	 * @throws VSphereException 
+	 */
+	private VSphereVmView view(VirtualMachine vm, String... paths) throws VSphereException {
+		VSphereMetrics.Timer timer = metrics.start("getVmView");
+		try {
+			VSphereVmView view = VSphereVmView.fetch(getServiceInstance(), vm.getMOR(), paths);
+			timer.succeeded();
+			return view;
+		} finally {
+			timer.stop();
+		}
 	}
 
-	private void powerDown(VirtualMachine vm, boolean evenIfSuspended) throws VSphereException{
-		if (isPoweredOn(vm) || (evenIfSuspended && isSuspended(vm))) {
-			String status;
+	private void powerDown(VirtualMachine vm, VSphereVmView view, boolean evenIfSuspended, VSphereLogger.Operation operation) throws VSphereException{
+		await(powerDownAsync(vm, view, evenIfSuspended, operation));
+	}
+
+	/**
+	 * @param view - the VM's view, with its power state
+	 */
+	private ListenableFuture<TaskInfo> powerDownAsync(VirtualMachine vm, VSphereVmView view, boolean evenIfSuspended,
+			final VSphereLogger.Operation operation) throws VSphereException{
+		if (view.isPoweredOn() || (evenIfSuspended && view.isSuspended())) {
+			Task task;
 			try {
 				//TODO is this better?
 				//vm.shutdownGuest()
-				status = vm.powerOffVM_Task().waitForTask();
+				task = vm.powerOffVM_Task();
 			} catch (Exception e) {
 				throw new VSphereException(e);
 			}
 
-			if(status==Task.SUCCESS) {
-				System.out.println("VM was powered down successfully.");
-				return;
-			}
+			return Futures.transform(getTaskMonitor().watch(task), new Function<TaskInfo, TaskInfo>() {
+				public TaskInfo apply(TaskInfo info) {
+					operation.phase("powered off");
+					return info;
+				}
+			});
 		}
-		else if (isPoweredOff(vm)){
-			System.out.println("Machine in already off.");
-			return;
+		else if (view.isPoweredOff()){
+			operation.phase("already powered off");
+			return Futures.<TaskInfo>immediateFuture(null);
 		}
 
 		throw new VSphereException("Machine could not be powered down!");
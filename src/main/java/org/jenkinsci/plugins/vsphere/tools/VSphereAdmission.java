@@ -0,0 +1,307 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Limits how many vCenter tasks of each type, and how many clones per
+ * datastore, one server runs at the same time, so that many builds
+ * starting together queue here instead of in vCenter.
+ *
+ * A task needs a permit from the gate of its type, from the gate of its
+ * datastore if it has one, and from the server-wide gate, taken in that
+ * order.  Each gate admits waiters by {@link Priority}, then first come
+ * first served.  A limit of 0 means no limit.
+ */
+public final class VSphereAdmission {
+
+	public enum Type {
+		CLONE("clone"), POWER("power"), SNAPSHOT("snapshot"), DESTROY("destroy");
+
+		private final String name;
+
+		private Type(String name){
+			this.name = name;
+		}
+
+		public String getName(){
+			return name;
+		}
+	}
+
+	/**
+	 * Who is waiting, in the order they are admitted.
+	 */
+	public enum Priority {
+		/** A build waiting for the VMs it runs on */
+		INTERACTIVE,
+		/** A build removing VMs it no longer needs */
+		CLEANUP,
+		/** Work without a build, such as refilling the warm pool */
+		BACKGROUND
+	}
+
+	/**
+	 * The configured limits, applied to every server.
+	 */
+	public static final class Limits {
+		public static final Limits DEFAULT = new Limits(10, 20, 10, 10, 8, 32);
+
+		private final Map<Type, Integer> perType = new EnumMap<Type, Integer>(Type.class);
+		private final int perDatastore;
+		private final int total;
+
+		/**
+		 * @param perDatastore - clones per datastore
+		 * @param total - tasks of any type per server
+		 */
+		public Limits(int clones, int powerOps, int snapshots, int destroys, int perDatastore, int total){
+			perType.put(Type.CLONE, clones);
+			perType.put(Type.POWER, powerOps);
+			perType.put(Type.SNAPSHOT, snapshots);
+			perType.put(Type.DESTROY, destroys);
+			this.perDatastore = perDatastore;
+			this.total = total;
+		}
+
+		public int get(Type type){
+			return perType.get(type);
+		}
+
+		public int getPerDatastore(){
+			return perDatastore;
+		}
+
+		public int getTotal(){
+			return total;
+		}
+	}
+
+	private static final ConcurrentMap<String, VSphereAdmission> servers = new ConcurrentHashMap<String, VSphereAdmission>();
+	private static final AtomicLong arrivals = new AtomicLong();
+	private static volatile Limits limits = Limits.DEFAULT;
+
+	private final Map<Type, Gate> typeGates = new EnumMap<Type, Gate>(Type.class);
+	private final ConcurrentMap<String, Gate> datastoreGates = new ConcurrentHashMap<String, Gate>();
+	private final Gate total;
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private VSphereAdmission(Limits limits){
+		for(Type type : Type.values())
+			typeGates.put(type, new Gate(limits.get(type)));
+		total = new Gate(limits.getTotal());
+	}
+
+	/**
+	 * @param serverName - name of the configured server
+	 * @return - the admission controller of that server, created on first use
+	 */
+	public static VSphereAdmission forServer(String serverName){
+		VSphereAdmission admission = servers.get(serverName);
+		if(admission==null){
+			VSphereAdmission created = new VSphereAdmission(limits);
+			admission = servers.putIfAbsent(serverName, created);
+			if(admission==null)
+				admission = created;
+		}
+		return admission;
+	}
+
+	/**
+	 * Changes the limits of every server.  Tasks already admitted keep their
+	 * permits; raising a limit admits waiters right away.
+	 */
+	public static void setLimits(Limits newLimits){
+		limits = newLimits;
+		for(VSphereAdmission admission : servers.values()){
+			for(Type type : Type.values())
+				admission.typeGates.get(type).setLimit(newLimits.get(type));
+			for(Gate gate : admission.datastoreGates.values())
+				gate.setLimit(newLimits.getPerDatastore());
+			admission.total.setLimit(newLimits.getTotal());
+		}
+	}
+
+	public static Limits getLimits(){
+		return limits;
+	}
+
+	/**
+	 * Waits until a task may start.
+	 *
+	 * @param type - the kind of task
+	 * @param datastore - id of the datastore the task writes to, or null
+	 * @param priority - who is asking
+	 * @return - the permit, to release when the task has finished
+	 * @throws InterruptedException - the wait was aborted, nothing is held
+	 */
+	public Permit acquire(Type type, String datastore, Priority priority) throws InterruptedException {
+		List<Gate> gates = new ArrayList<Gate>(3);
+		gates.add(typeGates.get(type));
+		if(datastore!=null)
+			gates.add(getDatastoreGate(datastore));
+		gates.add(total);
+
+		Permit permit = new Permit(outstanding);
+		outstanding.incrementAndGet();
+		long started = System.nanoTime();
+		Waiter waiter = new Waiter(priority);
+		try {
+			for(Gate gate : gates){
+				if(gate.acquire(waiter))
+					permit.queued = true;
+				permit.gates.add(gate);
+			}
+		} catch (InterruptedException e) {
+			permit.release();
+			throw e;
+		}
+		permit.waitNanos = System.nanoTime() - started;
+		return permit;
+	}
+
+	/**
+	 * @return - tasks running or waiting for admission on this server
+	 */
+	public int getOutstanding(){
+		return outstanding.get();
+	}
+
+	private Gate getDatastoreGate(String datastore){
+		Gate gate = datastoreGates.get(datastore);
+		if(gate==null){
+			Gate created = new Gate(limits.getPerDatastore());
+			gate = datastoreGates.putIfAbsent(datastore, created);
+			if(gate==null)
+				gate = created;
+		}
+		return gate;
+	}
+
+	/**
+	 * The right to run one task.
+	 */
+	public static final class Permit {
+		private final List<Gate> gates = new ArrayList<Gate>(3);
+		private final AtomicInteger outstanding;
+		private boolean queued;
+		private long waitNanos;
+		private boolean released;
+
+		private Permit(AtomicInteger outstanding){
+			this.outstanding = outstanding;
+		}
+
+		/**
+		 * @return - whether a limit was reached and the task had to wait
+		 */
+		public boolean isQueued(){
+			return queued;
+		}
+
+		public long getWaitMillis(){
+			return waitNanos / 1000000;
+		}
+
+		/**
+		 * Lets the next task in.  Only the first call counts.
+		 */
+		public synchronized void release(){
+			if(released)
+				return;
+			released = true;
+			outstanding.decrementAndGet();
+			for(Gate gate : gates)
+				gate.release();
+		}
+
+		/**
+		 * Releases the permit when the future completes, successfully or not.
+		 */
+		public <T> ListenableFuture<T> releaseWhenDone(ListenableFuture<T> future){
+			future.addListener(new Runnable() {
+				public void run() {
+					release();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			return future;
+		}
+	}
+
+	private static final class Waiter implements Comparable<Waiter> {
+		private final Priority priority;
+		private final long arrival = arrivals.incrementAndGet();
+
+		Waiter(Priority priority){
+			this.priority = priority;
+		}
+
+		public int compareTo(Waiter other){
+			if(priority!=other.priority)
+				return priority.compareTo(other.priority);
+			return (arrival<other.arrival) ? -1 : ((arrival==other.arrival) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A counting limit whose waiters are admitted by priority.
+	 */
+	private static final class Gate {
+		private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+		private int limit;
+		private int inFlight;
+
+		Gate(int limit){
+			this.limit = limit;
+		}
+
+		/**
+		 * @return - whether the waiter had to wait
+		 */
+		synchronized boolean acquire(Waiter waiter) throws InterruptedException {
+			if(waiters.isEmpty() && !isFull()){
+				inFlight++;
+				return false;
+			}
+
+			waiters.add(waiter);
+			try {
+				while(waiters.peek()!=waiter || isFull())
+					wait();
+			} catch (InterruptedException e) {
+				waiters.remove(waiter);
+				notifyAll();
+				throw e;
+			}
+			waiters.poll();
+			inFlight++;
+			//The next waiter may fit as well
+			notifyAll();
+			return true;
+		}
+
+		synchronized void release(){
+			inFlight--;
+			notifyAll();
+		}
+
+		synchronized void setLimit(int limit){
+			this.limit = limit;
+			notifyAll();
+		}
+
+		private boolean isFull(){
+			return limit>0 && inFlight>=limit;
+		}
+	}
+}
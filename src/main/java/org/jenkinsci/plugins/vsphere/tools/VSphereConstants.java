@@ -4,6 +4,9 @@ public final class VSphereConstants {
 
 	private VSphereConstants(){}
 	
-	public static final int IP_MAX_TRIES = Integer.parseInt(Messages.VSphere_ip_max_tries());
-	public static final int IP_MAX_SECONDS = Integer.parseInt(Messages.VSphere_ip_seconds());
+	/** Used when a build step does not configure its own IP timeout */
+	public static final int IP_DEFAULT_TIMEOUT_SECONDS = 200;
+
+	/** Upper bound on templates converted to VMs at the same time */
+	public static final int MAX_PARALLEL_CONVERSIONS = 10;
 }
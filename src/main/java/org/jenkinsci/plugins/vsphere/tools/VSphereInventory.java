@@ -0,0 +1,305 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * In-memory index of a vCenter inventory, from name to managed object
+ * reference, for virtual machines, resource pools and hosts.  VMs also carry
+ * their power state and template flag.
+ *
+ * The index is filled by the first (bulk) update set of a dedicated
+ * PropertyCollector filter over the whole inventory and then kept current
+ * from the WaitForUpdatesEx change sets of that filter, so lookups are
+ * map reads with no round trip to vCenter.
+ */
+public final class VSphereInventory {
+
+	public static final String VIRTUAL_MACHINE = "VirtualMachine";
+	public static final String RESOURCE_POOL = "ResourcePool";
+	public static final String HOST_SYSTEM = "HostSystem";
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereInventory.class.getName());
+	private static final int WAIT_SECONDS = 60;
+	private static final int MAX_OBJECT_UPDATES = 1000;
+	private static final long READY_TIMEOUT_MINUTES = 10;
+
+	private final ServiceInstance serviceInstance;
+	private final String serverName;
+	private final ConcurrentMap<String, Entry> byKey = new ConcurrentHashMap<String, Entry>();
+	private final Map<String, ConcurrentMap<String, Entry>> byName = new ConcurrentHashMap<String, ConcurrentMap<String, Entry>>();
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private volatile boolean running = true;
+	private volatile boolean alive = true;
+	private volatile Exception failure;
+	private PropertyCollector collector;
+
+	private VSphereInventory(ServiceInstance serviceInstance, String serverName){
+		this.serviceInstance = serviceInstance;
+		this.serverName = serverName;
+		byName.put(VIRTUAL_MACHINE, new ConcurrentHashMap<String, Entry>());
+		byName.put(RESOURCE_POOL, new ConcurrentHashMap<String, Entry>());
+		byName.put(HOST_SYSTEM, new ConcurrentHashMap<String, Entry>());
+	}
+
+	/**
+	 * Creates the index and starts its update thread.  Lookups block until
+	 * the initial bulk load has completed.
+	 */
+	static VSphereInventory start(ServiceInstance serviceInstance, String serverName) throws VSphereException {
+		final VSphereInventory inventory = new VSphereInventory(serviceInstance, serverName);
+		try {
+			inventory.collector = serviceInstance.getPropertyCollector().createPropertyCollector();
+			inventory.collector.createFilter(inventory.createFilterSpec(), true);
+		} catch (Exception e) {
+			inventory.stop();
+			throw new VSphereException("Could not index inventory of "+serverName, e);
+		}
+
+		Thread thread = new Thread("vSphere inventory updates for "+serverName){
+			@Override
+			public void run() {
+				inventory.listen();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return inventory;
+	}
+
+	ServiceInstance getServiceInstance(){
+		return serviceInstance;
+	}
+
+	boolean isAlive(){
+		return alive;
+	}
+
+	void stop(){
+		running = false;
+		if(collector==null)
+			return;
+		try {
+			collector.cancelWaitForUpdates();
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Could not cancel inventory updates for "+serverName, e);
+		}
+	}
+
+	/**
+	 * @param type - one of VIRTUAL_MACHINE, RESOURCE_POOL or HOST_SYSTEM
+	 * @param name - name of the managed entity
+	 * @return - the indexed entry, or null if no such entity exists
+	 * @throws VSphereException
+	 */
+	public Entry get(String type, String name) throws VSphereException {
+		awaitReady();
+		return byName.get(type).get(name);
+	}
+
+	/**
+	 * @param type - one of VIRTUAL_MACHINE, RESOURCE_POOL or HOST_SYSTEM
+	 * @return - snapshot of every indexed entry of that type
+	 * @throws VSphereException
+	 */
+	public Collection<Entry> getAll(String type) throws VSphereException {
+		awaitReady();
+		return Collections.unmodifiableCollection(new ArrayList<Entry>(byName.get(type).values()));
+	}
+
+	/**
+	 * Records a change this plugin made itself, so it is visible before
+	 * vCenter reports it through the update stream.
+	 */
+	void put(Entry entry){
+		Entry old = byKey.put(key(entry.getMOR()), entry);
+		if(old!=null && !old.getName().equals(entry.getName()))
+			byName.get(old.getType()).remove(old.getName(), old);
+		byName.get(entry.getType()).put(entry.getName(), entry);
+	}
+
+	void remove(ManagedObjectReference mor){
+		Entry old = byKey.remove(key(mor));
+		if(old!=null)
+			byName.get(old.getType()).remove(old.getName(), old);
+	}
+
+	private void awaitReady() throws VSphereException {
+		try {
+			if(!ready.await(READY_TIMEOUT_MINUTES, TimeUnit.MINUTES))
+				throw new VSphereException("Timed out indexing inventory of "+serverName);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VSphereException(e);
+		}
+		if(failure!=null && byKey.isEmpty())
+			throw new VSphereException("Could not index inventory of "+serverName, failure);
+	}
+
+	private PropertyFilterSpec createFilterSpec(){
+		ObjectSpec root = new ObjectSpec();
+		root.setObj(serviceInstance.getRootFolder().getMOR());
+		root.setSkip(Boolean.FALSE);
+		root.setSelectSet(PropertyCollectorUtil.buildFullTraversalV4());
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[]{ root });
+		spec.setPropSet(new PropertySpec[]{
+				propertySpec(VIRTUAL_MACHINE, "name", "runtime.powerState", "config.template"),
+				propertySpec(RESOURCE_POOL, "name"),
+				propertySpec(HOST_SYSTEM, "name")
+		});
+		return spec;
+	}
+
+	private static PropertySpec propertySpec(String type, String... paths){
+		PropertySpec spec = new PropertySpec();
+		spec.setType(type);
+		spec.setAll(Boolean.FALSE);
+		spec.setPathSet(paths);
+		return spec;
+	}
+
+	private void listen(){
+		WaitOptions options = new WaitOptions();
+		options.setMaxWaitSeconds(WAIT_SECONDS);
+		options.setMaxObjectUpdates(MAX_OBJECT_UPDATES);
+		String version = "";
+
+		try {
+			while(running){
+				UpdateSet updates = collector.waitForUpdatesEx(version, options);
+				if(updates==null){
+					//Nothing changed within WAIT_SECONDS
+					ready.countDown();
+					continue;
+				}
+				apply(updates);
+				version = updates.getVersion();
+				if(!Boolean.TRUE.equals(updates.getTruncated()))
+					ready.countDown();
+			}
+		} catch (Exception e) {
+			if(running){
+				failure = e;
+				LOGGER.log(Level.WARNING, "Inventory updates for "+serverName+" stopped", e);
+			}
+		} finally {
+			alive = false;
+			ready.countDown();
+			try {
+				collector.destroyPropertyCollector();
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Could not destroy inventory collector for "+serverName, e);
+			}
+		}
+	}
+
+	private void apply(UpdateSet updates){
+		if(updates.getFilterSet()==null)
+			return;
+
+		for(PropertyFilterUpdate filterUpdate : updates.getFilterSet()){
+			if(filterUpdate.getObjectSet()==null)
+				continue;
+
+			for(ObjectUpdate update : filterUpdate.getObjectSet()){
+				ManagedObjectReference mor = update.getObj();
+				if(update.getKind()==ObjectUpdateKind.leave){
+					remove(mor);
+					continue;
+				}
+
+				Entry current = byKey.get(key(mor));
+				Entry updated = current==null ? new Entry(mor, null, null, false) : current;
+				if(update.getChangeSet()!=null)
+					for(PropertyChange change : update.getChangeSet())
+						updated = updated.apply(change);
+
+				if(updated.getName()!=null)
+					put(updated);
+			}
+		}
+	}
+
+	static String key(ManagedObjectReference mor){
+		return mor.getType()+":"+mor.get_value();
+	}
+
+	/**
+	 * Immutable view of one indexed managed entity.
+	 */
+	public static final class Entry {
+		private final ManagedObjectReference mor;
+		private final String name;
+		private final VirtualMachinePowerState powerState;
+		private final boolean template;
+
+		Entry(ManagedObjectReference mor, String name, VirtualMachinePowerState powerState, boolean template){
+			this.mor = mor;
+			this.name = name;
+			this.powerState = powerState;
+			this.template = template;
+		}
+
+		public ManagedObjectReference getMOR(){
+			return mor;
+		}
+
+		public String getType(){
+			return mor.getType();
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * @return - power state for VMs, null for other types
+		 */
+		public VirtualMachinePowerState getPowerState(){
+			return powerState;
+		}
+
+		public boolean isTemplate(){
+			return template;
+		}
+
+		private Entry apply(PropertyChange change){
+			boolean removed = change.getOp()==PropertyChangeOp.remove;
+			Object val = removed ? null : change.getVal();
+
+			if("name".equals(change.getName()))
+				return new Entry(mor, (String) val, powerState, template);
+			if("runtime.powerState".equals(change.getName()))
+				return new Entry(mor, name, (VirtualMachinePowerState) val, template);
+			if("config.template".equals(change.getName()))
+				return new Entry(mor, name, powerState, Boolean.TRUE.equals(val));
+			return this;
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.vsphere.Server;
+import org.jenkinsci.plugins.vsphere.VSpherePlugin;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Append-only journal of the vCenter tasks this plugin submits: the task,
+ * what it acts on, the build it runs for, and whether it is still running.
+ * When Jenkins restarts, the tasks that were still running are replayed:
+ * the plugin watches them to their end, and a clone started by a build that
+ * died with Jenkins is handed to the next build asking for the same name
+ * instead of failing it with "VM already exists".
+ *
+ * Records are written by one thread.  It takes every record queued while
+ * the previous batch was being synced, writes them and syncs the file once,
+ * so the cost of a sync is shared by concurrent operations.  A submitted
+ * task is only recorded once the batch holding its record is synced, so a
+ * clone never goes on without a record that survives a crash.  Once the
+ * file holds COMPACT_AFTER records it is rewritten with the open ones only.
+ */
+public final class VSphereJournal {
+
+	public static final String FILE_NAME = "vsphere-journal.log";
+	public static final String CLONE = "clone";
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereJournal.class.getName());
+	private static final int COMPACT_AFTER = 10000;
+	private static final String SUBMITTED = "SUBMITTED";
+	private static final String DONE = "DONE";
+	private static final String FAILED = "FAILED";
+	private static final String ADOPTED = "ADOPTED";
+
+	private static VSphereJournal journal;
+
+	private final File file;
+	private final AtomicLong ids = new AtomicLong();
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+	private final Map<Long, Record> open = new ConcurrentHashMap<Long, Record>();
+	private final ConcurrentMap<String, Recovered> recovered = new ConcurrentHashMap<String, Recovered>();
+	private FileOutputStream out;
+	private Writer writer;
+	private int written;
+
+	private VSphereJournal(File file){
+		this.file = file;
+	}
+
+	/**
+	 * @return - the journal in the Jenkins home directory, opened and read
+	 * on first use; outside of Jenkins, a journal that records nothing
+	 */
+	public static synchronized VSphereJournal get(){
+		if(journal==null){
+			Jenkins jenkins = Jenkins.getInstance();
+			journal = new VSphereJournal((jenkins==null) ? null : new File(jenkins.getRootDir(), FILE_NAME));
+			journal.open();
+		}
+		return journal;
+	}
+
+	/**
+	 * Watches the tasks left running by the previous Jenkins process.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void replay(){
+		final VSphereJournal journal = get();
+		for(final Recovered task : journal.recovered.values()){
+			LOGGER.log(Level.INFO, "Resuming "+task.record+" started before the restart");
+			//Startup must not wait for vCenter
+			Computer.threadPoolForRemoting.submit(new Runnable() {
+				public void run() {
+					journal.resume(task);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records that a task was submitted, and waits until the record is
+	 * synced to disk.  The record is closed when the task's future
+	 * completes.
+	 *
+	 * @param operation - what the task does, such as {@link #CLONE}
+	 * @param serverName - server the task runs on
+	 * @param target - name of the VM the task acts on
+	 * @param task - the submitted task
+	 * @param owner - the build the task runs for, as job#number, or null
+	 * @param done - future completed when the task ends
+	 */
+	void record(String operation, String serverName, String target, Task task, String owner, final ListenableFuture<TaskInfo> done){
+		if(file==null)
+			return;
+
+		final Record record = new Record(ids.incrementAndGet(), operation, serverName, target,
+				task.getMOR().get_value(), (owner==null) ? "" : owner);
+		open.put(record.id, record);
+		Entry submitted = append(record.format(SUBMITTED));
+		done.addListener(new Runnable() {
+			public void run() {
+				try {
+					done.get();
+					close(record, DONE);
+				} catch (Exception e) {
+					close(record, FAILED);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+		try {
+			submitted.synced.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Takes over a clone a build started before Jenkins restarted.
+	 *
+	 * @return - future completed when the clone task has ended, with its
+	 * TaskInfo, or with null if its outcome is unknown; null if no such
+	 * clone was running
+	 */
+	ListenableFuture<TaskInfo> adopt(String serverName, String cloneName){
+		Recovered task = recovered.remove(Record.key(CLONE, serverName, cloneName));
+		if(task==null)
+			return null;
+		close(task.record, ADOPTED);
+		return task.result;
+	}
+
+	private void open(){
+		if(file==null)
+			return;
+
+		try {
+			read();
+			//Drop everything that ended before the restart
+			compact();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read the vSphere journal "+file, e);
+		}
+
+		Thread thread = new Thread("vSphere journal writer"){
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void read() throws IOException {
+		if(!file.exists())
+			return;
+
+		Map<Long, Record> running = new LinkedHashMap<Long, Record>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			for(String line = reader.readLine(); line!=null; line = reader.readLine()){
+				//A crash mid-write leaves a partial last line
+				String[] fields = line.split("\t", -1);
+				if(fields.length!=7)
+					continue;
+				long id;
+				try {
+					id = Long.parseLong(fields[0]);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				ids.set(Math.max(ids.get(), id));
+				if(SUBMITTED.equals(fields[1]))
+					running.put(id, new Record(id, unescape(fields[2]), unescape(fields[3]), unescape(fields[4]),
+							unescape(fields[5]), unescape(fields[6])));
+				else
+					running.remove(id);
+			}
+		} finally {
+			reader.close();
+		}
+
+		for(Record record : running.values()){
+			open.put(record.id, record);
+			recovered.put(record.getKey(), new Recovered(record));
+		}
+	}
+
+	private Entry append(String line){
+		Entry entry = new Entry(line);
+		queue.add(entry);
+		return entry;
+	}
+
+	private void close(Record record, String phase){
+		if(open.remove(record.id)!=null)
+			append(record.format(phase));
+	}
+
+	private void writeLoop(){
+		List<Entry> batch = new ArrayList<Entry>();
+		while(true){
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				synchronized(this){
+					if(writer==null)
+						writer = openWriter();
+					for(Entry entry : batch)
+						writer.write(entry.line);
+					sync();
+					written += batch.size();
+					if(written >= COMPACT_AFTER)
+						compact();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not write the vSphere journal "+file, e);
+				closeWriter();
+			} finally {
+				//A batch that could not be written must not hold up its tasks either
+				for(Entry entry : batch)
+					entry.synced.countDown();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Rewrites the file with the open records only.
+	 */
+	private synchronized void compact() throws IOException {
+		closeWriter();
+		File compacted = new File(file.getPath()+".tmp");
+		FileOutputStream compactedOut = new FileOutputStream(compacted);
+		try {
+			Writer compactedWriter = new OutputStreamWriter(compactedOut, "UTF-8");
+			for(Record record : open.values())
+				compactedWriter.write(record.format(SUBMITTED));
+			compactedWriter.flush();
+			compactedOut.getFD().sync();
+		} finally {
+			compactedOut.close();
+		}
+		if(!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file)))
+			throw new IOException("Could not replace "+file+" with "+compacted);
+		written = 0;
+	}
+
+	private Writer openWriter() throws IOException {
+		out = new FileOutputStream(file, true);
+		return new OutputStreamWriter(out, "UTF-8");
+	}
+
+	private void sync() throws IOException {
+		writer.flush();
+		out.getFD().sync();
+	}
+
+	private void closeWriter(){
+		if(writer==null)
+			return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not close the vSphere journal "+file, e);
+		}
+		writer = null;
+		out = null;
+	}
+
+	/**
+	 * Watches a task of the previous process to its end.  A clone nobody
+	 * adopted by then is leased to the build that started it, so the reaper
+	 * removes it if no build ever asks for it.
+	 */
+	private void resume(final Recovered task){
+		final Record record = task.record;
+		final Server server = VSpherePlugin.DescriptorImpl.get().getRegistry().get(record.serverName);
+		if(server==null){
+			LOGGER.log(Level.WARNING, "Server of "+record+" is no longer configured, forgetting it");
+			recovered.remove(record.getKey(), task);
+			close(record, FAILED);
+			task.result.set(null);
+			return;
+		}
+
+		final ListenableFuture<TaskInfo> done;
+		try {
+			ServiceInstance serviceInstance = VSphereSessionPool.get().getServiceInstance(server);
+			ManagedObjectReference mor = new ManagedObjectReference();
+			mor.setType("Task");
+			mor.set_value(record.task);
+			done = VSphereSessionPool.get().getTaskMonitor(server).watch(new Task(serviceInstance.getServerConnection(), mor));
+		} catch (VSphereException e) {
+			LOGGER.log(Level.WARNING, "Could not resume "+record, e);
+			task.result.set(null);
+			return;
+		}
+
+		done.addListener(new Runnable() {
+			public void run() {
+				TaskInfo info = null;
+				try {
+					info = done.get();
+					LOGGER.log(Level.INFO, record+" finished after the restart");
+				} catch (ExecutionException e) {
+					//Failed, or too old for vCenter to still know it
+					LOGGER.log(Level.INFO, record+" did not finish after the restart: "+e.getCause().getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				task.result.set(info);
+
+				if(!CLONE.equals(record.operation)){
+					recovered.remove(record.getKey(), task);
+					close(record, (info==null) ? FAILED : DONE);
+				}
+				else if(info!=null && recovered.containsKey(record.getKey()))
+					leaseOrphan(server, record, info);
+				else if(info==null && recovered.remove(record.getKey(), task))
+					close(record, FAILED);
+			}
+		}, Computer.threadPoolForRemoting);
+	}
+
+	private void leaseOrphan(Server server, Record record, TaskInfo info){
+		int leaseHours = VSpherePlugin.DescriptorImpl.get().getLeaseHours();
+		VSphereVmLease lease = VSphereVmLease.forOwner(record.owner,
+				(leaseHours > 0) ? System.currentTimeMillis() + TimeUnit.HOURS.toMillis(leaseHours) : 0);
+		if(lease==null)
+			return;
+		try {
+			//The task result is the clone, another VM may hold its name by now
+			VirtualMachine vm = new VirtualMachine(VSphereSessionPool.get().getServiceInstance(server).getServerConnection(),
+					(ManagedObjectReference) info.getResult());
+			VSphere.connect(server).leaseVm(vm, lease);
+			//Still adoptable while this process runs, but not after another restart
+			close(record, DONE);
+		} catch (VSphereException e) {
+			LOGGER.log(Level.WARNING, "Could not lease "+record.target+" to "+lease, e);
+		}
+	}
+
+	private static String escape(String value){
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String value){
+		StringBuilder unescaped = new StringBuilder(value.length());
+		for(int i=0; i<value.length(); i++){
+			char c = value.charAt(i);
+			if(c=='\\' && i+1<value.length()){
+				char next = value.charAt(++i);
+				unescaped.append((next=='t') ? '\t' : (next=='n') ? '\n' : next);
+			}
+			else
+				unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+
+	private static final class Record {
+		private final long id;
+		private final String operation;
+		private final String serverName;
+		private final String target;
+		private final String task;
+		private final String owner;
+
+		Record(long id, String operation, String serverName, String target, String task, String owner){
+			this.id = id;
+			this.operation = operation;
+			this.serverName = serverName;
+			this.target = target;
+			this.task = task;
+			this.owner = owner;
+		}
+
+		static String key(String operation, String serverName, String target){
+			return operation+"\t"+serverName+"\t"+target;
+		}
+
+		String getKey(){
+			return key(operation, serverName, target);
+		}
+
+		String format(String phase){
+			return id+"\t"+phase+"\t"+escape(operation)+"\t"+escape(serverName)+"\t"+escape(target)
+					+"\t"+escape(task)+"\t"+escape(owner)+"\n";
+		}
+
+		public String toString(){
+			return operation+" of \""+target+"\" on "+serverName+" ("+task+")";
+		}
+	}
+
+	/**
+	 * A line queued for the writer, and the latch it releases once the line
+	 * is synced.
+	 */
+	private static final class Entry {
+		private final String line;
+		private final CountDownLatch synced = new CountDownLatch(1);
+
+		Entry(String line){
+			this.line = line;
+		}
+	}
+
+	private static final class Recovered {
+		private final Record record;
+		private final SettableFuture<TaskInfo> result = SettableFuture.create();
+
+		Recovered(Record record){
+			this.record = record;
+		}
+	}
+}
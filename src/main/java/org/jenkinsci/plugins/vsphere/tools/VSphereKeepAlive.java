@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+/**
+ * Periodically pings the pooled vCenter sessions so they survive idle
+ * periods between builds.
+ */
+@Extension
+public class VSphereKeepAlive extends AsyncPeriodicWork {
+
+	public VSphereKeepAlive() {
+		super("vSphere session keep-alive");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return 5 * MIN;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		VSphereSessionPool.get().keepAlive();
+	}
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.vsphere.Server;
+import org.jenkinsci.plugins.vsphere.VSpherePlugin;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.vmware.vim25.TaskInfo;
+
+/**
+ * Periodically destroys the VMs whose lease ran out, on every configured
+ * server.  Leases are read in one property retrieval per server, and the
+ * VMs are destroyed REAP_BATCH at a time.
+ */
+@Extension
+public class VSphereLeaseReaper extends AsyncPeriodicWork {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereLeaseReaper.class.getName());
+	private static final int REAP_BATCH = 10;
+
+	public VSphereLeaseReaper() {
+		super("vSphere lease reaper");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return 10 * MIN;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		if(!VSpherePlugin.DescriptorImpl.allowDelete())
+			return;
+
+		long now = System.currentTimeMillis();
+		for(Server server : VSpherePlugin.DescriptorImpl.get().getServers()){
+			try {
+				VSphere vsphere = VSphere.connect(server);
+				List<String> expired = new ArrayList<String>();
+				for(Map.Entry<String, VSphereVmLease> leased : vsphere.getLeasedVms().entrySet()){
+					if(leased.getValue().isExpired(now)){
+						LOGGER.log(Level.INFO, "Lease of "+leased.getKey()+" on "+server.getName()
+								+", owned by "+leased.getValue()+", has expired");
+						expired.add(leased.getKey());
+					}
+				}
+				//Just read, so the VMs still have these leases
+				if(!expired.isEmpty())
+					destroy(vsphere, expired, VSphereLogger.forBackground());
+			} catch (VSphereException e) {
+				LOGGER.log(Level.WARNING, "Could not reap expired VMs on "+server.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Destroys the VMs that are still leased to a build.  A VM whose name a
+	 * later build reused carries that build's lease and is left alone, and
+	 * so is a VM without a lease.
+	 *
+	 * @param vsphere - connection to the VMs' server
+	 * @param names - names of the VMs the build cloned
+	 * @param owner - the build, as job#number
+	 * @param logger - where each outcome is logged
+	 * @return - the names of the VMs that were destroyed, are gone or are
+	 * no longer the build's
+	 * @throws VSphereException - the leases could not be read
+	 */
+	public static List<String> reap(VSphere vsphere, Collection<String> names, String owner, VSphereLogger logger) throws VSphereException {
+		Map<String, VSphereVmLease> leases = vsphere.getLeasedVms();
+		List<String> released = new ArrayList<String>(names.size());
+		List<String> owned = new ArrayList<String>(names.size());
+		for(String name : names){
+			VSphereVmLease lease = leases.get(name);
+			if(lease!=null && lease.getOwner().equals(owner)){
+				owned.add(name);
+				continue;
+			}
+			if(lease!=null)
+				logger.log("Leaving \""+name+"\", it is now leased to "+lease);
+			else
+				logger.log("Leaving \""+name+"\", it is gone or has no lease");
+			released.add(name);
+		}
+		released.addAll(destroy(vsphere, owned, logger));
+		return released;
+	}
+
+	/**
+	 * Destroys VMs in batches of REAP_BATCH; VMs that are already gone
+	 * count as destroyed.
+	 *
+	 * @return - the names of the VMs that were destroyed
+	 */
+	private static List<String> destroy(VSphere vsphere, Collection<String> names, VSphereLogger logger) {
+		List<String> destroyed = new ArrayList<String>(names.size());
+		List<String> pending = new ArrayList<String>(names);
+		for(int from=0; from<pending.size(); from+=REAP_BATCH){
+			List<String> batch = pending.subList(from, Math.min(from+REAP_BATCH, pending.size()));
+			List<ListenableFuture<TaskInfo>> results = new ArrayList<ListenableFuture<TaskInfo>>(batch.size());
+			for(String name : batch){
+				try {
+					results.add(vsphere.destroyVmAsync(name, false));
+				} catch (VSphereException e) {
+					results.add(Futures.<TaskInfo>immediateFailedFuture(e));
+				}
+			}
+
+			for(int i=0; i<batch.size(); i++){
+				try {
+					VSphere.await(results.get(i));
+					logger.log("Reaped \""+batch.get(i)+"\"");
+					destroyed.add(batch.get(i));
+				} catch (VSphereException e) {
+					logger.log("Error: Could not reap \""+batch.get(i)+"\": "+e.getMessage());
+				}
+			}
+		}
+		return destroyed;
+	}
+}
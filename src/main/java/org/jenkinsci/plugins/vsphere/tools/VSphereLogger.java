@@ -1,52 +1,255 @@
 package org.jenkinsci.plugins.vsphere.tools;
 
 import java.io.PrintStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Log of one build step, safe to use from the threads that complete its
+ * vSphere tasks.  Events are queued and written to the build's log in
+ * batches, by whichever thread fills a batch or finds the last one too
+ * old, by a timer at most BATCH_MILLIS after an event is queued, and by
+ * {@link #flush()} at the end of the step.
+ *
+ * Verbose output is off unless the system property
+ * org.jenkinsci.plugins.vsphere.tools.VSphereLogger.verbose is true; then
+ * {@link Operation#phase(String)} records when each operation reached
+ * each phase.  Off, a verbose event costs a field read.
+ *
+ * A logger without a build, for background work such as the warm pool,
+ * logs to the system log at FINE.
+ *
+ * The logger also keeps the {@link VSphereTimings} of its step, which the
+ * {@link VSphere} connections using it add to.
+ *
+ * @author Eric Lordahl
+ */
 public class VSphereLogger {
-	
-	private boolean verboseOutput;
-	private static VSphereLogger logger = null;;
-	
-	private VSphereLogger(){
-		this.verboseOutput = false;
-	}
-	
-	public static VSphereLogger getVSphereLogger(){
-		
-		if(logger==null){
-			logger = new VSphereLogger();
-		}
-		
-		return logger; 
-	}
-	
-	public void setVerboseOutput(boolean verboseOutput) {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereLogger.class.getName());
+	private static final boolean VERBOSE = Boolean.getBoolean(VSphereLogger.class.getName()+".verbose");
+	private static final int BATCH_SIZE = 32;
+	private static final long BATCH_MILLIS = 1000;
+
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+			VSphereRetry.daemonThreads("vSphere log flusher"));
+
+	private final PrintStream out;
+	private final boolean verboseOutput;
+	private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final Lock writing = new ReentrantLock();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final VSphereTimings timings = new VSphereTimings();
+	private volatile long lastFlush = System.currentTimeMillis();
+
+	private VSphereLogger(PrintStream out, boolean verboseOutput){
+		this.out = out;
 		this.verboseOutput = verboseOutput;
 	}
-	
+
+	/**
+	 * @param out - the build's log
+	 */
+	public static VSphereLogger forBuild(PrintStream out){
+		return new VSphereLogger(out, VERBOSE);
+	}
+
+	/**
+	 * @param out - the build's log
+	 * @param verboseOutput - whether to include the phases of operations
+	 */
+	public static VSphereLogger forBuild(PrintStream out, boolean verboseOutput){
+		return new VSphereLogger(out, verboseOutput);
+	}
+
 	/**
-	 * This is simply a wrapper method to clean up this class.  This method
-	 * checks the verboseOutput flag and writes to the logger as appropriate.
-	 * 
-	 * @param logger - logger that should receive the information
-	 * @param log - string to be sent to the stream
+	 * @return - a logger for work that does not belong to a build
 	 */
-	public void verboseLogger(PrintStream logger, String str){
-		verboseLogger(logger, str, false);
+	public static VSphereLogger forBackground(){
+		return new VSphereLogger(null, LOGGER.isLoggable(Level.FINE));
 	}
-	
+
+	public boolean isVerbose() {
+		return verboseOutput;
+	}
+
 	/**
-	 * This is simply a wrapper method to clean up this class.  This method
-	 * checks the verboseOutput flag and writes to the logger as appropriate.
-	 * 
-	 * @param logger - logger that should receive the information
-	 * @param log - string to be sent to the stream
-	 * @param force - forces the output the stream, overwriting the verboseOutput flag.
+	 * @return - the time the step spent in each phase so far
 	 */
-	public void verboseLogger(PrintStream logger, String str, boolean force){
-		if(logger!=null &&
-				(verboseOutput || force)){
-			logger.println("["+Messages.VSphereLogger_title()+"] "+str);
+	public VSphereTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * Writes a message whatever the verbose setting.
+	 */
+	public void log(String message){
+		add(new Event(null, null, null, -1, message));
+	}
+
+	/**
+	 * Writes a message only with verbose output.
+	 */
+	public void verbose(String message){
+		if(verboseOutput)
+			add(new Event(null, null, null, -1, message));
+	}
+
+	/**
+	 * Starts timing an operation on a VM, whose phases are logged with the
+	 * time since the start.
+	 */
+	public Operation start(String operation, String vm){
+		return new Operation(operation, vm);
+	}
+
+	/**
+	 * Writes every queued event.  Waits for another thread writing a batch,
+	 * so everything logged before the call is written when it returns.
+	 */
+	public void flush(){
+		writing.lock();
+		try {
+			write();
+		} finally {
+			writing.unlock();
+		}
+	}
+
+	private void add(Event event){
+		events.add(event);
+		if(queued.incrementAndGet()<BATCH_SIZE && System.currentTimeMillis()-lastFlush<BATCH_MILLIS){
+			//Written by the timer if nothing else is logged before it fires
+			scheduleFlush();
+			return;
+		}
+		tryWrite();
+	}
+
+	private void scheduleFlush(){
+		if(!flushScheduled.compareAndSet(false, true))
+			return;
+		flusher.schedule(new Runnable() {
+			public void run() {
+				flushScheduled.set(false);
+				//A thread still writing may have missed the last events, try again later
+				if(!tryWrite() && queued.get()>0)
+					scheduleFlush();
+			}
+		}, BATCH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Leaves the batch to a thread that is already writing.
+	 *
+	 * @return - whether this thread wrote it
+	 */
+	private boolean tryWrite(){
+		if(!writing.tryLock())
+			return false;
+		try {
+			write();
+		} finally {
+			writing.unlock();
+		}
+		return true;
+	}
+
+	private void write(){
+		lastFlush = System.currentTimeMillis();
+		if(out==null){
+			for(Event event = events.poll(); event!=null; event = events.poll()){
+				queued.decrementAndGet();
+				LOGGER.fine(event.toString());
+			}
+			return;
+		}
+
+		StringBuilder batch = new StringBuilder();
+		for(Event event = events.poll(); event!=null; event = events.poll()){
+			queued.decrementAndGet();
+			batch.append('[').append(Messages.VSphereLogger_title()).append("] ").append(event).append('\n');
+		}
+		if(batch.length()>0){
+			out.print(batch);
+			out.flush();
+		}
+	}
+
+	/**
+	 * One line of the log: a plain message, or a phase of an operation on a
+	 * VM with the time it took to get there.
+	 */
+	private static final class Event {
+		private final String operation;
+		private final String vm;
+		private final String phase;
+		private final long elapsedMillis;
+		private final String message;
+
+		Event(String operation, String vm, String phase, long elapsedMillis, String message){
+			this.operation = operation;
+			this.vm = vm;
+			this.phase = phase;
+			this.elapsedMillis = elapsedMillis;
+			this.message = message;
+		}
+
+		@Override
+		public String toString(){
+			if(operation==null)
+				return message;
+
+			StringBuilder line = new StringBuilder(operation);
+			if(vm!=null)
+				line.append(" \"").append(vm).append('"');
+			line.append(": ").append(phase).append(" after ").append(elapsedMillis).append(" ms");
+			if(message!=null)
+				line.append(" - ").append(message);
+			return line.toString();
+		}
+	}
+
+	/**
+	 * An operation on one VM, from {@link VSphereLogger#start(String, String)}.
+	 */
+	public final class Operation {
+		private final String name;
+		private final String vm;
+		private final long start = System.nanoTime();
+
+		private Operation(String name, String vm){
+			this.name = name;
+			this.vm = vm;
+		}
+
+		/**
+		 * Records that the operation reached a phase, with verbose output.
+		 */
+		public void phase(String phase){
+			if(verboseOutput)
+				add(new Event(name, vm, phase, elapsedMillis(), null));
+		}
+
+		/**
+		 * Records that the operation failed, whatever the verbose setting.
+		 */
+		public void failed(String reason){
+			add(new Event(name, vm, "failed", elapsedMillis(), reason));
+		}
+
+		private long elapsedMillis(){
+			return (System.nanoTime() - start) / 1000000;
 		}
 	}
 }
@@ -0,0 +1,313 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Latency histograms and error counts for every vSphere operation, per
+ * server.  Each operation is also published as a JMX MBean under
+ * {@value #JMX_DOMAIN}.
+ *
+ * Recording is a few atomic updates and never locks; there are four buckets
+ * per power of two of microseconds, so percentiles are within about 20%.
+ */
+public final class VSphereMetrics {
+
+	public static final String JMX_DOMAIN = "org.jenkinsci.plugins.vsphere";
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereMetrics.class.getName());
+	private static final double ROUND_TRIP_SMOOTHING = 0.3;
+	private static final ConcurrentMap<String, VSphereMetrics> servers = new ConcurrentHashMap<String, VSphereMetrics>();
+
+	private final String serverName;
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+	private volatile double roundTripMillis = -1;
+
+	private VSphereMetrics(String serverName){
+		this.serverName = serverName;
+	}
+
+	/**
+	 * @param serverName - name of the configured server
+	 * @return - the metrics of that server, created on first use
+	 */
+	public static VSphereMetrics forServer(String serverName){
+		VSphereMetrics metrics = servers.get(serverName);
+		if(metrics==null){
+			VSphereMetrics created = new VSphereMetrics(serverName);
+			metrics = servers.putIfAbsent(serverName, created);
+			if(metrics==null)
+				metrics = created;
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return - metrics of every server that has recorded anything, by name
+	 */
+	public static List<VSphereMetrics> all(){
+		List<VSphereMetrics> all = new ArrayList<VSphereMetrics>(servers.values());
+		Collections.sort(all, new java.util.Comparator<VSphereMetrics>() {
+			public int compare(VSphereMetrics a, VSphereMetrics b) {
+				return a.serverName.compareTo(b.serverName);
+			}
+		});
+		return all;
+	}
+
+	public String getServerName(){
+		return serverName;
+	}
+
+	/**
+	 * @return - every operation recorded for this server, by name
+	 */
+	public List<Operation> getOperations(){
+		List<Operation> all = new ArrayList<Operation>(operations.values());
+		Collections.sort(all, new java.util.Comparator<Operation>() {
+			public int compare(Operation a, Operation b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		return all;
+	}
+
+	public Operation getOperation(String name){
+		Operation operation = operations.get(name);
+		if(operation==null){
+			Operation created = new Operation(name);
+			operation = operations.putIfAbsent(name, created);
+			if(operation==null){
+				operation = created;
+				register(operation);
+			}
+		}
+		return operation;
+	}
+
+	/**
+	 * Starts timing one call.  Synchronous calls use
+	 * <pre>
+	 * Timer timer = metrics.start("op");
+	 * try { ...; timer.succeeded(); } finally { timer.stop(); }
+	 * </pre>
+	 * and asynchronous ones return {@link Timer#stopWhenDone} of their future
+	 * inside the same try block.
+	 */
+	public Timer start(String operation){
+		return new Timer(getOperation(operation));
+	}
+
+	/**
+	 * Records the time of a call that does no work on the server, as the
+	 * "ping" operation and in {@link #getRoundTripMillis()}.
+	 */
+	public void recordRoundTrip(long nanos, boolean success){
+		getOperation("ping").record(nanos, success);
+		if(!success)
+			return;
+		double millis = nanos / 1000000.0;
+		double previous = roundTripMillis;
+		//Moving average that mostly reflects the last few pings
+		roundTripMillis = (previous<0) ? millis : previous + ROUND_TRIP_SMOOTHING * (millis - previous);
+	}
+
+	/**
+	 * @return - recent API round trip time in milliseconds, or -1 if the
+	 * server was never pinged
+	 */
+	public double getRoundTripMillis(){
+		return roundTripMillis;
+	}
+
+	/**
+	 * Records the time until the future completes, as an error if it fails.
+	 */
+	public <T> ListenableFuture<T> record(String operation, ListenableFuture<T> future){
+		return start(operation).stopWhenDone(future);
+	}
+
+	private static boolean succeeded(Future<?> future){
+		try {
+			future.get();
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private void register(Operation operation){
+		try {
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Operation,server="
+					+ ObjectName.quote(serverName) + ",operation=" + ObjectName.quote(operation.name));
+			if(!mbeans.isRegistered(objectName))
+				mbeans.registerMBean(operation, objectName);
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Could not publish vSphere metrics over JMX", e);
+		}
+	}
+
+	public static final class Timer {
+		private final Operation operation;
+		private final long started = System.nanoTime();
+		private boolean success;
+		private boolean handedOff;
+
+		private Timer(Operation operation){
+			this.operation = operation;
+		}
+
+		public void succeeded(){
+			success = true;
+		}
+
+		/**
+		 * Records the call when it ends, unless it was handed off to a future.
+		 */
+		public void stop(){
+			if(!handedOff)
+				operation.record(System.nanoTime()-started, success);
+		}
+
+		/**
+		 * Leaves the recording to the completion of the given future.
+		 */
+		public <T> ListenableFuture<T> stopWhenDone(final ListenableFuture<T> future){
+			handedOff = true;
+			future.addListener(new Runnable() {
+				public void run() {
+					operation.record(System.nanoTime()-started, VSphereMetrics.succeeded(future));
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			return future;
+		}
+	}
+
+	/**
+	 * JMX view of one operation's statistics.
+	 */
+	public interface OperationMBean {
+		String getName();
+		long getCount();
+		long getErrors();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP95Millis();
+		double getP99Millis();
+		double getMaxMillis();
+	}
+
+	public static final class Operation implements OperationMBean {
+		private static final int SUB_BUCKETS = 4;
+		private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+		private final String name;
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong totalMicros = new AtomicLong();
+		private final AtomicLong maxMicros = new AtomicLong();
+
+		private Operation(String name){
+			this.name = name;
+		}
+
+		void record(long nanos, boolean success){
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			histogram.incrementAndGet(bucket(micros));
+			count.incrementAndGet();
+			totalMicros.addAndGet(micros);
+			if(!success)
+				errors.incrementAndGet();
+
+			for(long max = maxMicros.get(); micros > max; max = maxMicros.get()){
+				if(maxMicros.compareAndSet(max, micros))
+					break;
+			}
+		}
+
+		/**
+		 * Buckets 0-3 hold 0-3us exactly, after that every power of two is
+		 * split into SUB_BUCKETS equal parts.
+		 */
+		private static int bucket(long micros){
+			if(micros < SUB_BUCKETS)
+				return (int) Math.max(0, micros);
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+			return Math.min(BUCKETS - 1, (exponent - 1) * SUB_BUCKETS + sub);
+		}
+
+		private static long upperBound(int bucket){
+			if(bucket < SUB_BUCKETS)
+				return bucket;
+			int exponent = bucket / SUB_BUCKETS + 1;
+			int sub = bucket % SUB_BUCKETS;
+			return (1L << exponent) + ((sub + 1L) << (exponent - 2)) - 1;
+		}
+
+		private double percentileMillis(double percentile){
+			long total = count.get();
+			if(total==0)
+				return 0;
+			long rank = (long) Math.ceil(percentile * total);
+			long seen = 0;
+			for(int i=0; i<BUCKETS; i++){
+				seen += histogram.get(i);
+				if(seen >= rank)
+					return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+			}
+			return maxMicros.get() / 1000.0;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public long getCount(){
+			return count.get();
+		}
+
+		public long getErrors(){
+			return errors.get();
+		}
+
+		public double getMeanMillis(){
+			long total = count.get();
+			return (total==0) ? 0 : totalMicros.get() / 1000.0 / total;
+		}
+
+		public double getP50Millis(){
+			return percentileMillis(0.50);
+		}
+
+		public double getP95Millis(){
+			return percentileMillis(0.95);
+		}
+
+		public double getP99Millis(){
+			return percentileMillis(0.99);
+		}
+
+		public double getMaxMillis(){
+			return maxMicros.get() / 1000.0;
+		}
+	}
+}
@@ -0,0 +1,477 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * Chooses the host, datastore and resource pool for each new clone from a
+ * cached view of host CPU/memory usage and datastore free space.  Clones
+ * that are still being created count against their host and datastore, so
+ * concurrent clones spread across the cluster instead of piling onto one
+ * host.
+ *
+ * The view is refreshed with a single property retrieval whenever it is
+ * older than REFRESH_MILLIS.  Only the first retrieval holds up a choice;
+ * later ones run in the background while choices use the previous view.
+ */
+public final class VSpherePlacement {
+
+	private static final long REFRESH_MILLIS = 60 * 1000;
+	/** Load added per in-flight clone, as a fraction of a host or datastore */
+	private static final double IN_FLIGHT_WEIGHT = 0.1;
+	/** Datastores with less free space than this are never chosen */
+	private static final long MIN_FREE_BYTES = 10L * 1024 * 1024 * 1024;
+
+	private static final Logger LOGGER = Logger.getLogger(VSpherePlacement.class.getName());
+
+	//One refresh per server at a time, so a slow vCenter holds up no other
+	private static final ExecutorService refresher = Executors.newCachedThreadPool(
+			VSphereRetry.daemonThreads("vSphere placement refresh"));
+
+	private final ServiceInstance serviceInstance;
+	private final String defaultPool;
+	private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private final Object firstRetrieval = new Object();
+	private volatile View view;
+
+	VSpherePlacement(ServiceInstance serviceInstance, String defaultPool){
+		this.serviceInstance = serviceInstance;
+		this.defaultPool = defaultPool;
+	}
+
+	ServiceInstance getServiceInstance(){
+		return serviceInstance;
+	}
+
+	/**
+	 * Picks the least loaded connected host that mounts all of the source
+	 * VM's datastores, its least full datastore and a resource pool of the
+	 * host's cluster.  Datastores belong to one datacenter, so the host is
+	 * always in the source's datacenter, and it can read the disks a linked
+	 * clone is backed by.  The returned lease must be released once the
+	 * clone has been created.
+	 *
+	 * @param sourceDatastores - datastores of the VM or template cloned from
+	 * @return - the placement, or null if no host qualifies
+	 * @throws VSphereException
+	 */
+	public Lease choose(ManagedObjectReference[] sourceDatastores) throws VSphereException {
+		View current = getView();
+		synchronized(this){
+			return choose(current, sourceDatastores);
+		}
+	}
+
+	private Lease choose(View current, ManagedObjectReference[] sourceDatastores){
+		Host bestHost = null;
+		double bestHostLoad = Double.MAX_VALUE;
+		for(Host host : current.hosts){
+			if(!host.usable || !host.mountsAll(sourceDatastores))
+				continue;
+			double load = host.getLoad() + IN_FLIGHT_WEIGHT * getInFlight(host.mor);
+			if(load < bestHostLoad){
+				bestHost = host;
+				bestHostLoad = load;
+			}
+		}
+		if(bestHost==null)
+			return null;
+
+		Datastore bestDatastore = null;
+		double bestDatastoreLoad = Double.MAX_VALUE;
+		for(ManagedObjectReference mor : bestHost.datastores){
+			Datastore datastore = current.datastores.get(VSphereInventory.key(mor));
+			if(datastore==null || !datastore.accessible || datastore.freeSpace < MIN_FREE_BYTES)
+				continue;
+			double load = datastore.getUsage() + IN_FLIGHT_WEIGHT * getInFlight(datastore.mor);
+			if(load < bestDatastoreLoad){
+				bestDatastore = datastore;
+				bestDatastoreLoad = load;
+			}
+		}
+
+		ManagedObjectReference pool = current.getPool(bestHost.computeResource, defaultPool);
+		Lease lease = new Lease(bestHost.mor, bestHost.name, (bestDatastore==null) ? null : bestDatastore.mor,
+				(bestDatastore==null) ? null : bestDatastore.name, pool);
+		acquire(lease.host);
+		acquire(lease.datastore);
+		return lease;
+	}
+
+	/**
+	 * Picks the given datastore with the fewest clones in flight, and the
+	 * least loaded host that mounts it, for clones that must read from one
+	 * of these datastores.  Free space and host load only break ties: the
+	 * datastore is what a boot storm saturates.
+	 *
+	 * @param datastoreNames - names of the candidate datastores
+	 * @return - the placement, or null if no usable host mounts any of them
+	 * @throws VSphereException
+	 */
+	public Lease choose(Collection<String> datastoreNames) throws VSphereException {
+		View current = getView();
+		synchronized(this){
+			return choose(current, datastoreNames);
+		}
+	}
+
+	private Lease choose(View current, Collection<String> datastoreNames){
+		Host bestHost = null;
+		Datastore bestDatastore = null;
+		double bestLoad = Double.MAX_VALUE;
+		for(Host host : current.hosts){
+			if(!host.usable)
+				continue;
+			double hostLoad = host.getLoad() + IN_FLIGHT_WEIGHT * getInFlight(host.mor);
+			for(ManagedObjectReference mor : host.datastores){
+				Datastore datastore = current.datastores.get(VSphereInventory.key(mor));
+				if(datastore==null || !datastore.accessible || datastore.freeSpace < MIN_FREE_BYTES
+						|| !datastoreNames.contains(datastore.name))
+					continue;
+				//One clone in flight outweighs any usage
+				double load = getInFlight(datastore.mor) + (datastore.getUsage() + hostLoad) / 4;
+				if(load < bestLoad){
+					bestHost = host;
+					bestDatastore = datastore;
+					bestLoad = load;
+				}
+			}
+		}
+		if(bestHost==null)
+			return null;
+
+		Lease lease = new Lease(bestHost.mor, bestHost.name, bestDatastore.mor, bestDatastore.name,
+				current.getPool(bestHost.computeResource, defaultPool));
+		acquire(lease.host);
+		acquire(lease.datastore);
+		return lease;
+	}
+
+	/**
+	 * @return - resource usage snapshot per host, for reporting
+	 */
+	public List<Host> getHosts() throws VSphereException {
+		return Collections.unmodifiableList(getView().hosts);
+	}
+
+	/**
+	 * @return - headroom of the least loaded usable host, from 0 for a full
+	 * or unusable cluster to 1 for an idle one, counting clones in flight
+	 */
+	public double getFreeCapacity() throws VSphereException {
+		double lowest = 1;
+		boolean any = false;
+		for(Host host : getView().hosts){
+			if(!host.usable)
+				continue;
+			any = true;
+			lowest = Math.min(lowest, host.getLoad() + IN_FLIGHT_WEIGHT * getInFlight(host.mor));
+		}
+		return any ? Math.max(0, 1 - lowest) : 0;
+	}
+
+	private int getInFlight(ManagedObjectReference mor){
+		AtomicInteger count = inFlight.get(VSphereInventory.key(mor));
+		return (count==null) ? 0 : count.get();
+	}
+
+	private void acquire(ManagedObjectReference mor){
+		if(mor==null)
+			return;
+		String key = VSphereInventory.key(mor);
+		AtomicInteger count = inFlight.get(key);
+		if(count==null){
+			count = new AtomicInteger();
+			inFlight.put(key, count);
+		}
+		count.incrementAndGet();
+	}
+
+	private void release(ManagedObjectReference mor){
+		if(mor==null)
+			return;
+		AtomicInteger count = inFlight.get(VSphereInventory.key(mor));
+		if(count!=null)
+			count.decrementAndGet();
+	}
+
+	private View getView() throws VSphereException {
+		View current = view;
+		if(current==null){
+			//Nothing to choose from yet: the first caller retrieves, the others wait for it
+			synchronized(firstRetrieval){
+				current = view;
+				if(current==null){
+					current = retrieve();
+					view = current;
+				}
+			}
+		}
+		else if(System.currentTimeMillis()-current.retrieved > REFRESH_MILLIS && refreshing.compareAndSet(false, true)){
+			refresher.execute(new Runnable() {
+				public void run() {
+					try {
+						view = retrieve();
+					} catch (VSphereException e) {
+						LOGGER.log(Level.WARNING, "Could not refresh cluster load, choosing from the previous view", e);
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			});
+		}
+		return current;
+	}
+
+	private View retrieve() throws VSphereException {
+		ObjectSpec root = new ObjectSpec();
+		root.setObj(serviceInstance.getRootFolder().getMOR());
+		root.setSkip(Boolean.FALSE);
+		root.setSelectSet(PropertyCollectorUtil.buildFullTraversalV4());
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[]{ root });
+		spec.setPropSet(new PropertySpec[]{
+				propertySpec("HostSystem", "name", "parent", "datastore", "runtime.connectionState",
+						"runtime.inMaintenanceMode", "summary.quickStats.overallCpuUsage",
+						"summary.quickStats.overallMemoryUsage", "summary.hardware.cpuMhz",
+						"summary.hardware.numCpuCores", "summary.hardware.memorySize"),
+				propertySpec("Datastore", "name", "summary.freeSpace", "summary.capacity", "summary.accessible"),
+				propertySpec("ComputeResource", "resourcePool"),
+				propertySpec("ResourcePool", "name", "owner")
+		});
+
+		View retrieved = new View();
+		try {
+			PropertyCollector collector = serviceInstance.getPropertyCollector();
+			RetrieveResult result = collector.retrievePropertiesEx(new PropertyFilterSpec[]{ spec }, new RetrieveOptions());
+			while(result!=null){
+				for(ObjectContent content : result.getObjects())
+					retrieved.add(content);
+				result = (result.getToken()==null) ? null : collector.continueRetrievePropertiesEx(result.getToken());
+			}
+		} catch (Exception e) {
+			throw new VSphereException("Could not retrieve cluster load", e);
+		}
+		return retrieved;
+	}
+
+	private static PropertySpec propertySpec(String type, String... paths){
+		PropertySpec spec = new PropertySpec();
+		spec.setType(type);
+		spec.setAll(Boolean.FALSE);
+		spec.setPathSet(paths);
+		return spec;
+	}
+
+	/**
+	 * Where one clone goes.  Any of the references may be null if the
+	 * engine had no opinion, in which case vCenter's defaults apply.
+	 */
+	public final class Lease {
+		private final ManagedObjectReference host;
+		private final String hostName;
+		private final ManagedObjectReference datastore;
+		private final String datastoreName;
+		private final ManagedObjectReference pool;
+		private boolean released;
+
+		private Lease(ManagedObjectReference host, String hostName, ManagedObjectReference datastore,
+				String datastoreName, ManagedObjectReference pool){
+			this.host = host;
+			this.hostName = hostName;
+			this.datastore = datastore;
+			this.datastoreName = datastoreName;
+			this.pool = pool;
+		}
+
+		public ManagedObjectReference getHost(){
+			return host;
+		}
+
+		public ManagedObjectReference getDatastore(){
+			return datastore;
+		}
+
+		public String getDatastoreName(){
+			return datastoreName;
+		}
+
+		public ManagedObjectReference getPool(){
+			return pool;
+		}
+
+		public void release(){
+			synchronized(VSpherePlacement.this){
+				if(released)
+					return;
+				released = true;
+				VSpherePlacement.this.release(host);
+				VSpherePlacement.this.release(datastore);
+			}
+		}
+
+		@Override
+		public String toString(){
+			return "host "+hostName+((datastoreName==null) ? "" : ", datastore "+datastoreName);
+		}
+	}
+
+	public static final class Host {
+		private ManagedObjectReference mor;
+		private String name;
+		private ManagedObjectReference computeResource;
+		private ManagedObjectReference[] datastores = new ManagedObjectReference[0];
+		private boolean usable = true;
+		private long cpuUsageMhz;
+		private long cpuCapacityMhz;
+		private long memoryUsageMB;
+		private long memoryCapacityMB;
+
+		public String getName(){
+			return name;
+		}
+
+		private boolean mountsAll(ManagedObjectReference[] required){
+			if(required==null)
+				return true;
+			for(ManagedObjectReference mor : required){
+				boolean mounted = false;
+				for(ManagedObjectReference datastore : datastores)
+					if(VSphereInventory.key(datastore).equals(VSphereInventory.key(mor)))
+						mounted = true;
+				if(!mounted)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return - the larger of CPU and memory usage, as a fraction of capacity
+		 */
+		public double getLoad(){
+			double cpu = (cpuCapacityMhz==0) ? 1 : (double) cpuUsageMhz / cpuCapacityMhz;
+			double memory = (memoryCapacityMB==0) ? 1 : (double) memoryUsageMB / memoryCapacityMB;
+			return Math.max(cpu, memory);
+		}
+	}
+
+	private static final class Datastore {
+		private ManagedObjectReference mor;
+		private String name;
+		private long freeSpace;
+		private long capacity;
+		private boolean accessible = true;
+
+		private double getUsage(){
+			return (capacity==0) ? 1 : 1 - (double) freeSpace / capacity;
+		}
+	}
+
+	private static final class View {
+		private final long retrieved = System.currentTimeMillis();
+		private final List<Host> hosts = new ArrayList<Host>();
+		private final Map<String, Datastore> datastores = new HashMap<String, Datastore>();
+		private final Map<String, ManagedObjectReference> rootPools = new HashMap<String, ManagedObjectReference>();
+		private final Map<String, Map<String, ManagedObjectReference>> namedPools = new HashMap<String, Map<String, ManagedObjectReference>>();
+
+		/**
+		 * Prefers the pool named defaultPool within the host's cluster, then
+		 * the cluster's root pool.
+		 */
+		private ManagedObjectReference getPool(ManagedObjectReference computeResource, String defaultPool){
+			if(computeResource==null)
+				return null;
+			String key = VSphereInventory.key(computeResource);
+			Map<String, ManagedObjectReference> pools = namedPools.get(key);
+			if(pools!=null && pools.containsKey(defaultPool))
+				return pools.get(defaultPool);
+			return rootPools.get(key);
+		}
+
+		private void add(ObjectContent content){
+			ManagedObjectReference mor = content.getObj();
+			Map<String, Object> props = new HashMap<String, Object>();
+			if(content.getPropSet()!=null)
+				for(DynamicProperty prop : content.getPropSet())
+					props.put(prop.getName(), prop.getVal());
+
+			if("HostSystem".equals(mor.getType())){
+				Host host = new Host();
+				host.mor = mor;
+				host.name = (String) props.get("name");
+				host.computeResource = (ManagedObjectReference) props.get("parent");
+				host.datastores = toArray(props.get("datastore"));
+				host.usable = props.get("runtime.connectionState")==HostSystemConnectionState.connected
+						&& !Boolean.TRUE.equals(props.get("runtime.inMaintenanceMode"));
+				host.cpuUsageMhz = toLong(props.get("summary.quickStats.overallCpuUsage"));
+				host.cpuCapacityMhz = toLong(props.get("summary.hardware.cpuMhz")) * toLong(props.get("summary.hardware.numCpuCores"));
+				host.memoryUsageMB = toLong(props.get("summary.quickStats.overallMemoryUsage"));
+				host.memoryCapacityMB = toLong(props.get("summary.hardware.memorySize")) / (1024 * 1024);
+				hosts.add(host);
+			}
+			else if("Datastore".equals(mor.getType())){
+				Datastore datastore = new Datastore();
+				datastore.mor = mor;
+				datastore.name = (String) props.get("name");
+				datastore.freeSpace = toLong(props.get("summary.freeSpace"));
+				datastore.capacity = toLong(props.get("summary.capacity"));
+				datastore.accessible = !Boolean.FALSE.equals(props.get("summary.accessible"));
+				datastores.put(VSphereInventory.key(mor), datastore);
+			}
+			else if("ResourcePool".equals(mor.getType())){
+				ManagedObjectReference owner = (ManagedObjectReference) props.get("owner");
+				if(owner==null)
+					return;
+				String key = VSphereInventory.key(owner);
+				Map<String, ManagedObjectReference> pools = namedPools.get(key);
+				if(pools==null){
+					pools = new HashMap<String, ManagedObjectReference>();
+					namedPools.put(key, pools);
+				}
+				pools.put((String) props.get("name"), mor);
+			}
+			else if(props.get("resourcePool")!=null){
+				rootPools.put(VSphereInventory.key(mor), (ManagedObjectReference) props.get("resourcePool"));
+			}
+		}
+
+		private static ManagedObjectReference[] toArray(Object val){
+			if(val instanceof ArrayOfManagedObjectReference)
+				return ((ArrayOfManagedObjectReference) val).getManagedObjectReference();
+			if(val instanceof ManagedObjectReference[])
+				return (ManagedObjectReference[]) val;
+			return new ManagedObjectReference[0];
+		}
+
+		private static long toLong(Object val){
+			return (val instanceof Number) ? ((Number) val).longValue() : 0;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Waits for TCP ports to accept connections without a thread per port: one
+ * selector thread connects to every port being waited on, and tries a
+ * refused port again every RETRY_MILLIS until its deadline.
+ */
+public final class VSpherePortProbe {
+
+	private static final Logger LOGGER = Logger.getLogger(VSpherePortProbe.class.getName());
+	private static final long RETRY_MILLIS = 2000;
+	//A guest that drops SYNs while booting would otherwise hold a connect until the deadline
+	private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+	private static VSpherePortProbe probe;
+
+	private final Selector selector;
+	private final Queue<Attempt> submitted = new ConcurrentLinkedQueue<Attempt>();
+	//Only touched by the selector thread
+	private final List<Attempt> waiting = new ArrayList<Attempt>();
+
+	private VSpherePortProbe(Selector selector){
+		this.selector = selector;
+	}
+
+	/**
+	 * @return - the probe of this JVM, started on first use
+	 * @throws IOException - no selector could be opened
+	 */
+	public static synchronized VSpherePortProbe get() throws IOException {
+		if(probe==null){
+			final VSpherePortProbe started = new VSpherePortProbe(Selector.open());
+			Thread thread = new Thread("vSphere port probe"){
+				@Override
+				public void run() {
+					started.run();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+			probe = started;
+		}
+		return probe;
+	}
+
+	/**
+	 * @param host - address to connect to
+	 * @param port - port to connect to
+	 * @param timeoutInSeconds - how long to keep trying
+	 * @return - future completed with true once a connection was accepted,
+	 * or with false at the deadline
+	 */
+	public ListenableFuture<Boolean> probe(String host, int port, int timeoutInSeconds){
+		Attempt attempt = new Attempt(host, port, System.currentTimeMillis() + timeoutInSeconds * 1000L);
+		submitted.add(attempt);
+		selector.wakeup();
+		return attempt.future;
+	}
+
+	private void run(){
+		while(true){
+			try {
+				Attempt attempt;
+				while((attempt = submitted.poll())!=null)
+					waiting.add(attempt);
+
+				long now = System.currentTimeMillis();
+				for(Iterator<Attempt> i = waiting.iterator(); i.hasNext(); ){
+					attempt = i.next();
+					if(attempt.future.isDone()){
+						i.remove();
+					}
+					else if(now >= attempt.deadline){
+						attempt.close();
+						attempt.future.set(Boolean.FALSE);
+						i.remove();
+					}
+					else if(attempt.channel==null && now >= attempt.retryAt){
+						connect(attempt, now);
+					}
+					else if(attempt.channel!=null && now - attempt.connectStarted > CONNECT_TIMEOUT_MILLIS){
+						attempt.retry(now);
+					}
+				}
+
+				selector.select(getSelectMillis(System.currentTimeMillis()));
+				now = System.currentTimeMillis();
+				for(Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ){
+					SelectionKey key = keys.next();
+					keys.remove();
+					Attempt connecting = (Attempt) key.attachment();
+					if(connecting.channel!=null)
+						finishConnect(connecting, now);
+				}
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Port probe failed, carrying on", t);
+			}
+		}
+	}
+
+	private void connect(Attempt attempt, long now){
+		try {
+			SocketChannel channel = SocketChannel.open();
+			attempt.channel = channel;
+			attempt.connectStarted = now;
+			channel.configureBlocking(false);
+			if(channel.connect(new InetSocketAddress(attempt.host, attempt.port)))
+				succeed(attempt);
+			else
+				channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+		} catch (IOException e) {
+			attempt.retry(now);
+		}
+	}
+
+	private void finishConnect(Attempt attempt, long now){
+		try {
+			if(attempt.channel.finishConnect())
+				succeed(attempt);
+		} catch (IOException e) {
+			//Refused or unreachable, the guest may still be booting
+			attempt.retry(now);
+		}
+	}
+
+	/**
+	 * The attempt is dropped from the waiting list on the next round.
+	 */
+	private void succeed(Attempt attempt){
+		attempt.close();
+		attempt.future.set(Boolean.TRUE);
+	}
+
+	/**
+	 * @return - how long the next select may block, to act on the nearest
+	 * retry, connect timeout or deadline in time; 0 blocks until woken up
+	 */
+	private long getSelectMillis(long now){
+		long next = Long.MAX_VALUE;
+		for(Attempt attempt : waiting){
+			next = Math.min(next, attempt.deadline);
+			next = Math.min(next, (attempt.channel==null) ? attempt.retryAt : attempt.connectStarted + CONNECT_TIMEOUT_MILLIS);
+		}
+		return (next==Long.MAX_VALUE) ? 0 : Math.max(1, next - now);
+	}
+
+	private static final class Attempt {
+		private final String host;
+		private final int port;
+		private final long deadline;
+		private final SettableFuture<Boolean> future = SettableFuture.create();
+		private SocketChannel channel;
+		private long connectStarted;
+		private long retryAt;
+
+		private Attempt(String host, int port, long deadline){
+			this.host = host;
+			this.port = port;
+			this.deadline = deadline;
+		}
+
+		private void retry(long now){
+			close();
+			retryAt = now + RETRY_MILLIS;
+		}
+
+		private void close(){
+			if(channel==null)
+				return;
+			try {
+				//Also cancels its selection key
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not close probe of "+host+":"+port, e);
+			}
+			channel = null;
+		}
+	}
+}
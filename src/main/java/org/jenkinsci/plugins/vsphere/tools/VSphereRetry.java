@@ -0,0 +1,227 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.vmware.vim25.HostCommunication;
+import com.vmware.vim25.InsufficientResourcesFault;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.ResourceInUse;
+import com.vmware.vim25.TaskInProgress;
+
+/**
+ * Retries vCenter operations that failed for a passing reason: the object
+ * was busy with another task, the cluster was briefly short of resources,
+ * or the connection to vCenter or a host dropped.  Attempts are spaced by
+ * an exponential backoff with random jitter, so builds that failed together
+ * do not retry together, until the operation's time budget runs out.
+ *
+ * Every other failure ends the operation at once.  An attempt after the
+ * first must check what the earlier ones left behind, since a dropped
+ * connection says nothing about whether vCenter accepted the call.
+ */
+public final class VSphereRetry {
+
+	public static final int DEFAULT_BUDGET_SECONDS = 120;
+
+	private static final long INITIAL_DELAY_MILLIS = 1000;
+	private static final long MAX_DELAY_MILLIS = 30000;
+
+	private static final Class<?>[] RETRYABLE = {
+		TaskInProgress.class,
+		InsufficientResourcesFault.class,
+		HostCommunication.class,
+		ResourceInUse.class,
+		SocketException.class,
+		SocketTimeoutException.class
+	};
+
+	private static volatile long budgetMillis = TimeUnit.SECONDS.toMillis(DEFAULT_BUDGET_SECONDS);
+
+	private static final Random random = new Random();
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			daemonThreads("vSphere retry scheduler"));
+
+	//Attempts may wait for admission, which must not hold up the scheduler
+	private static final ExecutorService workers = Executors.newCachedThreadPool(daemonThreads("vSphere retry"));
+
+	private VSphereRetry(){}
+
+	/**
+	 * One try at an operation.
+	 */
+	public interface Attempt<T> {
+		/**
+		 * @param attempt - 0 for the first try, counting up with each retry
+		 * @return - future completed with the outcome of the try
+		 */
+		ListenableFuture<T> start(int attempt) throws VSphereException;
+	}
+
+	/**
+	 * Sets how long an operation may keep retrying, from its first attempt.
+	 * 0 turns retries off.
+	 */
+	public static void setBudgetSeconds(int seconds){
+		budgetMillis = TimeUnit.SECONDS.toMillis(Math.max(0, seconds));
+	}
+
+	/**
+	 * @return - whether the failure, or one of its causes, is worth retrying
+	 */
+	public static boolean isRetryable(Throwable failure){
+		for(Throwable cause = failure; cause!=null; cause = cause.getCause()){
+			for(Class<?> retryable : RETRYABLE)
+				if(retryable.isInstance(cause))
+					return true;
+
+			//vijava reports transport failures as a RemoteException naming the cause
+			if(cause instanceof RemoteException && !(cause instanceof MethodFault) && cause.getMessage()!=null){
+				String message = cause.getMessage();
+				if(message.contains(SocketException.class.getName())
+						|| message.contains(SocketTimeoutException.class.getName())
+						|| message.contains(ConnectException.class.getName()))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs an operation, retrying it as needed.  The first attempt runs on
+	 * the calling thread, so a failure that is not worth retrying is thrown
+	 * from here as it would be without retries.
+	 *
+	 * @param operation - name of the operation, for the log
+	 * @param vm - name of the VM it is for
+	 * @param attempt - how to try the operation
+	 * @param logger - where retries are logged
+	 * @return - future completed with the outcome of the last attempt
+	 * @throws VSphereException - the first attempt failed for good
+	 */
+	public static <T> ListenableFuture<T> run(String operation, String vm, Attempt<T> attempt, VSphereLogger logger) throws VSphereException {
+		Retry<T> retry = new Retry<T>(operation, vm, attempt, logger);
+		ListenableFuture<T> first;
+		try {
+			first = attempt.start(0);
+		} catch (VSphereException e) {
+			if(!retry.retryAfter(e))
+				throw e;
+			return retry.result;
+		}
+		retry.follow(first);
+		return retry.result;
+	}
+
+	private static final class Retry<T> {
+		private final String operation;
+		private final String vm;
+		private final Attempt<T> attempt;
+		private final VSphereLogger logger;
+		private final long deadline = System.currentTimeMillis() + budgetMillis;
+		private final SettableFuture<T> result = SettableFuture.create();
+		private volatile int retries;
+
+		Retry(String operation, String vm, Attempt<T> attempt, VSphereLogger logger){
+			this.operation = operation;
+			this.vm = vm;
+			this.attempt = attempt;
+			this.logger = logger;
+		}
+
+		void follow(final ListenableFuture<T> future){
+			future.addListener(new Runnable() {
+				public void run() {
+					try {
+						result.set(future.get());
+					} catch (InterruptedException e) {
+						result.setException(e);
+					} catch (ExecutionException e) {
+						if(!retryAfter(e.getCause()))
+							result.setException(e.getCause());
+					} catch (RuntimeException e) {
+						//Cancelled
+						result.cancel(false);
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+
+		/**
+		 * @return - whether another attempt was scheduled
+		 */
+		boolean retryAfter(Throwable failure){
+			if(result.isDone() || !isRetryable(failure))
+				return false;
+
+			long delay = nextDelay(retries);
+			if(System.currentTimeMillis()+delay>deadline)
+				return false;
+
+			retries++;
+			logger.log(operation+" \""+vm+"\" failed ("+failure.getMessage()+"), attempt "
+					+(retries+1)+" in "+delay+" ms");
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					workers.execute(new Runnable() {
+						public void run() {
+							next();
+						}
+					});
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+			return true;
+		}
+
+		private void next(){
+			if(result.isDone())
+				return;
+			try {
+				follow(attempt.start(retries));
+			} catch (VSphereException e) {
+				if(!retryAfter(e))
+					result.setException(e);
+			} catch (RuntimeException e) {
+				result.setException(e);
+			}
+		}
+	}
+
+	/**
+	 * Exponential backoff with equal jitter: half the delay is fixed, the
+	 * other half random.
+	 */
+	static long nextDelay(int retries){
+		long delay = Math.min(MAX_DELAY_MILLIS, INITIAL_DELAY_MILLIS << Math.min(retries, 16));
+		long jitter;
+		synchronized(random){
+			jitter = (long) (random.nextDouble() * (delay / 2));
+		}
+		return delay / 2 + jitter;
+	}
+
+	static ThreadFactory daemonThreads(final String name){
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name+" "+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
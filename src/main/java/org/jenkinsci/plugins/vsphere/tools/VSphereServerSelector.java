@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.vsphere.Server;
+
+/**
+ * Orders the members of a server group from the best to the worst place to
+ * start a VM.  Each member is scored by its API round trip, the tasks it is
+ * running or queueing, and the headroom of its least loaded host; lower is
+ * better.
+ *
+ * A member that could not be reached, or on which an operation just failed,
+ * sits out for COOLDOWN_MILLIS: it is ranked last and not probed, so an
+ * unreachable vCenter costs one connect timeout rather than one per build.
+ */
+public final class VSphereServerSelector {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereServerSelector.class.getName());
+	private static final long COOLDOWN_MILLIS = 5 * 60 * 1000;
+	/** Round trip that weighs as much as a full server */
+	private static final double ROUND_TRIP_SCALE_MILLIS = 250;
+
+	private static final ConcurrentMap<Integer, Long> failedUntil = new ConcurrentHashMap<Integer, Long>();
+
+	private VSphereServerSelector(){}
+
+	/**
+	 * Pings every member that is not cooling down and ranks them.
+	 *
+	 * @param members - the group's servers
+	 * @return - the same servers, best first
+	 */
+	public static List<Server> rank(List<Server> members){
+		final Map<Server, Double> scores = new HashMap<Server, Double>();
+		for(Server member : members)
+			scores.put(member, isCoolingDown(member) ? Double.MAX_VALUE : score(member));
+
+		List<Server> ranked = new ArrayList<Server>(members);
+		Collections.sort(ranked, new Comparator<Server>() {
+			public int compare(Server a, Server b) {
+				return Double.compare(scores.get(a), scores.get(b));
+			}
+		});
+		return ranked;
+	}
+
+	/**
+	 * Takes a member out of the running for COOLDOWN_MILLIS.
+	 */
+	public static void markFailed(Server member){
+		failedUntil.put(member.getHash(), System.currentTimeMillis()+COOLDOWN_MILLIS);
+	}
+
+	/**
+	 * Puts a member back in the running after an operation succeeded on it.
+	 */
+	public static void markHealthy(Server member){
+		failedUntil.remove(member.getHash());
+	}
+
+	private static boolean isCoolingDown(Server member){
+		Long until = failedUntil.get(member.getHash());
+		if(until==null)
+			return false;
+		if(until > System.currentTimeMillis())
+			return true;
+		failedUntil.remove(member.getHash(), until);
+		return false;
+	}
+
+	private static double score(Server member){
+		try {
+			VSphereSessionPool.get().ping(member);
+		} catch (VSphereException e) {
+			LOGGER.log(Level.WARNING, "vSphere server "+member.getName()+" is unreachable", e);
+			markFailed(member);
+			return Double.MAX_VALUE;
+		}
+
+		double roundTrip = Math.max(0, VSphereMetrics.forServer(member.getName()).getRoundTripMillis());
+
+		int limit = VSphereAdmission.getLimits().getTotal();
+		if(limit<=0)
+			limit = VSphereAdmission.Limits.DEFAULT.getTotal();
+		double busy = (double) VSphereAdmission.forServer(member.getName()).getOutstanding() / limit;
+
+		double full;
+		try {
+			full = 1 - VSphereSessionPool.get().getPlacement(member).getFreeCapacity();
+		} catch (VSphereException e) {
+			LOGGER.log(Level.FINE, "Could not read the hosts of "+member.getName(), e);
+			full = 1;
+		}
+
+		return roundTrip / ROUND_TRIP_SCALE_MILLIS + busy + full;
+	}
+}
@@ -0,0 +1,261 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.vsphere.Server;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Hands out one authenticated {@link ServiceInstance} per configured
+ * {@link Server}, keyed by {@link Server#getHash()}, so that build steps
+ * share a long-lived vCenter session instead of logging in on every call.
+ */
+public final class VSphereSessionPool {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereSessionPool.class.getName());
+	private static final VSphereSessionPool pool = new VSphereSessionPool();
+	private static final long VALIDATE_INTERVAL = 60 * 1000;
+
+	private final ConcurrentMap<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+
+	private VSphereSessionPool(){}
+
+	public static VSphereSessionPool get(){
+		return pool;
+	}
+
+	/**
+	 * @param server - server configuration to get a session for
+	 * @return - authenticated ServiceInstance, logging in if needed
+	 * @throws VSphereException
+	 */
+	public ServiceInstance getServiceInstance(Server server) throws VSphereException {
+		return getSession(server).getServiceInstance();
+	}
+
+	/**
+	 * @param server - server configuration to get the inventory index for
+	 * @return - live inventory index for the server's pooled session
+	 * @throws VSphereException
+	 */
+	public VSphereInventory getInventory(Server server) throws VSphereException {
+		return getSession(server).getInventory();
+	}
+
+	/**
+	 * @param server - server configuration to get the task monitor for
+	 * @return - task monitor for the server's pooled session
+	 * @throws VSphereException
+	 */
+	public VSphereTaskMonitor getTaskMonitor(Server server) throws VSphereException {
+		return getSession(server).getTaskMonitor();
+	}
+
+	/**
+	 * @param server - server configuration to get the placement engine for
+	 * @return - placement engine for the server's pooled session
+	 * @throws VSphereException
+	 */
+	public VSpherePlacement getPlacement(Server server) throws VSphereException {
+		return getSession(server).getPlacement();
+	}
+
+	/**
+	 * Logs in to the server if needed and times one call that does no work,
+	 * as the server's round trip in {@link VSphereMetrics}.
+	 *
+	 * @param server - server configuration to ping
+	 * @throws VSphereException - the server could not be reached or logged in to
+	 */
+	public void ping(Server server) throws VSphereException {
+		Session session = getSession(server);
+		session.getServiceInstance();
+		session.keepAlive();
+	}
+
+	Session getSession(Server server){
+		Integer key = server.getHash();
+		Session session = sessions.get(key);
+		if(session==null){
+			Session created = new Session(server);
+			session = sessions.putIfAbsent(key, created);
+			if(session==null)
+				session = created;
+		}
+		return session;
+	}
+
+	/**
+	 * Pings every pooled session so vCenter does not expire it while idle.
+	 * Sessions that have expired anyway are logged back in.
+	 */
+	public void keepAlive(){
+		for(Session session : sessions.values()){
+			try {
+				session.keepAlive();
+			} catch (VSphereException e) {
+				LOGGER.log(Level.WARNING, "vSphere keep-alive failed for "+session.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Logs out and forgets the sessions of the given servers, with their
+	 * inventory indexes and task monitors.  Called for servers that were
+	 * edited or removed in the global configuration.
+	 *
+	 * @param hashes - {@link Server#getHash()} of each server
+	 */
+	public void invalidate(Collection<Integer> hashes){
+		for(Integer key : hashes){
+			Session session = sessions.remove(key);
+			if(session!=null)
+				session.logout();
+		}
+	}
+
+	/**
+	 * Logs out and forgets every pooled session.
+	 */
+	public void drain(){
+		for(Integer key : sessions.keySet()){
+			Session session = sessions.remove(key);
+			if(session!=null)
+				session.logout();
+		}
+	}
+
+	static final class Session {
+		private final String name;
+		private final String url;
+		private final String user;
+		private final String pw;
+		private volatile ServiceInstance serviceInstance;
+		private volatile long lastValidated;
+		private VSphereInventory inventory;
+		private VSphereTaskMonitor taskMonitor;
+		private VSpherePlacement placement;
+
+		private Session(Server server){
+			this.name = server.getName();
+			this.url = server.getServer();
+			this.user = server.getUser();
+			this.pw = server.getPw();
+		}
+
+		String getName(){
+			return name;
+		}
+
+		ServiceInstance getServiceInstance() throws VSphereException {
+			//A session unused for a while may have been expired by vCenter
+			if(System.currentTimeMillis()-lastValidated > VALIDATE_INTERVAL)
+				keepAlive();
+
+			ServiceInstance si = serviceInstance;
+			if(si!=null)
+				return si;
+
+			synchronized(this){
+				if(serviceInstance==null)
+					serviceInstance = login();
+				return serviceInstance;
+			}
+		}
+
+		/**
+		 * Starts a new index whenever the previous one died or belongs to an
+		 * older login, since PropertyCollector filters are per session.
+		 */
+		synchronized VSphereInventory getInventory() throws VSphereException {
+			ServiceInstance si = getServiceInstance();
+			if(inventory==null || !inventory.isAlive() || inventory.getServiceInstance()!=si){
+				if(inventory!=null)
+					inventory.stop();
+				inventory = VSphereInventory.start(si, name);
+			}
+			return inventory;
+		}
+
+		synchronized VSphereTaskMonitor getTaskMonitor() throws VSphereException {
+			ServiceInstance si = getServiceInstance();
+			if(taskMonitor==null || !taskMonitor.isAlive() || taskMonitor.getServiceInstance()!=si){
+				if(taskMonitor!=null)
+					taskMonitor.stop();
+				taskMonitor = VSphereTaskMonitor.start(si, name);
+			}
+			return taskMonitor;
+		}
+
+		synchronized VSpherePlacement getPlacement() throws VSphereException {
+			ServiceInstance si = getServiceInstance();
+			if(placement==null || placement.getServiceInstance()!=si)
+				placement = new VSpherePlacement(si, Messages.VSphere_pool_default());
+			return placement;
+		}
+
+		/**
+		 * Re-logs in unless another thread already replaced the expired session.
+		 */
+		synchronized ServiceInstance relogin(ServiceInstance expired) throws VSphereException {
+			if(serviceInstance==expired || serviceInstance==null){
+				serviceInstance = login();
+			}
+			return serviceInstance;
+		}
+
+		void keepAlive() throws VSphereException {
+			ServiceInstance si = serviceInstance;
+			if(si==null)
+				return;
+
+			long started = System.nanoTime();
+			try {
+				if(si.getSessionManager().getCurrentSession()!=null){
+					VSphereMetrics.forServer(name).recordRoundTrip(System.nanoTime()-started, true);
+					lastValidated = System.currentTimeMillis();
+					return;
+				}
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "vSphere session for "+name+" is no longer valid", e);
+			}
+			VSphereMetrics.forServer(name).recordRoundTrip(System.nanoTime()-started, false);
+			relogin(si);
+		}
+
+		synchronized void logout(){
+			if(inventory!=null){
+				inventory.stop();
+				inventory = null;
+			}
+			if(taskMonitor!=null){
+				taskMonitor.stop();
+				taskMonitor = null;
+			}
+			if(serviceInstance==null)
+				return;
+			try {
+				serviceInstance.getServerConnection().logout();
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Could not log out of "+name, e);
+			}
+			serviceInstance = null;
+		}
+
+		private ServiceInstance login() throws VSphereException {
+			try {
+				ServiceInstance si = new ServiceInstance(new URL(url), user, pw, true);
+				lastValidated = System.currentTimeMillis();
+				return si;
+			} catch (Exception e) {
+				throw new VSphereException(e);
+			}
+		}
+	}
+}
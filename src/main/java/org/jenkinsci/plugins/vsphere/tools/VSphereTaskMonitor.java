@@ -0,0 +1,523 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.vmware.vim25.ArrayOfGuestNicInfo;
+import com.vmware.vim25.GuestNicInfo;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Tracks every in-flight vCenter task of a session through one
+ * PropertyCollector filter on the TaskManager's recent tasks, completing a
+ * future per task instead of having each caller poll its own task.
+ *
+ * The same collector waits for guest IP addresses and guest readiness,
+ * through one filter per VM waited on, so no thread is held while a guest
+ * boots.
+ */
+public final class VSphereTaskMonitor {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereTaskMonitor.class.getName());
+	private static final int WAIT_SECONDS = 60;
+	private static final String GUEST_TOOLS = "guest.toolsRunningStatus";
+	private static final String GUEST_HEARTBEAT = "guestHeartbeatStatus";
+	private static final String TOOLS_RUNNING = "guestToolsRunning";
+	private static final String HEARTBEAT_GREEN = "green";
+
+	private final ServiceInstance serviceInstance;
+	private final String serverName;
+	private final Map<String, Watch> pending = new ConcurrentHashMap<String, Watch>();
+	private final ConcurrentMap<String, IpWatch> ipWatches = new ConcurrentHashMap<String, IpWatch>();
+	private final Map<GuestWatch, GuestWatch> guestWatches = new ConcurrentHashMap<GuestWatch, GuestWatch>();
+	private volatile boolean running = true;
+	private volatile boolean alive = true;
+	private PropertyCollector collector;
+
+	private VSphereTaskMonitor(ServiceInstance serviceInstance, String serverName){
+		this.serviceInstance = serviceInstance;
+		this.serverName = serverName;
+	}
+
+	static VSphereTaskMonitor start(ServiceInstance serviceInstance, String serverName) throws VSphereException {
+		final VSphereTaskMonitor monitor = new VSphereTaskMonitor(serviceInstance, serverName);
+		try {
+			monitor.collector = serviceInstance.getPropertyCollector().createPropertyCollector();
+			monitor.collector.createFilter(monitor.createFilterSpec(), true);
+		} catch (Exception e) {
+			monitor.stop();
+			throw new VSphereException("Could not monitor tasks on "+serverName, e);
+		}
+
+		Thread thread = new Thread("vSphere task monitor for "+serverName){
+			@Override
+			public void run() {
+				monitor.listen();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return monitor;
+	}
+
+	ServiceInstance getServiceInstance(){
+		return serviceInstance;
+	}
+
+	boolean isAlive(){
+		return alive;
+	}
+
+	void stop(){
+		running = false;
+		if(collector==null)
+			return;
+		try {
+			collector.cancelWaitForUpdates();
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Could not cancel task updates for "+serverName, e);
+		}
+	}
+
+	/**
+	 * @param task - vCenter task to track
+	 * @return - future completed with the task's final TaskInfo, or failed
+	 * with a VSphereException if the task errors out
+	 */
+	public ListenableFuture<TaskInfo> watch(Task task){
+		Watch watch = new Watch(task);
+		pending.put(VSphereInventory.key(task.getMOR()), watch);
+
+		//The task may have finished before it was registered
+		try {
+			complete(watch, task.getTaskInfo());
+		} catch (Exception e) {
+			fail(watch, new VSphereException(e));
+		}
+		if(!alive)
+			fail(watch, new VSphereException("Task monitor for "+serverName+" is not running"));
+		return watch.future;
+	}
+
+	/**
+	 * Waits for the guest of a VM to report an IP address.  Callers waiting
+	 * on the same VM at the same time share the first one's timeout.
+	 * 
+	 * @param vm - VM to wait on
+	 * @param timeoutInSeconds - how long to wait
+	 * @return - future completed with the IP address, or with null on timeout
+	 */
+	public ListenableFuture<String> watchIp(VirtualMachine vm, int timeoutInSeconds){
+		String key = VSphereInventory.key(vm.getMOR());
+		IpWatch watch = new IpWatch(key, System.currentTimeMillis() + timeoutInSeconds * 1000L);
+		IpWatch existing = ipWatches.putIfAbsent(key, watch);
+		if(existing!=null)
+			return existing.future;
+
+		if(!alive){
+			failIp(watch, new VSphereException("Task monitor for "+serverName+" is not running"));
+			return watch.future;
+		}
+
+		//The filter's first update carries the current values, which also wakes
+		//the listener to wait no longer than this deadline
+		try {
+			watch.setFilter(collector.createFilter(createGuestFilterSpec(vm), true));
+		} catch (Exception e) {
+			failIp(watch, new VSphereException("Error waiting for IP", e));
+		}
+		return watch.future;
+	}
+
+	/**
+	 * Waits for the guest of a VM to be ready.
+	 * 
+	 * @param vm - VM to wait on
+	 * @param toolsRunning - whether VMware Tools must be running
+	 * @param heartbeatGreen - whether the guest heartbeat must be green
+	 * @param timeoutInSeconds - how long to wait
+	 * @return - future completed with null once the guest is ready, or with
+	 * what was not ready on timeout
+	 */
+	public ListenableFuture<String> watchGuest(VirtualMachine vm, boolean toolsRunning, boolean heartbeatGreen, int timeoutInSeconds){
+		GuestWatch watch = new GuestWatch(VSphereInventory.key(vm.getMOR()), toolsRunning, heartbeatGreen,
+				System.currentTimeMillis() + timeoutInSeconds * 1000L);
+		guestWatches.put(watch, watch);
+		if(!alive){
+			failGuest(watch, new VSphereException("Task monitor for "+serverName+" is not running"));
+			return watch.future;
+		}
+
+		try {
+			watch.setFilter(collector.createFilter(createFilterSpec(vm, GUEST_TOOLS, GUEST_HEARTBEAT), true));
+		} catch (Exception e) {
+			failGuest(watch, new VSphereException("Error waiting for the guest", e));
+		}
+		return watch.future;
+	}
+
+	/**
+	 * @return - number of tasks currently being waited on
+	 */
+	public int getPendingCount(){
+		return pending.size();
+	}
+
+	private PropertyFilterSpec createFilterSpec(){
+		TraversalSpec recentTasks = new TraversalSpec();
+		recentTasks.setName("recentTasks");
+		recentTasks.setType("TaskManager");
+		recentTasks.setPath("recentTask");
+		recentTasks.setSkip(Boolean.FALSE);
+
+		ObjectSpec taskManager = new ObjectSpec();
+		taskManager.setObj(serviceInstance.getTaskManager().getMOR());
+		taskManager.setSkip(Boolean.TRUE);
+		taskManager.setSelectSet(new SelectionSpec[]{ recentTasks });
+
+		PropertySpec taskInfo = new PropertySpec();
+		taskInfo.setType("Task");
+		taskInfo.setAll(Boolean.FALSE);
+		taskInfo.setPathSet(new String[]{ "info.state", "info.progress" });
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[]{ taskManager });
+		spec.setPropSet(new PropertySpec[]{ taskInfo });
+		return spec;
+	}
+
+	private PropertyFilterSpec createGuestFilterSpec(VirtualMachine vm){
+		return createFilterSpec(vm, "guest.ipAddress", "guest.net");
+	}
+
+	private PropertyFilterSpec createFilterSpec(VirtualMachine vm, String... paths){
+		ObjectSpec objectSpec = new ObjectSpec();
+		objectSpec.setObj(vm.getMOR());
+		objectSpec.setSkip(Boolean.FALSE);
+
+		PropertySpec propertySpec = new PropertySpec();
+		propertySpec.setType(VSphereInventory.VIRTUAL_MACHINE);
+		propertySpec.setAll(Boolean.FALSE);
+		propertySpec.setPathSet(paths);
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[]{ objectSpec });
+		spec.setPropSet(new PropertySpec[]{ propertySpec });
+		return spec;
+	}
+
+	private void listen(){
+		WaitOptions options = new WaitOptions();
+		String version = "";
+
+		try {
+			while(running){
+				options.setMaxWaitSeconds(getWaitSeconds());
+				UpdateSet updates = collector.waitForUpdatesEx(version, options);
+				if(updates!=null){
+					apply(updates);
+					version = updates.getVersion();
+				}
+				expireIpWatches();
+			}
+		} catch (Exception e) {
+			if(running)
+				LOGGER.log(Level.WARNING, "Task monitor for "+serverName+" stopped", e);
+		} finally {
+			alive = false;
+			for(Watch watch : pending.values())
+				fail(watch, new VSphereException("Lost track of task on "+serverName));
+			for(IpWatch watch : ipWatches.values())
+				failIp(watch, new VSphereException("Lost track of the IP of a VM on "+serverName));
+			for(GuestWatch watch : guestWatches.keySet())
+				failGuest(watch, new VSphereException("Lost track of the guest of a VM on "+serverName));
+			try {
+				collector.destroyPropertyCollector();
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Could not destroy task collector for "+serverName, e);
+			}
+		}
+	}
+
+	private void apply(UpdateSet updates){
+		if(updates.getFilterSet()==null)
+			return;
+
+		for(PropertyFilterUpdate filterUpdate : updates.getFilterSet()){
+			if(filterUpdate.getObjectSet()==null)
+				continue;
+
+			for(ObjectUpdate update : filterUpdate.getObjectSet()){
+				String key = VSphereInventory.key(update.getObj());
+				boolean guest = false;
+				for(GuestWatch guestWatch : guestWatches.keySet()){
+					if(guestWatch.key.equals(key)){
+						guest = true;
+						if(guestWatch.update(update))
+							completeGuest(guestWatch, null);
+					}
+				}
+
+				IpWatch ipWatch = ipWatches.get(key);
+				if(ipWatch!=null){
+					String ip = findIp(update);
+					if(ip!=null)
+						completeIp(ipWatch, ip);
+					continue;
+				}
+				if(guest)
+					continue;
+
+				Watch watch = pending.get(VSphereInventory.key(update.getObj()));
+				if(watch==null || update.getChangeSet()==null)
+					continue;
+
+				for(PropertyChange change : update.getChangeSet()){
+					if("info.state".equals(change.getName()) && isDone((TaskInfoState) change.getVal())){
+						try {
+							complete(watch, watch.task.getTaskInfo());
+						} catch (Exception e) {
+							fail(watch, new VSphereException(e));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isDone(TaskInfoState state){
+		return state==TaskInfoState.success || state==TaskInfoState.error;
+	}
+
+	private void complete(Watch watch, TaskInfo info){
+		if(!isDone(info.getState()))
+			return;
+
+		pending.remove(VSphereInventory.key(watch.task.getMOR()));
+		if(info.getState()==TaskInfoState.success){
+			watch.future.set(info);
+		}
+		else {
+			String reason = (info.getError()!=null) ? info.getError().getLocalizedMessage() : "unknown error";
+			//Keep the fault so that callers can tell transient failures apart
+			Throwable fault = (info.getError()!=null) ? info.getError().getFault() : null;
+			watch.future.setException(new VSphereException("Task "+info.getDescriptionId()+" failed: "+reason, fault));
+		}
+	}
+
+	private void fail(Watch watch, VSphereException e){
+		pending.remove(VSphereInventory.key(watch.task.getMOR()));
+		watch.future.setException(e);
+	}
+
+	/**
+	 * @return - how long the next wait for updates may take, to notice the
+	 * nearest IP timeout in time
+	 */
+	private int getWaitSeconds(){
+		long now = System.currentTimeMillis();
+		long wait = WAIT_SECONDS;
+		for(IpWatch watch : ipWatches.values())
+			wait = Math.min(wait, (watch.deadline - now + 999) / 1000);
+		for(GuestWatch watch : guestWatches.keySet())
+			wait = Math.min(wait, (watch.deadline - now + 999) / 1000);
+		return (int) Math.max(1, wait);
+	}
+
+	private void expireIpWatches(){
+		long now = System.currentTimeMillis();
+		for(IpWatch watch : ipWatches.values())
+			if(watch.deadline<=now)
+				completeIp(watch, null);
+		for(GuestWatch watch : guestWatches.keySet())
+			if(watch.deadline<=now)
+				completeGuest(watch, watch.getMissing());
+	}
+
+	/**
+	 * Prefers guest.ipAddress, falling back to the first address of a
+	 * connected NIC in guest.net.
+	 */
+	private static String findIp(ObjectUpdate update){
+		if(update.getChangeSet()==null)
+			return null;
+
+		String nicIp = null;
+		for(PropertyChange change : update.getChangeSet()){
+			Object val = change.getVal();
+			if(val==null)
+				continue;
+
+			if("guest.ipAddress".equals(change.getName()))
+				return (String) val;
+			if(!"guest.net".equals(change.getName()))
+				continue;
+
+			GuestNicInfo[] nics = (val instanceof ArrayOfGuestNicInfo) ?
+					((ArrayOfGuestNicInfo) val).getGuestNicInfo() : (GuestNicInfo[]) val;
+			for(GuestNicInfo nic : nics){
+				if(nicIp==null && nic.isConnected() && nic.getIpAddress()!=null && nic.getIpAddress().length>0)
+					nicIp = nic.getIpAddress()[0];
+			}
+		}
+		return nicIp;
+	}
+
+	private void completeIp(IpWatch watch, String ip){
+		if(ipWatches.remove(watch.key, watch)){
+			watch.future.set(ip);
+			watch.destroyFilter();
+		}
+	}
+
+	private void failIp(IpWatch watch, VSphereException e){
+		if(ipWatches.remove(watch.key, watch)){
+			watch.future.setException(e);
+			watch.destroyFilter();
+		}
+	}
+
+	private void completeGuest(GuestWatch watch, String missing){
+		if(guestWatches.remove(watch)!=null){
+			watch.future.set(missing);
+			watch.destroyFilter();
+		}
+	}
+
+	private void failGuest(GuestWatch watch, VSphereException e){
+		if(guestWatches.remove(watch)!=null){
+			watch.future.setException(e);
+			watch.destroyFilter();
+		}
+	}
+
+	private static void destroy(PropertyFilter filter, String what){
+		try {
+			filter.destroyPropertyFilter();
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Could not clean up "+what+" subscription", e);
+		}
+	}
+
+	/**
+	 * The guest properties a readiness wait is waiting on, as last reported.
+	 */
+	private static final class GuestWatch {
+		private final String key;
+		private final boolean toolsRunning;
+		private final boolean heartbeatGreen;
+		private final long deadline;
+		private final SettableFuture<String> future = SettableFuture.create();
+		private String toolsStatus;
+		private String heartbeatStatus;
+		private PropertyFilter filter;
+		private boolean done;
+
+		private GuestWatch(String key, boolean toolsRunning, boolean heartbeatGreen, long deadline){
+			this.key = key;
+			this.toolsRunning = toolsRunning;
+			this.heartbeatGreen = heartbeatGreen;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return - whether the guest is ready after the update
+		 */
+		synchronized boolean update(ObjectUpdate update){
+			if(update.getChangeSet()!=null){
+				for(PropertyChange change : update.getChangeSet()){
+					String val = (change.getVal()==null) ? null : change.getVal().toString();
+					if(GUEST_TOOLS.equals(change.getName()))
+						toolsStatus = val;
+					else if(GUEST_HEARTBEAT.equals(change.getName()))
+						heartbeatStatus = val;
+				}
+			}
+			return getMissing()==null;
+		}
+
+		/**
+		 * @return - the conditions not met, or null if there are none
+		 */
+		synchronized String getMissing(){
+			StringBuilder missing = new StringBuilder();
+			if(toolsRunning && !TOOLS_RUNNING.equals(toolsStatus))
+				missing.append("VMware Tools ").append((toolsStatus==null) ? "not reported" : toolsStatus);
+			if(heartbeatGreen && !HEARTBEAT_GREEN.equals(heartbeatStatus))
+				missing.append((missing.length()==0) ? "" : ", ").append("heartbeat ")
+						.append((heartbeatStatus==null) ? "not reported" : heartbeatStatus);
+			return (missing.length()==0) ? null : missing.toString();
+		}
+
+		synchronized void setFilter(PropertyFilter filter){
+			this.filter = filter;
+			if(done)
+				destroy(filter, "guest");
+		}
+
+		synchronized void destroyFilter(){
+			done = true;
+			if(filter!=null)
+				destroy(filter, "guest");
+		}
+	}
+
+	private static final class IpWatch {
+		private final String key;
+		private final long deadline;
+		private final SettableFuture<String> future = SettableFuture.create();
+		private PropertyFilter filter;
+		private boolean done;
+
+		private IpWatch(String key, long deadline){
+			this.key = key;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * The watch may be complete before its filter exists, in which case
+		 * the filter is destroyed right away.
+		 */
+		synchronized void setFilter(PropertyFilter filter){
+			this.filter = filter;
+			if(done)
+				destroy(filter, "IP");
+		}
+
+		synchronized void destroyFilter(){
+			done = true;
+			if(filter!=null)
+				destroy(filter, "IP");
+		}
+	}
+
+	private static final class Watch {
+		private final Task task;
+		private final SettableFuture<TaskInfo> future = SettableFuture.create();
+
+		private Watch(Task task){
+			this.task = task;
+		}
+	}
+}
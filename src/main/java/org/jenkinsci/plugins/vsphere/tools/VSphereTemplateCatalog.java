@@ -0,0 +1,451 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * The versions of each template, by server: the snapshot MarkTemplate took
+ * for each version, which build published it, how often it was cloned and
+ * its replicas on other datastores.  Builders clone the latest version, or
+ * pin one by number.  Kept in the Jenkins home directory so pins and clone
+ * counts survive restarts; the chain statistics are refreshed by
+ * {@link VSphereTemplateMaintenance}.
+ */
+public final class VSphereTemplateCatalog {
+
+	public static final String FILE_NAME = "vsphere-template-catalog.xml";
+	public static final String LATEST = "latest";
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereTemplateCatalog.class.getName());
+	private static final String SNAPSHOT = "VirtualMachineSnapshot";
+	//Clones are counted on every clone, but only saved this often
+	private static final long SAVE_CLONES_EVERY = TimeUnit.HOURS.toMillis(1);
+
+	private static VSphereTemplateCatalog catalog;
+
+	private final List<Template> templates = new ArrayList<Template>();
+	private transient XmlFile file;
+	private transient boolean dirty;
+
+	/**
+	 * @return - the catalog in the Jenkins home directory, read on first
+	 * use; outside of Jenkins, a catalog that is never saved
+	 */
+	public static synchronized VSphereTemplateCatalog get(){
+		if(catalog==null){
+			Jenkins jenkins = Jenkins.getInstance();
+			XmlFile file = (jenkins==null) ? null : new XmlFile(Jenkins.XSTREAM, new File(jenkins.getRootDir(), FILE_NAME));
+			catalog = load(file);
+			catalog.file = file;
+		}
+		return catalog;
+	}
+
+	private static VSphereTemplateCatalog load(XmlFile file){
+		if(file!=null && file.exists()){
+			try {
+				return (VSphereTemplateCatalog) file.read();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not read the template catalog, starting a new one", e);
+			}
+		}
+		return new VSphereTemplateCatalog();
+	}
+
+	/**
+	 * Records a new version of a template.
+	 *
+	 * @param serverName - server the template is on
+	 * @param template - name of the template
+	 * @param snapshot - the snapshot taken for the version
+	 * @param snapshotName - its name
+	 * @param publishedBy - the build that published it, as job#number, or null
+	 * @return - the new version
+	 */
+	public synchronized Version publish(String serverName, String template, ManagedObjectReference snapshot,
+			String snapshotName, String publishedBy){
+		Template entry = find(serverName, template);
+		if(entry==null){
+			entry = new Template(serverName, template);
+			templates.add(entry);
+		}
+		Version version = new Version(entry.getNextNumber(), snapshot.get_value(), snapshotName,
+				System.currentTimeMillis(), publishedBy);
+		entry.versions.add(version);
+		save();
+		return version;
+	}
+
+	/**
+	 * @param version - a version number, or null, empty or {@value #LATEST}
+	 * for the template's current snapshot
+	 * @return - the pinned version, or null for the current snapshot
+	 * @throws VSphereException - the template has no such version
+	 */
+	public synchronized Version getVersion(String serverName, String template, String version) throws VSphereException {
+		if(isLatest(version))
+			return null;
+
+		int number;
+		try {
+			number = Integer.parseInt(version.trim());
+		} catch (NumberFormatException e) {
+			throw new VSphereException("Template version \""+version+"\" is neither a number nor \""+LATEST+"\"");
+		}
+		Template entry = find(serverName, template);
+		Version found = (entry==null) ? null : entry.getVersion(number);
+		if(found==null)
+			throw new VSphereException("Template "+template+" on "+serverName+" has no version "+number);
+		return found;
+	}
+
+	public static boolean isLatest(String version){
+		return version==null || version.trim().length()==0 || LATEST.equalsIgnoreCase(version.trim());
+	}
+
+	/**
+	 * Counts a clone against the version whose snapshot it was cloned from.
+	 * Snapshots the catalog does not know are not counted.
+	 */
+	public synchronized void recordClone(String serverName, String template, ManagedObjectReference snapshot){
+		Template entry = find(serverName, template);
+		Version version = (entry==null) ? null : entry.getVersion(snapshot.get_value());
+		if(version==null)
+			return;
+
+		long now = System.currentTimeMillis();
+		boolean stale = now - version.lastCloned > SAVE_CLONES_EVERY;
+		version.clones++;
+		version.lastCloned = now;
+		dirty = true;
+		//A version is kept while it was recently cloned, see VSphereTemplateMaintenance
+		if(stale)
+			save();
+	}
+
+	/**
+	 * Updates the chain statistics of a template and forgets the versions
+	 * whose snapshot no longer exists.
+	 *
+	 * @param depths - the depth of every snapshot of the template, by id
+	 * @param current - id of its current snapshot, or null
+	 */
+	synchronized void updateChain(Template template, Map<String, Integer> depths, String current){
+		template.snapshotCount = depths.size();
+		template.chainDepth = (current==null || !depths.containsKey(current)) ? 0 : depths.get(current);
+		template.checked = System.currentTimeMillis();
+		for(Version version : template.versions){
+			Integer depth = depths.get(version.snapshot);
+			if(depth==null){
+				LOGGER.log(Level.INFO, "Snapshot of "+template+" version "+version.number+" is gone, forgetting the version");
+				template.versions.remove(version);
+			}
+			else {
+				version.depth = depth;
+			}
+		}
+		save();
+	}
+
+	/**
+	 * Records the replicas made of a version.
+	 */
+	public synchronized void addReplicas(Version version, List<Replica> replicas){
+		List<Replica> all = new ArrayList<Replica>(version.getReplicas());
+		all.addAll(replicas);
+		version.replicas = new CopyOnWriteArrayList<Replica>(all);
+		save();
+	}
+
+	/**
+	 * @param snapshot - the template snapshot a clone starts from
+	 * @return - the replicas of the version with that snapshot, empty if it
+	 * has none or is not catalogued
+	 */
+	public synchronized List<Replica> getReplicas(String serverName, String template, ManagedObjectReference snapshot){
+		Template entry = find(serverName, template);
+		Version version = (entry==null) ? null : entry.getVersion(snapshot.get_value());
+		return (version==null) ? Collections.<Replica>emptyList() : version.getReplicas();
+	}
+
+	/**
+	 * Forgets a version whose snapshot was removed.
+	 */
+	synchronized void remove(Template template, Version version){
+		template.versions.remove(version);
+		save();
+	}
+
+	/**
+	 * @return - every template in the catalog
+	 */
+	public synchronized List<Template> getTemplates(){
+		return new ArrayList<Template>(templates);
+	}
+
+	/**
+	 * @return - the templates of one server
+	 */
+	public synchronized List<Template> getTemplates(String serverName){
+		List<Template> found = new ArrayList<Template>();
+		for(Template template : templates)
+			if(template.serverName.equals(serverName))
+				found.add(template);
+		return found;
+	}
+
+	/**
+	 * Saves the clone counts recorded since the last save.
+	 */
+	public synchronized void flush(){
+		if(dirty)
+			save();
+	}
+
+	private Template find(String serverName, String template){
+		for(Template entry : templates)
+			if(entry.serverName.equals(serverName) && entry.name.equals(template))
+				return entry;
+		return null;
+	}
+
+	private void save(){
+		dirty = false;
+		if(file==null)
+			return;
+		try {
+			file.write(this);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save the template catalog", e);
+		}
+	}
+
+	/**
+	 * A template of one server and its versions, oldest first.  Versions
+	 * are changed under the catalog's lock and read without it.
+	 */
+	public static final class Template {
+		private final String serverName;
+		private final String name;
+		private final List<Version> versions = new CopyOnWriteArrayList<Version>();
+		private int chainDepth;
+		private int snapshotCount;
+		private long checked;
+
+		private Template(String serverName, String name){
+			this.serverName = serverName;
+			this.name = name;
+		}
+
+		public String getServerName(){
+			return serverName;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * @return - the versions still in the catalog, oldest first
+		 */
+		public List<Version> getVersions(){
+			return Collections.unmodifiableList(versions);
+		}
+
+		/**
+		 * @return - the newest version, or null if there is none
+		 */
+		public Version getLatest(){
+			Version latest = null;
+			for(Version version : versions)
+				latest = version;
+			return latest;
+		}
+
+		/**
+		 * @return - how many delta disks deep the current snapshot is; every
+		 * read of a linked clone may walk that many disks, plus its own
+		 */
+		public int getChainDepth(){
+			return chainDepth;
+		}
+
+		/**
+		 * @return - how many snapshots the template has, catalogued or not
+		 */
+		public int getSnapshotCount(){
+			return snapshotCount;
+		}
+
+		/**
+		 * @return - when the chain was last inspected, 0 if never
+		 */
+		public long getChecked(){
+			return checked;
+		}
+
+		public int getClones(){
+			int clones = 0;
+			for(Version version : versions)
+				clones += version.clones;
+			return clones;
+		}
+
+		private int getNextNumber(){
+			Version latest = getLatest();
+			return (latest==null) ? 1 : latest.number + 1;
+		}
+
+		private Version getVersion(int number){
+			for(Version version : versions)
+				if(version.number==number)
+					return version;
+			return null;
+		}
+
+		private Version getVersion(String snapshot){
+			for(Version version : versions)
+				if(version.snapshot.equals(snapshot))
+					return version;
+			return null;
+		}
+
+		public String toString(){
+			return name+" on "+serverName;
+		}
+	}
+
+	/**
+	 * One published snapshot of a template.
+	 */
+	public static final class Version {
+		private final int number;
+		private final String snapshot;
+		private final String snapshotName;
+		private final long created;
+		private final String publishedBy;
+		private int clones;
+		private long lastCloned;
+		private int depth;
+		//Null in catalogs saved before replicas
+		private List<Replica> replicas;
+
+		private Version(int number, String snapshot, String snapshotName, long created, String publishedBy){
+			this.number = number;
+			this.snapshot = snapshot;
+			this.snapshotName = snapshotName;
+			this.created = created;
+			this.publishedBy = publishedBy;
+		}
+
+		public int getNumber(){
+			return number;
+		}
+
+		/**
+		 * @return - the version's snapshot, to clone from
+		 */
+		public ManagedObjectReference getSnapshot(){
+			ManagedObjectReference mor = new ManagedObjectReference();
+			mor.setType(SNAPSHOT);
+			mor.set_value(snapshot);
+			return mor;
+		}
+
+		public String getSnapshotName(){
+			return snapshotName;
+		}
+
+		public long getCreated(){
+			return created;
+		}
+
+		/**
+		 * @return - the build that published the version, as job#number, or null
+		 */
+		public String getPublishedBy(){
+			return publishedBy;
+		}
+
+		public int getClones(){
+			return clones;
+		}
+
+		/**
+		 * @return - when the version was last cloned, 0 if never
+		 */
+		public long getLastCloned(){
+			return lastCloned;
+		}
+
+		/**
+		 * @return - how many delta disks deep the snapshot is, 0 if not inspected yet
+		 */
+		public int getDepth(){
+			return depth;
+		}
+
+		/**
+		 * @return - full copies of the version on other datastores
+		 */
+		public List<Replica> getReplicas(){
+			List<Replica> current = replicas;
+			return (current==null) ? Collections.<Replica>emptyList() : Collections.unmodifiableList(current);
+		}
+	}
+
+	/**
+	 * A full copy of a template version on another datastore, made into a
+	 * template with a snapshot of its own.  Linked clones of the replica
+	 * read its base disk instead of the template's.
+	 */
+	public static final class Replica {
+		private final String datastore;
+		private final String vm;
+		private final String snapshot;
+
+		Replica(String datastore, String vm, ManagedObjectReference snapshot){
+			this.datastore = datastore;
+			this.vm = vm;
+			this.snapshot = snapshot.get_value();
+		}
+
+		/**
+		 * @return - name of the datastore the replica is on
+		 */
+		public String getDatastore(){
+			return datastore;
+		}
+
+		/**
+		 * @return - name of the replica template
+		 */
+		public String getVm(){
+			return vm;
+		}
+
+		/**
+		 * @return - the replica's snapshot, to clone from
+		 */
+		public ManagedObjectReference getSnapshot(){
+			ManagedObjectReference mor = new ManagedObjectReference();
+			mor.setType(SNAPSHOT);
+			mor.set_value(snapshot);
+			return mor;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.vsphere.Server;
+import org.jenkinsci.plugins.vsphere.VSpherePlugin;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+
+/**
+ * Keeps the snapshot chains of catalogued templates short.  Every hour it
+ * measures the chain of each template in the {@link VSphereTemplateCatalog},
+ * and removes the snapshots of old versions nobody clones any more: every
+ * version but the newest few is removed once it has not been cloned for
+ * longer than a clone may live, so no leased clone still reads from it.
+ * A version the catalog never saw cloned is kept: its clones may predate
+ * the catalog, or their counts may have been lost in a restart.
+ * A removed snapshot's delta disk is merged away, so every linked clone
+ * made afterwards reads through one disk less.  The replicas of a removed
+ * version are destroyed with it.
+ */
+@Extension
+public class VSphereTemplateMaintenance extends AsyncPeriodicWork {
+
+	private static final Logger LOGGER = Logger.getLogger(VSphereTemplateMaintenance.class.getName());
+	//Versions cloned within this many hours are kept, however long leases are
+	private static final int MIN_IDLE_HOURS = 24;
+
+	public VSphereTemplateMaintenance() {
+		super("vSphere template maintenance");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return HOUR;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		VSphereTemplateCatalog catalog = VSphereTemplateCatalog.get();
+		catalog.flush();
+
+		VSpherePlugin.DescriptorImpl descriptor = VSpherePlugin.DescriptorImpl.get();
+		int keep = descriptor.getTemplateVersionsToKeep();
+		long now = System.currentTimeMillis();
+		for(Server server : descriptor.getServers()){
+			List<VSphereTemplateCatalog.Template> templates = catalog.getTemplates(server.getName());
+			if(templates.isEmpty())
+				continue;
+			try {
+				VSphere vsphere = VSphere.connect(server);
+				for(VSphereTemplateCatalog.Template template : templates){
+					try {
+						maintain(vsphere, catalog, template, keep, descriptor.getLeaseHours(), now);
+					} catch (VSphereException e) {
+						LOGGER.log(Level.WARNING, "Could not maintain template "+template, e);
+					}
+				}
+			} catch (VSphereException e) {
+				LOGGER.log(Level.WARNING, "Could not maintain the templates on "+server.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param keep - how many of the newest versions to keep, 0 to keep all
+	 * @param leaseHours - how long a clone may live, 0 for as long as it likes
+	 */
+	private static void maintain(VSphere vsphere, VSphereTemplateCatalog catalog, VSphereTemplateCatalog.Template template,
+			int keep, int leaseHours, long now) throws VSphereException {
+		String current = inspect(vsphere, catalog, template);
+		if(keep<=0)
+			return;
+
+		List<VSphereTemplateCatalog.Version> prunable = getPrunable(template, current, keep, leaseHours, now);
+		if(prunable.isEmpty())
+			return;
+
+		List<ManagedObjectReference> snapshots = new ArrayList<ManagedObjectReference>(prunable.size());
+		for(VSphereTemplateCatalog.Version version : prunable){
+			LOGGER.log(Level.INFO, "Removing version "+version.getNumber()+" of "+template+", last cloned "
+					+new Date(version.getLastCloned()));
+			snapshots.add(version.getSnapshot());
+		}
+		removeReplicas(vsphere, template, prunable);
+		//A failure part way is caught up with by the next inspection
+		vsphere.removeSnapshots(template.getName(), snapshots);
+		for(VSphereTemplateCatalog.Version version : prunable)
+			catalog.remove(template, version);
+		inspect(vsphere, catalog, template);
+	}
+
+	/**
+	 * Destroys the replicas of versions about to be removed, if deleting
+	 * VMs is allowed at all.  A replica that cannot be destroyed is left
+	 * behind, it is only a copy.
+	 */
+	private static void removeReplicas(VSphere vsphere, VSphereTemplateCatalog.Template template,
+			List<VSphereTemplateCatalog.Version> versions){
+		for(VSphereTemplateCatalog.Version version : versions){
+			for(VSphereTemplateCatalog.Replica replica : version.getReplicas()){
+				if(!VSpherePlugin.DescriptorImpl.allowDelete()){
+					LOGGER.log(Level.INFO, "Leaving replica "+replica.getVm()+" of "+template+", deleting VMs is disabled");
+					continue;
+				}
+				try {
+					vsphere.destroyTemplate(replica.getVm());
+				} catch (VSphereException e) {
+					LOGGER.log(Level.WARNING, "Could not destroy replica "+replica.getVm()+" of "+template, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measures the snapshot chain of a template.
+	 *
+	 * @return - id of the template's current snapshot, or null if it has none
+	 */
+	private static String inspect(VSphere vsphere, VSphereTemplateCatalog catalog, VSphereTemplateCatalog.Template template) throws VSphereException {
+		VSphereVmView view = vsphere.getSnapshotTree(template.getName());
+		Map<String, Integer> depths = new HashMap<String, Integer>();
+		collectDepths(view.getRootSnapshots(), 1, depths);
+		String current = (view.getCurrentSnapshot()==null) ? null : view.getCurrentSnapshot().get_value();
+		catalog.updateChain(template, depths, current);
+		return current;
+	}
+
+	private static void collectDepths(VirtualMachineSnapshotTree[] trees, int depth, Map<String, Integer> depths){
+		if(trees==null)
+			return;
+		for(VirtualMachineSnapshotTree tree : trees){
+			depths.put(tree.getSnapshot().get_value(), depth);
+			collectDepths(tree.getChildSnapshotList(), depth+1, depths);
+		}
+	}
+
+	/**
+	 * @return - the versions older than the newest keep that are neither
+	 * current nor possibly still read by a clone
+	 */
+	static List<VSphereTemplateCatalog.Version> getPrunable(VSphereTemplateCatalog.Template template, String current,
+			int keep, int leaseHours, long now){
+		List<VSphereTemplateCatalog.Version> versions = template.getVersions();
+		List<VSphereTemplateCatalog.Version> prunable = new ArrayList<VSphereTemplateCatalog.Version>();
+		for(int i=0; i<versions.size()-keep; i++){
+			VSphereTemplateCatalog.Version version = versions.get(i);
+			if(version.getSnapshot().get_value().equals(current) || isInUse(version, leaseHours, now))
+				continue;
+			prunable.add(version);
+		}
+		return prunable;
+	}
+
+	private static boolean isInUse(VSphereTemplateCatalog.Version version, int leaseHours, long now){
+		//Unknown clones may read from it, and nothing tells how old they are
+		if(version.getClones()==0)
+			return true;
+		//Without leases a clone may outlive any idle time
+		if(leaseHours<=0)
+			return true;
+		return now - version.getLastCloned() < TimeUnit.HOURS.toMillis(Math.max(leaseHours, MIN_IDLE_HOURS));
+	}
+}
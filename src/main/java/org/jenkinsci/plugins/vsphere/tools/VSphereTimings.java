@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * How long one build step spent in each phase of its vSphere work, kept by
+ * the step's {@link VSphereLogger}.  Phases of VMs handled at the same time
+ * add up, so a step cloning ten VMs at once may spend more time in a phase
+ * than it ran.
+ */
+public final class VSphereTimings {
+
+	public enum Phase {
+		LOOKUP("Lookup"),
+		CLONE("Clone task"),
+		POWER_ON("Power on"),
+		IP_WAIT("IP wait"),
+		GUEST_READY("Guest ready"),
+		DESTROY("Destroy");
+
+		private final String displayName;
+
+		private Phase(String displayName){
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName(){
+			return displayName;
+		}
+	}
+
+	private final long started = System.currentTimeMillis();
+	private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+
+	/**
+	 * Records the time from the given start until now.
+	 *
+	 * @param startedNanos - {@link System#nanoTime()} when the phase started
+	 */
+	public void record(Phase phase, long startedNanos){
+		nanos.addAndGet(phase.ordinal(), System.nanoTime() - startedNanos);
+	}
+
+	/**
+	 * Records the time from the given start until the future completes,
+	 * whether it succeeds or not.
+	 */
+	public <T> ListenableFuture<T> recordWhenDone(final Phase phase, final long startedNanos, ListenableFuture<T> future){
+		future.addListener(new Runnable() {
+			public void run() {
+				record(phase, startedNanos);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return future;
+	}
+
+	public long getMillis(Phase phase){
+		return TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal()));
+	}
+
+	/**
+	 * @return - whether any phase was recorded
+	 */
+	public boolean isEmpty(){
+		for(int i=0; i<nanos.length(); i++)
+			if(nanos.get(i)>0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return - wall clock time since the step started
+	 */
+	public long getElapsedMillis(){
+		return System.currentTimeMillis() - started;
+	}
+}
@@ -0,0 +1,226 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vmware.vim25.ArrayOfCustomFieldValue;
+import com.vmware.vim25.CustomFieldDef;
+import com.vmware.vim25.CustomFieldStringValue;
+import com.vmware.vim25.CustomFieldValue;
+import com.vmware.vim25.DuplicateName;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.mo.CustomFieldsManager;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * Which build owns a cloned VM and until when, kept on the VM itself in
+ * the {@value #FIELD} custom attribute as "job#build#expiry".  A VM whose
+ * lease ran out, or whose build ended without destroying it, is fair game
+ * for the reaper.
+ */
+public final class VSphereVmLease {
+
+	public static final String FIELD = "jenkins.vsphere.lease";
+
+	private static final char SEPARATOR = '#';
+
+	private final String job;
+	private final int build;
+	private final long expires;
+
+	/**
+	 * @param job - full name of the owning job
+	 * @param build - number of the owning build
+	 * @param expires - when the lease runs out, in epoch millis; 0 for never
+	 */
+	public VSphereVmLease(String job, int build, long expires){
+		this.job = job;
+		this.build = build;
+		this.expires = expires;
+	}
+
+	public String getJob(){
+		return job;
+	}
+
+	public int getBuild(){
+		return build;
+	}
+
+	public long getExpires(){
+		return expires;
+	}
+
+	/**
+	 * @return - the owning build, as job#number
+	 */
+	public String getOwner(){
+		return job + SEPARATOR + build;
+	}
+
+	public boolean isExpired(long now){
+		return expires>0 && expires<=now;
+	}
+
+	/**
+	 * @return - the attribute value; job names may contain the separator,
+	 * so it is parsed from the end
+	 */
+	String format(){
+		return getOwner() + SEPARATOR + expires;
+	}
+
+	/**
+	 * @return - the lease, or null if the value is not one
+	 */
+	static VSphereVmLease parse(String value){
+		if(value==null)
+			return null;
+		int last = value.lastIndexOf(SEPARATOR);
+		int middle = (last<=0) ? -1 : value.lastIndexOf(SEPARATOR, last-1);
+		if(middle<=0)
+			return null;
+		try {
+			return new VSphereVmLease(value.substring(0, middle),
+					Integer.parseInt(value.substring(middle+1, last)),
+					Long.parseLong(value.substring(last+1)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param owner - the owning build, as returned by {@link #getOwner()}
+	 * @return - a lease of that build, or null if owner is not one
+	 */
+	static VSphereVmLease forOwner(String owner, long expires){
+		return (owner==null) ? null : parse(owner + SEPARATOR + expires);
+	}
+
+	public String toString(){
+		return job+" #"+build;
+	}
+
+	/**
+	 * Sets the lease attribute of a VM, defining the attribute first if
+	 * this vCenter has never seen it.
+	 */
+	static void apply(ServiceInstance serviceInstance, VirtualMachine vm, VSphereVmLease lease) throws VSphereException {
+		try {
+			CustomFieldsManager fields = serviceInstance.getCustomFieldsManager();
+			fields.setField(vm, getFieldKey(fields, true), lease.format());
+		} catch (VSphereException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new VSphereException("Could not set the lease of "+vm.getName(), e);
+		}
+	}
+
+	/**
+	 * Reads the lease attribute of every VM of the server in one property
+	 * retrieval, paged by vCenter.
+	 *
+	 * @return - the lease of each leased VM, by VM name
+	 */
+	static Map<String, VSphereVmLease> fetchAll(ServiceInstance serviceInstance) throws VSphereException {
+		Map<String, VSphereVmLease> leases = new HashMap<String, VSphereVmLease>();
+		try {
+			int key = getFieldKey(serviceInstance.getCustomFieldsManager(), false);
+			if(key<0)
+				return leases;
+
+			ObjectSpec root = new ObjectSpec();
+			root.setObj(serviceInstance.getRootFolder().getMOR());
+			root.setSkip(Boolean.FALSE);
+			root.setSelectSet(PropertyCollectorUtil.buildFullTraversalV4());
+
+			PropertySpec propertySpec = new PropertySpec();
+			propertySpec.setType(VSphereInventory.VIRTUAL_MACHINE);
+			propertySpec.setAll(Boolean.FALSE);
+			propertySpec.setPathSet(new String[]{ "name", "customValue" });
+
+			PropertyFilterSpec spec = new PropertyFilterSpec();
+			spec.setObjectSet(new ObjectSpec[]{ root });
+			spec.setPropSet(new PropertySpec[]{ propertySpec });
+
+			PropertyCollector collector = serviceInstance.getPropertyCollector();
+			RetrieveResult result = collector.retrievePropertiesEx(new PropertyFilterSpec[]{ spec }, new RetrieveOptions());
+			while(result!=null){
+				for(ObjectContent content : result.getObjects())
+					collect(content, key, leases);
+				result = (result.getToken()==null) ? null : collector.continueRetrievePropertiesEx(result.getToken());
+			}
+		} catch (Exception e) {
+			throw new VSphereException("Could not read VM leases", e);
+		}
+		return leases;
+	}
+
+	private static void collect(ObjectContent content, int key, Map<String, VSphereVmLease> leases){
+		if(content.getPropSet()==null)
+			return;
+
+		String name = null;
+		VSphereVmLease lease = null;
+		for(DynamicProperty property : content.getPropSet()){
+			if("name".equals(property.getName()))
+				name = (String) property.getVal();
+			else if("customValue".equals(property.getName()))
+				lease = find(property.getVal(), key);
+		}
+		if(name!=null && lease!=null)
+			leases.put(name, lease);
+	}
+
+	private static VSphereVmLease find(Object val, int key){
+		CustomFieldValue[] values = (val instanceof ArrayOfCustomFieldValue)
+				? ((ArrayOfCustomFieldValue) val).getCustomFieldValue()
+				: (val instanceof CustomFieldValue[]) ? (CustomFieldValue[]) val : null;
+		if(values==null)
+			return null;
+		for(CustomFieldValue value : values){
+			if(value.getKey()==key && value instanceof CustomFieldStringValue)
+				return parse(((CustomFieldStringValue) value).getValue());
+		}
+		return null;
+	}
+
+	/**
+	 * @param create - whether to define the attribute if it is missing
+	 * @return - the attribute's key, or -1 if it is missing and was not created
+	 */
+	private static int getFieldKey(CustomFieldsManager fields, boolean create) throws Exception {
+		CustomFieldDef def = findField(fields);
+		if(def!=null || !create)
+			return (def==null) ? -1 : def.getKey();
+
+		try {
+			return fields.addCustomFieldDef(FIELD, VSphereInventory.VIRTUAL_MACHINE, null, null).getKey();
+		} catch (DuplicateName e) {
+			//Another build defined it first
+			def = findField(fields);
+			if(def==null)
+				throw e;
+			return def.getKey();
+		}
+	}
+
+	private static CustomFieldDef findField(CustomFieldsManager fields){
+		CustomFieldDef[] defs = fields.getField();
+		if(defs==null)
+			return null;
+		for(CustomFieldDef def : defs)
+			if(FIELD.equals(def.getName()))
+				return def;
+		return null;
+	}
+}
@@ -0,0 +1,174 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.ArrayOfVirtualMachineSnapshotTree;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * The few properties of a VM an operation needs, read in one
+ * RetrieveProperties call.  vijava's getters each make a call of their
+ * own, and getConfig() or getRuntime() fetch a whole data object for a
+ * single field.
+ *
+ * Properties that were not asked for, or that the VM does not have, read
+ * as null or false.
+ */
+public final class VSphereVmView {
+
+	public static final String POWER_STATE = "runtime.powerState";
+	public static final String TEMPLATE = "config.template";
+	public static final String CURRENT_SNAPSHOT = "snapshot.currentSnapshot";
+	public static final String IP_ADDRESS = "guest.ipAddress";
+	public static final String ROOT_SNAPSHOTS = "snapshot.rootSnapshotList";
+	public static final String CONSOLIDATION_NEEDED = "runtime.consolidationNeeded";
+	public static final String DATASTORES = "datastore";
+
+	private final ManagedObjectReference mor;
+	private VirtualMachinePowerState powerState;
+	private boolean template;
+	private boolean configured;
+	private ManagedObjectReference currentSnapshot;
+	private String ipAddress;
+	private VirtualMachineSnapshotTree[] rootSnapshots;
+	private boolean consolidationNeeded;
+	private ManagedObjectReference[] datastores;
+
+	private VSphereVmView(ManagedObjectReference mor){
+		this.mor = mor;
+	}
+
+	/**
+	 * @param serviceInstance - session to read through
+	 * @param vm - the VM to read
+	 * @param paths - properties to read, from the constants of this class
+	 * @return - the VM's view
+	 * @throws VSphereException - the VM does not exist, or the call failed
+	 */
+	static VSphereVmView fetch(ServiceInstance serviceInstance, ManagedObjectReference vm, String... paths) throws VSphereException {
+		ObjectSpec objectSpec = new ObjectSpec();
+		objectSpec.setObj(vm);
+		objectSpec.setSkip(Boolean.FALSE);
+
+		PropertySpec propertySpec = new PropertySpec();
+		propertySpec.setType(VSphereInventory.VIRTUAL_MACHINE);
+		propertySpec.setAll(Boolean.FALSE);
+		propertySpec.setPathSet(paths);
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[]{ objectSpec });
+		spec.setPropSet(new PropertySpec[]{ propertySpec });
+
+		ObjectContent[] contents;
+		try {
+			contents = serviceInstance.getPropertyCollector().retrieveProperties(new PropertyFilterSpec[]{ spec });
+		} catch (Exception e) {
+			throw new VSphereException("Could not read the state of VM "+vm.get_value(), e);
+		}
+
+		VSphereVmView view = new VSphereVmView(vm);
+		if(contents==null)
+			return view;
+		for(ObjectContent content : contents){
+			if(content.getPropSet()==null)
+				continue;
+			for(DynamicProperty property : content.getPropSet())
+				view.set(property.getName(), property.getVal());
+		}
+		return view;
+	}
+
+	private void set(String path, Object val){
+		if(POWER_STATE.equals(path))
+			powerState = (VirtualMachinePowerState) val;
+		else if(TEMPLATE.equals(path)){
+			configured = true;
+			template = Boolean.TRUE.equals(val);
+		}
+		else if(CURRENT_SNAPSHOT.equals(path))
+			currentSnapshot = (ManagedObjectReference) val;
+		else if(IP_ADDRESS.equals(path))
+			ipAddress = (String) val;
+		else if(ROOT_SNAPSHOTS.equals(path))
+			rootSnapshots = (val instanceof ArrayOfVirtualMachineSnapshotTree)
+					? ((ArrayOfVirtualMachineSnapshotTree) val).getVirtualMachineSnapshotTree()
+					: (VirtualMachineSnapshotTree[]) val;
+		else if(CONSOLIDATION_NEEDED.equals(path))
+			consolidationNeeded = Boolean.TRUE.equals(val);
+		else if(DATASTORES.equals(path))
+			datastores = (val instanceof ArrayOfManagedObjectReference)
+					? ((ArrayOfManagedObjectReference) val).getManagedObjectReference()
+					: (ManagedObjectReference[]) val;
+	}
+
+	public ManagedObjectReference getMOR(){
+		return mor;
+	}
+
+	public VirtualMachinePowerState getPowerState(){
+		return powerState;
+	}
+
+	public boolean isPoweredOn(){
+		return powerState==VirtualMachinePowerState.poweredOn;
+	}
+
+	public boolean isPoweredOff(){
+		return powerState==VirtualMachinePowerState.poweredOff;
+	}
+
+	public boolean isSuspended(){
+		return powerState==VirtualMachinePowerState.suspended;
+	}
+
+	public boolean isTemplate(){
+		return template;
+	}
+
+	/**
+	 * @return - whether the VM has a configuration yet; one still being
+	 * created or already removed has not
+	 */
+	public boolean isConfigured(){
+		return configured;
+	}
+
+	/**
+	 * @return - the VM's current snapshot, or null if it has none
+	 */
+	public ManagedObjectReference getCurrentSnapshot(){
+		return currentSnapshot;
+	}
+
+	public String getIpAddress(){
+		return ipAddress;
+	}
+
+	/**
+	 * @return - the roots of the VM's snapshot tree, empty if it has none
+	 */
+	public VirtualMachineSnapshotTree[] getRootSnapshots(){
+		return (rootSnapshots==null) ? new VirtualMachineSnapshotTree[0] : rootSnapshots;
+	}
+
+	/**
+	 * @return - whether removed snapshots left delta disks to consolidate
+	 */
+	public boolean isConsolidationNeeded(){
+		return consolidationNeeded;
+	}
+
+	/**
+	 * @return - the datastores holding the VM's files, empty if it has none
+	 */
+	public ManagedObjectReference[] getDatastores(){
+		return (datastores==null) ? new ManagedObjectReference[0] : datastores;
+	}
+}
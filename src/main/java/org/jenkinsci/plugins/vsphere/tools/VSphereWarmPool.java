@@ -0,0 +1,285 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.jenkinsci.plugins.vsphere.Server;
+
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Keeps linked clones of frequently used templates already created,
+ * powered on and with an IP, so that a build can claim one by renaming it
+ * instead of waiting for a clone and boot.
+ *
+ * The number of warm VMs per template follows recent demand: the claim rate
+ * per maintenance period multiplied by how many periods it takes to
+ * provision a VM, capped per server to protect cluster capacity.
+ */
+public final class VSphereWarmPool {
+
+	public static final int DEFAULT_MAX_WARM_VMS = 10;
+
+	static final String WARM_INFIX = "-warm-";
+	private static final Logger LOGGER = Logger.getLogger(VSphereWarmPool.class.getName());
+	private static final double DEMAND_WEIGHT = 0.3;
+	private static final double MIN_DEMAND = 0.05;
+	private static final int ADOPT_IP_TIMEOUT_SECONDS = 30;
+	private static final VSphereWarmPool warmPool = new VSphereWarmPool();
+
+	private final ConcurrentMap<String, TemplatePool> pools = new ConcurrentHashMap<String, TemplatePool>();
+	private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+	private VSphereWarmPool(){}
+
+	public static VSphereWarmPool get(){
+		return warmPool;
+	}
+
+	/**
+	 * Takes a warm VM of the given template and renames it to cloneName.
+	 * Every call counts as demand for the template, whether or not a warm
+	 * VM was available.
+	 *
+	 * @return - the claimed VM, or null if none was ready
+	 * @throws VSphereException
+	 */
+	public WarmVm claim(Server server, String template, String cloneName) throws VSphereException {
+		TemplatePool pool = getPool(server, template);
+		pool.claims.incrementAndGet();
+
+		VSphere vsphere = VSphere.connect(server);
+		try {
+			for(WarmVm warm = pool.ready.poll(); warm!=null; warm = pool.ready.poll()){
+				try {
+					VirtualMachine vm = vsphere.renameVm(warm.getName(), cloneName);
+					return new WarmVm(cloneName, warm.getIp(), vm);
+				} catch (VSphereException e) {
+					//Someone else removed or renamed it, try the next one
+					LOGGER.log(Level.FINE, "Could not claim warm VM "+warm.getName(), e);
+				}
+			}
+			return null;
+		} finally {
+			refill(pool);
+		}
+	}
+
+	/**
+	 * Recomputes every pool's target from its recent demand, then tops up or
+	 * trims the pools.  Called once per maintenance period.
+	 *
+	 * @param maxWarmVms - maximum number of warm VMs per server
+	 */
+	public void maintain(int maxWarmVms){
+		Map<Integer, List<TemplatePool>> byServer = new HashMap<Integer, List<TemplatePool>>();
+		for(TemplatePool pool : pools.values()){
+			pool.updateDemand();
+			List<TemplatePool> serverPools = byServer.get(pool.server.getHash());
+			if(serverPools==null){
+				serverPools = new ArrayList<TemplatePool>();
+				byServer.put(pool.server.getHash(), serverPools);
+			}
+			serverPools.add(pool);
+		}
+
+		for(List<TemplatePool> serverPools : byServer.values()){
+			int wanted = 0;
+			for(TemplatePool pool : serverPools)
+				wanted += pool.getDesired();
+
+			for(TemplatePool pool : serverPools){
+				//Scale every template down evenly when the server cap is hit
+				pool.target = (wanted > maxWarmVms) ? (pool.getDesired() * maxWarmVms) / wanted : pool.getDesired();
+				adopt(pool);
+				trim(pool);
+				refill(pool);
+			}
+		}
+	}
+
+	/**
+	 * Forgets pools of servers that are no longer configured.
+	 */
+	public void retainServers(List<Server> servers){
+		List<Integer> hashes = new ArrayList<Integer>();
+		for(Server server : servers)
+			hashes.add(server.getHash());
+
+		for(Map.Entry<String, TemplatePool> pool : pools.entrySet()){
+			if(!hashes.contains(pool.getValue().server.getHash()))
+				pools.remove(pool.getKey());
+		}
+	}
+
+	private TemplatePool getPool(Server server, String template){
+		String key = server.getHash()+"/"+template;
+		TemplatePool pool = pools.get(key);
+		if(pool==null){
+			TemplatePool created = new TemplatePool(server, template);
+			pool = pools.putIfAbsent(key, created);
+			if(pool==null)
+				pool = created;
+		}
+		return pool;
+	}
+
+	/**
+	 * Picks up warm VMs left over from before a restart.
+	 */
+	private void adopt(final TemplatePool pool){
+		if(pool.adopted)
+			return;
+		pool.adopted = true;
+
+		try {
+			final VSphere vsphere = VSphere.connect(pool.server);
+			for(final String name : vsphere.getVmNames(Pattern.compile(Pattern.quote(pool.template+WARM_INFIX)+".*"), false)){
+				pool.provisioning.incrementAndGet();
+				executor.submit(new Runnable() {
+					public void run() {
+						try {
+							vsphere.startVm(name);
+							VirtualMachine vm = vsphere.getVm(name);
+							String ip = vsphere.getIp(vm, ADOPT_IP_TIMEOUT_SECONDS);
+							if(ip!=null)
+								pool.ready.add(new WarmVm(name, ip, vm));
+						} catch (VSphereException e) {
+							LOGGER.log(Level.WARNING, "Could not adopt warm VM "+name, e);
+						} finally {
+							pool.provisioning.decrementAndGet();
+						}
+					}
+				});
+			}
+		} catch (VSphereException e) {
+			pool.adopted = false;
+			LOGGER.log(Level.WARNING, "Could not look for warm VMs of "+pool.template, e);
+		}
+	}
+
+	private void trim(TemplatePool pool){
+		while(pool.ready.size() > pool.target){
+			WarmVm surplus = pool.ready.poll();
+			if(surplus==null)
+				return;
+			try {
+				VSphere.connect(pool.server).destroyVmAsync(surplus.getName(), false);
+			} catch (VSphereException e) {
+				LOGGER.log(Level.WARNING, "Could not remove surplus warm VM "+surplus.getName(), e);
+			}
+		}
+	}
+
+	private void refill(final TemplatePool pool){
+		synchronized(pool){
+			int missing = pool.target - pool.ready.size() - pool.provisioning.get();
+			for(int i=0; i<missing; i++){
+				pool.provisioning.incrementAndGet();
+				executor.submit(new Runnable() {
+					public void run() {
+						provision(pool);
+					}
+				});
+			}
+		}
+	}
+
+	private void provision(TemplatePool pool){
+		String name = pool.template + WARM_INFIX + UUID.randomUUID().toString().substring(0, 8);
+		long started = System.currentTimeMillis();
+		try {
+			VSphere vsphere = VSphere.connect(pool.server);
+			VirtualMachine vm = vsphere.shallowCloneVm(name, pool.template, true);
+			String ip = vsphere.getIp(vm, VSphereConstants.IP_DEFAULT_TIMEOUT_SECONDS);
+			if(ip==null){
+				LOGGER.warning("Warm VM "+name+" got no IP, removing it");
+				vsphere.destroyVm(name, false);
+				return;
+			}
+			pool.recordProvisioning(System.currentTimeMillis()-started);
+			pool.ready.add(new WarmVm(name, ip, vm));
+		} catch (VSphereException e) {
+			LOGGER.log(Level.WARNING, "Could not provision warm VM of "+pool.template, e);
+		} finally {
+			pool.provisioning.decrementAndGet();
+		}
+	}
+
+	/**
+	 * A powered on VM with a known IP.
+	 */
+	public static final class WarmVm {
+		private final String name;
+		private final String ip;
+		private final VirtualMachine vm;
+
+		WarmVm(String name, String ip, VirtualMachine vm){
+			this.name = name;
+			this.ip = ip;
+			this.vm = vm;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public String getIp(){
+			return ip;
+		}
+
+		public VirtualMachine getVm(){
+			return vm;
+		}
+	}
+
+	private static final class TemplatePool {
+		private final Server server;
+		private final String template;
+		private final Queue<WarmVm> ready = new ConcurrentLinkedQueue<WarmVm>();
+		private final AtomicInteger provisioning = new AtomicInteger();
+		private final AtomicInteger claims = new AtomicInteger();
+		private volatile double demand;
+		private volatile double provisioningPeriods = 1;
+		private volatile int target;
+		private volatile boolean adopted;
+
+		private TemplatePool(Server server, String template){
+			this.server = server;
+			this.template = template;
+		}
+
+		private void updateDemand(){
+			demand = DEMAND_WEIGHT * claims.getAndSet(0) + (1 - DEMAND_WEIGHT) * demand;
+		}
+
+		private void recordProvisioning(long millis){
+			double periods = (double) millis / VSphereWarmPoolMaintenance.PERIOD;
+			provisioningPeriods = DEMAND_WEIGHT * periods + (1 - DEMAND_WEIGHT) * provisioningPeriods;
+		}
+
+		/**
+		 * Enough warm VMs to cover the claims expected while replacements boot.
+		 */
+		private int getDesired(){
+			if(demand < MIN_DEMAND)
+				return 0;
+			return (int) Math.ceil(demand * Math.max(1, provisioningPeriods));
+		}
+	}
+}
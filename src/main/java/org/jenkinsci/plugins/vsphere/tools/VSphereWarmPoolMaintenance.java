@@ -0,0 +1,32 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import org.jenkinsci.plugins.vsphere.VSpherePlugin;
+
+/**
+ * Periodically resizes and refills the warm pools.
+ */
+@Extension
+public class VSphereWarmPoolMaintenance extends AsyncPeriodicWork {
+
+	static final long PERIOD = MIN;
+
+	public VSphereWarmPoolMaintenance() {
+		super("vSphere warm pool maintenance");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return PERIOD;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		VSpherePlugin.DescriptorImpl descriptor = VSpherePlugin.DescriptorImpl.get();
+		VSphereWarmPool.get().retainServers(descriptor.getServers());
+		VSphereWarmPool.get().maintain(descriptor.getMaxWarmVms());
+	}
+}
@@ -0,0 +1,105 @@
+package org.jenkinsci.plugins.vsphere.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.regex.Pattern;
+
+import org.jenkinsci.plugins.vsphere.tools.VSphereException;
+import org.junit.Test;
+
+/**
+ * How {@link Destroyer} turns the entries of its VM list into patterns.
+ */
+public class DestroyerTest {
+
+	@Test
+	public void plainNamesAreExact() throws VSphereException {
+		assertNull(Destroyer.toPattern("ci-build-1"));
+		assertNull(Destroyer.toPattern("/"));
+	}
+
+	@Test
+	public void starMatchesAnyRun() throws VSphereException {
+		Pattern pattern = Destroyer.toPattern("ci-*");
+		assertTrue(matches(pattern, "ci-"));
+		assertTrue(matches(pattern, "ci-build-12"));
+		assertFalse(matches(pattern, "xci-build"));
+		assertFalse(matches(pattern, "CI-build"));
+	}
+
+	@Test
+	public void questionMarkMatchesOneCharacter() throws VSphereException {
+		Pattern pattern = Destroyer.toPattern("test-?");
+		assertTrue(matches(pattern, "test-1"));
+		assertFalse(matches(pattern, "test-"));
+		assertFalse(matches(pattern, "test-12"));
+	}
+
+	@Test
+	public void globQuotesRegexCharacters() throws VSphereException {
+		Pattern pattern = Destroyer.toPattern("job.(1)+[a]-*");
+		assertTrue(matches(pattern, "job.(1)+[a]-x"));
+		assertFalse(matches(pattern, "jobx(1)+[a]-x"));
+		assertFalse(matches(pattern, "job.1-x"));
+	}
+
+	@Test
+	public void wildcardsInTheMiddle() throws VSphereException {
+		Pattern pattern = Destroyer.toPattern("a*b?c");
+		assertTrue(matches(pattern, "abxc"));
+		assertTrue(matches(pattern, "a123bxc"));
+		assertFalse(matches(pattern, "a123bc"));
+	}
+
+	@Test
+	public void slashesWrapARegularExpression() throws VSphereException {
+		Pattern pattern = Destroyer.toPattern("/test-[0-9]+/");
+		assertEquals("test-[0-9]+", pattern.pattern());
+		assertTrue(matches(pattern, "test-42"));
+		assertFalse(matches(pattern, "test-x"));
+	}
+
+	@Test
+	public void invalidRegularExpressionNamesTheEntry() {
+		try {
+			Destroyer.toPattern("/test-[0-9/");
+			fail("invalid regular expression accepted");
+		} catch (VSphereException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("/test-[0-9/"));
+		}
+	}
+
+	@Test
+	public void globsOfWildcardsOnlyAreRefused() {
+		for(String entry : new String[]{ "*", "**", "?", "*?*" }){
+			try {
+				Destroyer.toPattern(entry);
+				fail("\""+entry+"\" accepted");
+			} catch (VSphereException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(entry));
+			}
+		}
+	}
+
+	@Test
+	public void regularExpressionsMatchingAnyNameAreRefused() throws VSphereException {
+		for(String entry : new String[]{ "/.*/", "/.+/", "/(.*)/", "/[^/]*/", "/\\S+|.*/" }){
+			try {
+				Destroyer.toPattern(entry);
+				fail("\""+entry+"\" accepted");
+			} catch (VSphereException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(entry));
+			}
+		}
+		assertTrue(matches(Destroyer.toPattern("/test-.*/"), "test-1"));
+		assertTrue(matches(Destroyer.toPattern("/\\w+/"), "a"));
+	}
+
+	private static boolean matches(Pattern pattern, String name){
+		return pattern.matcher(name).matches();
+	}
+}
@@ -0,0 +1,154 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The order in which {@link VSphereAdmission} lets waiting tasks in.
+ */
+public class VSphereAdmissionTest {
+
+	private static final AtomicInteger servers = new AtomicInteger();
+
+	private VSphereAdmission admission;
+	private final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+	private final BlockingQueue<String> admitted = new LinkedBlockingQueue<String>();
+	private final BlockingQueue<VSphereAdmission.Permit> permits = new LinkedBlockingQueue<VSphereAdmission.Permit>();
+
+	@Before
+	public void oneCloneAtATime(){
+		VSphereAdmission.setLimits(new VSphereAdmission.Limits(1, 0, 0, 0, 0, 0));
+		admission = VSphereAdmission.forServer("test-"+servers.incrementAndGet());
+	}
+
+	@After
+	public void restoreLimits() throws InterruptedException {
+		VSphereAdmission.setLimits(VSphereAdmission.Limits.DEFAULT);
+		for(Thread thread : threads){
+			thread.interrupt();
+			thread.join(5000);
+		}
+	}
+
+	@Test
+	public void freeGatesDoNotQueue() throws InterruptedException {
+		VSphereAdmission.Permit permit = admission.acquire(VSphereAdmission.Type.CLONE, null, VSphereAdmission.Priority.BACKGROUND);
+		assertFalse(permit.isQueued());
+		assertEquals(1, admission.getOutstanding());
+		permit.release();
+		permit.release();
+		assertEquals(0, admission.getOutstanding());
+	}
+
+	@Test
+	public void interactiveGoesBeforeCleanupBeforeBackground() throws InterruptedException {
+		VSphereAdmission.Permit running = admission.acquire(VSphereAdmission.Type.CLONE, null, VSphereAdmission.Priority.INTERACTIVE);
+		waitFor(VSphereAdmission.Priority.BACKGROUND, "background");
+		waitFor(VSphereAdmission.Priority.CLEANUP, "cleanup");
+		waitFor(VSphereAdmission.Priority.INTERACTIVE, "interactive");
+		assertEquals(4, admission.getOutstanding());
+
+		running.release();
+		assertNextAdmitted("interactive");
+		assertNextAdmitted("cleanup");
+		assertNextAdmitted("background");
+	}
+
+	@Test
+	public void samePriorityIsFirstComeFirstServed() throws InterruptedException {
+		VSphereAdmission.Permit running = admission.acquire(VSphereAdmission.Type.CLONE, null, VSphereAdmission.Priority.INTERACTIVE);
+		waitFor(VSphereAdmission.Priority.INTERACTIVE, "first");
+		waitFor(VSphereAdmission.Priority.INTERACTIVE, "second");
+		waitFor(VSphereAdmission.Priority.INTERACTIVE, "third");
+
+		running.release();
+		assertNextAdmitted("first");
+		assertNextAdmitted("second");
+		assertNextAdmitted("third");
+	}
+
+	@Test
+	public void otherTypesAreNotHeldUp() throws InterruptedException {
+		VSphereAdmission.Permit running = admission.acquire(VSphereAdmission.Type.CLONE, null, VSphereAdmission.Priority.INTERACTIVE);
+		VSphereAdmission.Permit power = admission.acquire(VSphereAdmission.Type.POWER, null, VSphereAdmission.Priority.BACKGROUND);
+		assertFalse(power.isQueued());
+		power.release();
+		running.release();
+	}
+
+	@Test
+	public void raisingTheLimitAdmitsWaiters() throws InterruptedException {
+		VSphereAdmission.Permit running = admission.acquire(VSphereAdmission.Type.CLONE, null, VSphereAdmission.Priority.INTERACTIVE);
+		waitFor(VSphereAdmission.Priority.BACKGROUND, "waiting");
+
+		VSphereAdmission.setLimits(new VSphereAdmission.Limits(2, 0, 0, 0, 0, 0));
+		assertNextAdmitted("waiting");
+		running.release();
+	}
+
+	@Test
+	public void interruptedWaitersHoldNothing() throws InterruptedException {
+		VSphereAdmission.Permit running = admission.acquire(VSphereAdmission.Type.CLONE, null, VSphereAdmission.Priority.INTERACTIVE);
+		Thread waiter = waitFor(VSphereAdmission.Priority.INTERACTIVE, "interrupted");
+		waitFor(VSphereAdmission.Priority.BACKGROUND, "background");
+
+		waiter.interrupt();
+		waiter.join(5000);
+		assertEquals(2, admission.getOutstanding());
+
+		running.release();
+		assertNextAdmitted("background");
+	}
+
+	/**
+	 * Starts a task that waits for a clone permit, and returns once it is
+	 * queued at the gate.  Its name is added to admitted once it gets in.
+	 */
+	private Thread waitFor(final VSphereAdmission.Priority priority, final String name) throws InterruptedException {
+		Thread thread = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					VSphereAdmission.Permit permit = admission.acquire(VSphereAdmission.Type.CLONE, null, priority);
+					assertTrue(permit.isQueued());
+					permits.add(permit);
+					admitted.add(name);
+				} catch (InterruptedException e) {
+					//Leaves the queue
+				}
+			}
+		};
+		thread.setDaemon(true);
+		threads.add(thread);
+		thread.start();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(thread.getState()!=Thread.State.WAITING){
+			assertTrue(name+" is not waiting", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		return thread;
+	}
+
+	/**
+	 * Checks which task got in next, then lets it finish so the one after
+	 * it can get in.
+	 */
+	private void assertNextAdmitted(String name) throws InterruptedException {
+		assertEquals(name, admitted.poll(5, TimeUnit.SECONDS));
+		permits.take().release();
+	}
+}
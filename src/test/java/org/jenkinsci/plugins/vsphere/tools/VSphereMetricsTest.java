@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Histogram buckets and percentiles of {@link VSphereMetrics}.
+ */
+public class VSphereMetricsTest {
+
+	private static final AtomicInteger operations = new AtomicInteger();
+
+	@Test
+	public void emptyOperationReadsZero(){
+		VSphereMetrics.Operation operation = newOperation();
+		assertEquals(0, operation.getCount());
+		assertEquals(0, operation.getP50Millis(), 0);
+		assertEquals(0, operation.getP99Millis(), 0);
+		assertEquals(0, operation.getMeanMillis(), 0);
+	}
+
+	@Test
+	public void smallLatenciesAreExact(){
+		for(long micros=0; micros<4; micros++){
+			VSphereMetrics.Operation operation = newOperation();
+			record(operation, micros, 1);
+			record(operation, 1000000, 1);
+			assertEquals(micros / 1000.0, operation.getP50Millis(), 0);
+		}
+	}
+
+	@Test
+	public void percentilesAreWithinABucketAbove(){
+		for(long micros : new long[]{ 4, 5, 7, 8, 9, 10, 100, 999, 1000, 1023, 1024, 65537, 3000000, 1L << 40 }){
+			VSphereMetrics.Operation operation = newOperation();
+			record(operation, micros, 1);
+			//A larger maximum, so the bucket's upper bound is not capped by it
+			record(operation, 1L << 50, 1);
+			long p50 = Math.round(operation.getP50Millis() * 1000);
+			assertTrue(micros+"us read as "+p50, p50 >= micros);
+			assertTrue(micros+"us read as "+p50, p50 <= micros * 1.25);
+		}
+	}
+
+	@Test
+	public void percentilesAreCappedByTheMaximum(){
+		VSphereMetrics.Operation operation = newOperation();
+		record(operation, 1000, 100);
+		assertEquals(1.0, operation.getP50Millis(), 0);
+		assertEquals(1.0, operation.getP99Millis(), 0);
+		assertEquals(1.0, operation.getMaxMillis(), 0);
+	}
+
+	@Test
+	public void percentilesRankTheSamples(){
+		VSphereMetrics.Operation operation = newOperation();
+		record(operation, 1000, 94);
+		record(operation, 50000, 5);
+		record(operation, 200000, 1);
+
+		assertEquals(100, operation.getCount());
+		assertTrue(operation.getP50Millis() >= 1 && operation.getP50Millis() <= 1.25);
+		assertTrue(operation.getP95Millis() >= 50 && operation.getP95Millis() <= 62.5);
+		assertTrue(operation.getP99Millis() >= 50 && operation.getP99Millis() <= 62.5);
+		assertEquals(200, operation.getMaxMillis(), 0);
+		assertEquals((94 * 1000 + 5 * 50000 + 200000) / 100 / 1000.0, operation.getMeanMillis(), 0.001);
+	}
+
+	@Test
+	public void errorsAreCounted(){
+		VSphereMetrics.Operation operation = newOperation();
+		operation.record(TimeUnit.MILLISECONDS.toNanos(5), true);
+		operation.record(TimeUnit.MILLISECONDS.toNanos(5), false);
+		operation.record(TimeUnit.MILLISECONDS.toNanos(5), false);
+		assertEquals(3, operation.getCount());
+		assertEquals(2, operation.getErrors());
+	}
+
+	private static VSphereMetrics.Operation newOperation(){
+		return VSphereMetrics.forServer("test").getOperation("operation-"+operations.incrementAndGet());
+	}
+
+	private static void record(VSphereMetrics.Operation operation, long micros, int times){
+		for(int i=0; i<times; i++)
+			operation.record(TimeUnit.MICROSECONDS.toNanos(micros), true);
+	}
+}
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+
+import org.junit.Test;
+
+import com.vmware.vim25.DuplicateName;
+import com.vmware.vim25.HostCommunication;
+import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.TaskInProgress;
+
+/**
+ * Which failures {@link VSphereRetry} retries, and how long it waits.
+ */
+public class VSphereRetryTest {
+
+	@Test
+	public void passingFaultsAreRetryable(){
+		assertTrue(VSphereRetry.isRetryable(new TaskInProgress()));
+		assertTrue(VSphereRetry.isRetryable(new HostCommunication()));
+		assertTrue(VSphereRetry.isRetryable(new SocketTimeoutException("Read timed out")));
+	}
+
+	@Test
+	public void causesAreSearched(){
+		assertTrue(VSphereRetry.isRetryable(new VSphereException("Could not clone", new TaskInProgress())));
+		assertTrue(VSphereRetry.isRetryable(new VSphereException(new RuntimeException(new HostCommunication()))));
+	}
+
+	@Test
+	public void transportFailuresNamedByVijavaAreRetryable(){
+		assertTrue(VSphereRetry.isRetryable(new RemoteException("VI SDK invoke exception:java.net.SocketTimeoutException: Read timed out")));
+		assertTrue(VSphereRetry.isRetryable(new RemoteException("VI SDK invoke exception:java.net.ConnectException: Connection refused")));
+		assertFalse(VSphereRetry.isRetryable(new RemoteException("VI SDK invoke exception:java.io.FileNotFoundException")));
+		assertFalse(VSphereRetry.isRetryable(new RemoteException()));
+	}
+
+	@Test
+	public void otherFailuresAreNot(){
+		assertFalse(VSphereRetry.isRetryable(null));
+		assertFalse(VSphereRetry.isRetryable(new VSphereException("No template found")));
+		assertFalse(VSphereRetry.isRetryable(new InvalidState()));
+		assertFalse(VSphereRetry.isRetryable(new VSphereException("VM already exists", new DuplicateName())));
+	}
+
+	@Test
+	public void delaysGrowWithJitter(){
+		for(int i=0; i<100; i++){
+			assertBetween(500, 1000, VSphereRetry.nextDelay(0));
+			assertBetween(1000, 2000, VSphereRetry.nextDelay(1));
+			assertBetween(4000, 8000, VSphereRetry.nextDelay(3));
+		}
+	}
+
+	@Test
+	public void delaysAreCapped(){
+		for(int retries : new int[]{ 5, 10, 16, 17, 63, 64, 1000, Integer.MAX_VALUE }){
+			assertBetween(15000, 30000, VSphereRetry.nextDelay(retries));
+		}
+	}
+
+	private static void assertBetween(long min, long max, long delay){
+		assertTrue(delay+" ms is not in ["+min+", "+max+"]", delay>=min && delay<=max);
+	}
+}
@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Which template versions {@link VSphereTemplateMaintenance} removes.
+ */
+public class VSphereTemplateMaintenanceTest {
+
+	private static final String SERVER = "server";
+	private static final String TEMPLATE = "template";
+	private static final long IDLE = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(48);
+
+	private VSphereTemplateCatalog catalog;
+
+	@Before
+	public void newCatalog(){
+		catalog = new VSphereTemplateCatalog();
+	}
+
+	@Test
+	public void idleVersionsBeyondTheNewestAreRemoved(){
+		publish(4);
+		cloneVersions(1, 2, 3, 4);
+		assertPrunable(getPrunable("snapshot-4", 2, 24, IDLE), 1, 2);
+	}
+
+	@Test
+	public void versionsWithoutRecordedClonesAreKept(){
+		publish(4);
+		cloneVersions(2);
+		assertPrunable(getPrunable("snapshot-4", 1, 24, IDLE), 2);
+	}
+
+	@Test
+	public void recentlyClonedVersionsAreKept(){
+		publish(3);
+		cloneVersions(1, 2);
+		assertPrunable(getPrunable("snapshot-3", 1, 24, System.currentTimeMillis()));
+	}
+
+	@Test
+	public void longLeasesKeepVersionsLonger(){
+		publish(3);
+		cloneVersions(1, 2);
+		assertPrunable(getPrunable("snapshot-3", 1, 72, IDLE));
+		assertPrunable(getPrunable("snapshot-3", 1, 72, IDLE + TimeUnit.HOURS.toMillis(48)), 1, 2);
+	}
+
+	@Test
+	public void clonesWithoutLeasesKeepEveryClonedVersion(){
+		publish(3);
+		cloneVersions(1, 2);
+		assertPrunable(getPrunable("snapshot-3", 1, 0, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void theCurrentSnapshotIsKept(){
+		publish(3);
+		cloneVersions(1, 2, 3);
+		assertPrunable(getPrunable("snapshot-1", 1, 24, IDLE), 2);
+	}
+
+	@Test
+	public void fewerVersionsThanKeptLeavesNothing(){
+		publish(2);
+		cloneVersions(1, 2);
+		assertPrunable(getPrunable(null, 2, 24, IDLE));
+		assertPrunable(getPrunable(null, 5, 24, IDLE));
+	}
+
+	private void publish(int versions){
+		for(int i=1; i<=versions; i++)
+			catalog.publish(SERVER, TEMPLATE, snapshot(i), "version "+i, null);
+	}
+
+	private void cloneVersions(int... numbers){
+		for(int number : numbers)
+			catalog.recordClone(SERVER, TEMPLATE, snapshot(number));
+	}
+
+	private List<VSphereTemplateCatalog.Version> getPrunable(String current, int keep, int leaseHours, long now){
+		return VSphereTemplateMaintenance.getPrunable(catalog.getTemplates(SERVER).get(0), current, keep, leaseHours, now);
+	}
+
+	private static void assertPrunable(List<VSphereTemplateCatalog.Version> prunable, Integer... numbers){
+		List<Integer> found = new ArrayList<Integer>();
+		for(VSphereTemplateCatalog.Version version : prunable)
+			found.add(version.getNumber());
+		assertEquals(Arrays.asList(numbers), found);
+	}
+
+	private static ManagedObjectReference snapshot(int number){
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType("VirtualMachineSnapshot");
+		mor.set_value("snapshot-"+number);
+		return mor;
+	}
+}
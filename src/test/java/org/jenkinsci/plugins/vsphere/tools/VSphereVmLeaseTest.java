@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.vsphere.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The attribute value of a {@link VSphereVmLease}.
+ */
+public class VSphereVmLeaseTest {
+
+	@Test
+	public void formatAndParseRoundTrip(){
+		VSphereVmLease lease = VSphereVmLease.parse(new VSphereVmLease("folder/job", 42, 1234567890123L).format());
+		assertEquals("folder/job", lease.getJob());
+		assertEquals(42, lease.getBuild());
+		assertEquals(1234567890123L, lease.getExpires());
+		assertEquals("folder/job#42", lease.getOwner());
+	}
+
+	@Test
+	public void jobNamesMayContainTheSeparator(){
+		VSphereVmLease lease = VSphereVmLease.parse("team#1/job#7#0");
+		assertEquals("team#1/job", lease.getJob());
+		assertEquals(7, lease.getBuild());
+		assertEquals(0, lease.getExpires());
+	}
+
+	@Test
+	public void otherValuesAreNotLeases(){
+		assertNull(VSphereVmLease.parse(null));
+		assertNull(VSphereVmLease.parse(""));
+		assertNull(VSphereVmLease.parse("job"));
+		assertNull(VSphereVmLease.parse("job#7"));
+		assertNull(VSphereVmLease.parse("#7#0"));
+		assertNull(VSphereVmLease.parse("job#x#0"));
+		assertNull(VSphereVmLease.parse("job#7#never"));
+	}
+
+	@Test
+	public void forOwnerTakesTheOwnerFormat(){
+		VSphereVmLease lease = VSphereVmLease.forOwner(new VSphereVmLease("job", 3, 0).getOwner(), 99);
+		assertEquals("job", lease.getJob());
+		assertEquals(3, lease.getBuild());
+		assertEquals(99, lease.getExpires());
+
+		assertNull(VSphereVmLease.forOwner(null, 99));
+		assertNull(VSphereVmLease.forOwner("job", 99));
+	}
+
+	@Test
+	public void leasesWithoutExpiryNeverExpire(){
+		assertFalse(new VSphereVmLease("job", 1, 0).isExpired(Long.MAX_VALUE));
+		assertFalse(new VSphereVmLease("job", 1, 1000).isExpired(999));
+		assertTrue(new VSphereVmLease("job", 1, 1000).isExpired(1000));
+	}
+}